@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The actions for one device that are written together as a single ActionIn frame.
+ */
+public class ActionBatch {
+    private final String mDeviceId;
+    private final List<Command> mCommands = new ArrayList<>();
+    private long mCid = 0;
+    private long mSentAtNanos = 0;
+    private int mShard = -1;
+
+    public ActionBatch(String deviceId) {
+        mDeviceId = deviceId;
+    }
+
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    public List<Command> getCommands() {
+        return mCommands;
+    }
+
+    void add(Command command) {
+        mCommands.add(command);
+    }
+
+    public long getCid() {
+        return mCid;
+    }
+
+    public String getCidString() {
+        return Long.toString(mCid);
+    }
+
+    public long getSentAtNanos() {
+        return mSentAtNanos;
+    }
+
+    void markSent(long cid, long sentAtNanos) {
+        mCid = cid;
+        mSentAtNanos = sentAtNanos;
+    }
+
+    /**
+     * @return the shard of the device channel pool the frame was last written to, -1
+     * if it was not written yet
+     */
+    public int getShard() {
+        return mShard;
+    }
+
+    void setShard(int shard) {
+        mShard = shard;
+    }
+
+    /**
+     * Completes the futures of every command in the frame.
+     */
+    void complete(CommandFuture.Status status, String error) {
+        for (int i = 0; i < mCommands.size(); i++) {
+            mCommands.get(i).getFuture().complete(status, error);
+        }
+    }
+
+    public int size() {
+        return mCommands.size();
+    }
+
+    @Override
+    public String toString() {
+        return mCommands.toString();
+    }
+}
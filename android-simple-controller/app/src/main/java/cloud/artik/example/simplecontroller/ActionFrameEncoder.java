@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import com.google.gson.Gson;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes ActionIn frames straight to UTF-8 JSON, without building the SDK models.
+ *
+ * Only the cid and the ts change from one frame to the next, so the rest of a frame
+ * is kept pre-encoded: one template per device (the ddid part) and one per action
+ * name. A frame is the templates and the two numbers copied into a reused buffer;
+ * once every device and action was sent once, encoding allocates nothing.
+ *
+ * Not thread safe; the buffer is valid until the next call to encode().
+ */
+class ActionFrameEncoder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] HEAD = bytes("{\"type\":\"action\",\"cid\":\"");
+    private static final byte[] DATA = bytes("\",\"data\":{\"actions\":[");
+    private static final byte[] TS = bytes(",\"ts\":");
+    private static final byte[] END = bytes("}");
+
+    private final Gson mGson = new Gson();
+    // ]},"ddid":"<device id>"
+    private final Map<String, byte[]> mDeviceTemplates = new HashMap<>();
+    // {"name":"<action name>"}
+    private final Map<String, byte[]> mActionTemplates = new HashMap<>();
+    private byte[] mBuffer = new byte[256];
+    private int mLength = 0;
+
+    /**
+     * Encodes the frame of a batch, with the cid it was sent with and the given ts.
+     *
+     * @return the length of the frame in getBuffer()
+     */
+    int encode(ActionBatch batch, long ts) {
+        mLength = 0;
+        append(HEAD);
+        appendLong(batch.getCid());
+        append(DATA);
+        List<Command> commands = batch.getCommands();
+        for (int i = 0; i < commands.size(); i++) {
+            if (i > 0) {
+                appendByte((byte) ',');
+            }
+            append(actionTemplate(commands.get(i).getActionName()));
+        }
+        append(deviceTemplate(batch.getDeviceId()));
+        append(TS);
+        appendLong(ts);
+        append(END);
+        return mLength;
+    }
+
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public String toString() {
+        return new String(mBuffer, 0, mLength, UTF_8);
+    }
+
+    private byte[] deviceTemplate(String deviceId) {
+        byte[] template = mDeviceTemplates.get(deviceId);
+        if (template == null) {
+            template = bytes("]},\"ddid\":" + mGson.toJson(deviceId));
+            mDeviceTemplates.put(deviceId, template);
+        }
+        return template;
+    }
+
+    private byte[] actionTemplate(String actionName) {
+        byte[] template = mActionTemplates.get(actionName);
+        if (template == null) {
+            template = bytes("{\"name\":" + mGson.toJson(actionName) + "}");
+            mActionTemplates.put(actionName, template);
+        }
+        return template;
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    private void appendByte(byte b) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = b;
+    }
+
+    // Decimal digits of the value, without going through a String
+    private void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            append(bytes(Long.toString(value)));
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            value = -value;
+        }
+        int start = mLength;
+        do {
+            mBuffer[mLength++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte digit = mBuffer[i];
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = digit;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(mLength + extra, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Client-side rate limiting of the action frames, adapted to the rate limits of
+ * ARTIK Cloud instead of configured with them.
+ *
+ * Every frame takes a token from the bucket of its connection, the shard of the
+ * device channel pool its device is assigned to, and from the bucket of its
+ * device. A frame rejected with a rate limit error (429) cuts the rate of the
+ * connection multiplicatively, down to what it was actually sending, and the rate
+ * of the device too if the device sent a large share of the frames; acks raise
+ * them again additively, towards the rate where the limit was hit. The rates are
+ * not raised while the acks are much slower than usual, a sign of the server
+ * queueing the frames before it starts rejecting them.
+ */
+public class AdaptiveRateLimiter implements CommandPipeline.Throttle {
+    public static final int RATE_LIMIT_ERROR_CODE = 429;
+
+    private static final double DEFAULT_CONNECTION_RATE = 10000;
+    private static final double DEFAULT_DEVICE_RATE = 1000;
+    private static final double MIN_RATE = 1;
+    private static final double DECREASE_FACTOR = 0.7;
+    // Share of the rate where the limit was hit that the rate grows by per second of acks
+    private static final double INCREASE_PER_SECOND = 0.2;
+    // Seconds of the rate a bucket can send at once
+    private static final double BURST_SECONDS = 0.05;
+    private static final long DECREASE_INTERVAL_NANOS = 1000L * 1000 * 1000;
+    private static final long MEASURE_INTERVAL_NANOS = 1000L * 1000 * 1000;
+    // A device sending at least this share of the frames may be limited on its own
+    private static final double DEVICE_LIMIT_SHARE = 0.5;
+    private static final int LATENCY_HOLD_FACTOR = 2;
+    // Ack latencies within this of the minimum are jitter, not queueing
+    private static final long LATENCY_SLACK_NANOS = 10L * 1000 * 1000;
+    // The minimum ack latency drifts up by 1/64 of the difference to every sample
+    private static final int MIN_LATENCY_DECAY_SHIFT = 6;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final DeviceFleet mFleet;
+    private final double mMaxConnectionRate;
+    private final double mMaxDeviceRate;
+    private TokenBucket[] mConnections = new TokenBucket[1];
+    private TokenBucket[] mDevices = new TokenBucket[16];
+    private long mMinAckNanos = Long.MAX_VALUE;
+    private boolean mIncreaseHeld = false;
+    private int mDecreaseCount = 0;
+
+    public AdaptiveRateLimiter(DeviceFleet fleet) {
+        this(fleet, DEFAULT_CONNECTION_RATE, DEFAULT_DEVICE_RATE);
+    }
+
+    /**
+     * @param maxConnectionRate frames per second the connection never exceeds
+     * @param maxDeviceRate frames per second no device exceeds
+     */
+    public AdaptiveRateLimiter(DeviceFleet fleet, double maxConnectionRate, double maxDeviceRate) {
+        mFleet = fleet;
+        mMaxConnectionRate = maxConnectionRate;
+        mMaxDeviceRate = maxDeviceRate;
+    }
+
+    @Override
+    public synchronized long tryAcquire(ActionBatch batch) {
+        long now = System.nanoTime();
+        int index = mFleet.indexOf(batch.getDeviceId());
+        // Not written yet: the frame goes to the shard of its device
+        TokenBucket connection = connectionBucket(index < 0 ? 0 : mFleet.getShard(index), now);
+        TokenBucket device = deviceBucket(index, now);
+        long wait = connection.waitNanos(now);
+        if (device != null) {
+            wait = Math.max(wait, device.waitNanos(now));
+        }
+        if (wait > 0) {
+            return wait;
+        }
+        connection.take(now);
+        if (device != null) {
+            device.take(now);
+        }
+        return 0;
+    }
+
+    /**
+     * Slows down after ARTIK Cloud rejected the frame for exceeding its rate limit.
+     */
+    public synchronized void onThrottled(ActionBatch batch) {
+        long now = System.nanoTime();
+        TokenBucket connection = connectionBucket(Math.max(0, batch.getShard()), now);
+        TokenBucket device = deviceBucket(mFleet.indexOf(batch.getDeviceId()), now);
+        boolean deviceLimited = device != null
+                && device.sentRate(now) >= DEVICE_LIMIT_SHARE * connection.sentRate(now);
+        boolean decreased = connection.decrease(now);
+        if (deviceLimited && device.decrease(now)) {
+            decreased = true;
+        }
+        if (decreased) {
+            mDecreaseCount++;
+        }
+    }
+
+    /**
+     * Speeds up again as long as the acks arrive as fast as usual.
+     *
+     * @param ackNanos System.nanoTime() when the ack arrived
+     */
+    public synchronized void onAcked(ActionBatch batch, long ackNanos) {
+        long latency = ackNanos - batch.getSentAtNanos();
+        if (latency < mMinAckNanos) {
+            mMinAckNanos = latency;
+        } else {
+            mMinAckNanos += (latency - mMinAckNanos) >> MIN_LATENCY_DECAY_SHIFT;
+        }
+        mIncreaseHeld = latency > LATENCY_HOLD_FACTOR * mMinAckNanos
+                && latency > mMinAckNanos + LATENCY_SLACK_NANOS;
+        if (mIncreaseHeld) {
+            return;
+        }
+        connectionBucket(Math.max(0, batch.getShard()), ackNanos).increase(ackNanos, mMaxConnectionRate);
+        TokenBucket device = deviceBucket(mFleet.indexOf(batch.getDeviceId()), ackNanos);
+        if (device != null) {
+            device.increase(ackNanos, mMaxDeviceRate);
+        }
+    }
+
+    /**
+     * @return frames per second the connection of the shard may send now
+     */
+    public synchronized double getConnectionRate(int shard) {
+        if (shard >= mConnections.length || mConnections[shard] == null) {
+            return mMaxConnectionRate;
+        }
+        return mConnections[shard].mRate;
+    }
+
+    /**
+     * @return frames per second the device may send now, or the maximum if it is not
+     * in the fleet
+     */
+    public synchronized double getDeviceRate(String deviceId) {
+        int index = mFleet.indexOf(deviceId);
+        if (index < 0 || index >= mDevices.length || mDevices[index] == null) {
+            return mMaxDeviceRate;
+        }
+        return mDevices[index].mRate;
+    }
+
+    /**
+     * @return how many times a rate limit error slowed the frames down
+     */
+    public synchronized int getDecreaseCount() {
+        return mDecreaseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder rates = new StringBuilder();
+        for (int i = 0; i < mConnections.length; i++) {
+            if (mConnections[i] != null) {
+                rates.append(rates.length() == 0 ? "" : ",").append(String.format(Locale.US, "%.1f", mConnections[i].mRate));
+            }
+        }
+        return String.format(Locale.US, "connections=%s/s decreases=%d increaseHeld=%b minAck=%.1fms",
+                rates, mDecreaseCount, mIncreaseHeld, mMinAckNanos == Long.MAX_VALUE ? 0 : mMinAckNanos / 1e6);
+    }
+
+    private TokenBucket connectionBucket(int shard, long now) {
+        if (shard >= mConnections.length) {
+            mConnections = Arrays.copyOf(mConnections, shard + 1);
+        }
+        if (mConnections[shard] == null) {
+            mConnections[shard] = new TokenBucket(mMaxConnectionRate, now);
+        }
+        return mConnections[shard];
+    }
+
+    private TokenBucket deviceBucket(int index, long now) {
+        if (index < 0) {
+            return null;
+        }
+        if (index >= mDevices.length) {
+            mDevices = Arrays.copyOf(mDevices, Math.max(index + 1, mDevices.length * 2));
+        }
+        if (mDevices[index] == null) {
+            mDevices[index] = new TokenBucket(mMaxDeviceRate, now);
+        }
+        return mDevices[index];
+    }
+
+    /**
+     * Tokens refilled at an adaptive rate, with the rate actually sent measured over
+     * the last second.
+     */
+    private static class TokenBucket {
+        double mRate;
+        double mTokens;
+        long mRefilledAt;
+        // The rate where the limit was last hit, 0 before the first hit
+        double mLimitRate = 0;
+        long mDecreasedAt;
+        long mIncreasedAt;
+        long mWindowStart;
+        int mWindowCount = 0;
+        double mSentRate = -1;
+
+        TokenBucket(double rate, long now) {
+            mRate = rate;
+            mTokens = burst();
+            mRefilledAt = now;
+            mDecreasedAt = now - DECREASE_INTERVAL_NANOS;
+            mIncreasedAt = now;
+            mWindowStart = now;
+        }
+
+        double burst() {
+            return Math.max(1, mRate * BURST_SECONDS);
+        }
+
+        long waitNanos(long now) {
+            mTokens = Math.min(burst(), mTokens + (now - mRefilledAt) * mRate / NANOS_PER_SECOND);
+            mRefilledAt = now;
+            if (mTokens >= 1) {
+                return 0;
+            }
+            return Math.max(1, (long) ((1 - mTokens) * NANOS_PER_SECOND / mRate));
+        }
+
+        void take(long now) {
+            mTokens -= 1;
+            rollWindow(now);
+            mWindowCount++;
+        }
+
+        /**
+         * @return frames per second sent over the last full second, or so far if the
+         * bucket is younger
+         */
+        double sentRate(long now) {
+            rollWindow(now);
+            if (mSentRate >= 0) {
+                return mSentRate;
+            }
+            long window = now - mWindowStart;
+            return window > 0 ? mWindowCount * NANOS_PER_SECOND / window : 0;
+        }
+
+        private void rollWindow(long now) {
+            long window = now - mWindowStart;
+            if (window < MEASURE_INTERVAL_NANOS) {
+                return;
+            }
+            // A bucket idle for longer than an interval sent nothing in the last one
+            mSentRate = window < 2 * MEASURE_INTERVAL_NANOS ? mWindowCount * NANOS_PER_SECOND / window : 0;
+            mWindowStart = now;
+            mWindowCount = 0;
+        }
+
+        // At most one decrease per interval: the frames already sent at the old rate
+        // are rejected too, and must not cut the rate again
+        boolean decrease(long now) {
+            if (now - mDecreasedAt < DECREASE_INTERVAL_NANOS) {
+                return false;
+            }
+            mDecreasedAt = now;
+            mIncreasedAt = now;
+            double sent = sentRate(now);
+            mLimitRate = sent > 0 ? Math.min(mRate, sent) : mRate;
+            mRate = Math.max(MIN_RATE, mLimitRate * DECREASE_FACTOR);
+            mTokens = Math.min(mTokens, burst());
+            return true;
+        }
+
+        // Grows by the share of the limit rate for the time since the last increase,
+        // counting at most one interval, so a pause in the acks is not a jump
+        void increase(long now, double maxRate) {
+            double seconds = Math.min(now - mIncreasedAt, DECREASE_INTERVAL_NANOS) / NANOS_PER_SECOND;
+            mIncreasedAt = now;
+            if (mLimitRate <= 0 || mRate >= maxRate || seconds <= 0) {
+                return;
+            }
+            mRate = Math.min(maxRate, mRate + mLimitRate * INCREASE_PER_SECOND * seconds);
+        }
+    }
+}
@@ -17,14 +17,22 @@
 package cloud.artik.example.simplecontroller;
 
 import android.content.Context;
-import android.content.Intent;
-import android.os.AsyncTask;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cloud.artik.api.UsersApi;
 import cloud.artik.model.Acknowledgement;
@@ -36,8 +44,6 @@ import cloud.artik.model.MessageOut;
 import cloud.artik.model.RegisterMessage;
 import cloud.artik.model.WebSocketError;
 import cloud.artik.websocket.ArtikCloudWebSocketCallback;
-import cloud.artik.websocket.DeviceChannelWebSocket;
-import cloud.artik.websocket.FirehoseWebSocket;
 
 public class ArtikCloudSession {
     private final static String TAG = ArtikCloudSession.class.getSimpleName();
@@ -54,53 +60,348 @@ public class ArtikCloudSession {
     private final static String DEVICE_NAME = "Smart Light";
     private final static String ACTION_NAME_ON = "setOn";
     private final static String ACTION_NAME_OFF = "setOff";
+    // The field of the device data holding the light state
+    private final static String STATE_FIELD = "state";
+
+    // Commands waiting to be written, and frames written but not yet acknowledged
+    private final static int COMMAND_QUEUE_CAPACITY = 256;
+    private final static int DEFAULT_MAX_ACTIONS_IN_FLIGHT = 16;
+    private final static long DEFAULT_ACK_TIMEOUT_MS = 10000;
+    // Commands arriving within this window are collapsed per device and batched
+    private final static long DEFAULT_COALESCING_WINDOW_MS = 50;
+    private final static int MAX_ACTIONS_PER_FRAME = 8;
+    // ARTIK Cloud pings every 30 s; two missed pings mean the connection is dead
+    private final static long PING_INTERVAL_MS = 30 * 1000;
+    private final static int MISSED_PINGS_ALLOWED = 2;
+    private final static String COMMAND_JOURNAL_FILE = "commands.journal";
+    // Retry delay of a replay that did not fit in the command queue
+    private final static long REPLAY_RETRY_MS = 1000;
+    // State changes kept per device, about 1 KB per device
+    private final static int STATE_HISTORY_CAPACITY = 128;
+    private final static String DEFAULT_API_BASE_URL = "https://api.artik.cloud/v1.1";
+    // Devices per messages/last request, messages per device, and requests in flight
+    private final static int BACKFILL_DEVICES_PER_PAGE = 50;
+    private final static int BACKFILL_MESSAGES_PER_DEVICE = 10;
+    private final static int BACKFILL_MAX_CONCURRENT_PAGES = 4;
+    private final static String SNAPSHOT_FILE = "session.snapshot";
+    // The snapshot is rewritten at most this often, and only if a state changed
+    private final static long SNAPSHOT_INTERVAL_MS = 5000;
+    // A token this close to its expiry is not reused on a cold start
+    private final static long TOKEN_EXPIRY_MARGIN_MS = 60 * 1000;
+    // The refresher is asked for a new token this long before the expiry, or a fifth of
+    // the remaining lifetime of shorter lived tokens
+    private final static long TOKEN_REFRESH_LEAD_MS = 5 * 60 * 1000;
+    // Both firehoses deliver for this long after the new one opened, duplicates dropped
+    private final static long FIREHOSE_OVERLAP_MS = 2000;
+    // Messages delivered out of order around a reconnect or an overlap are this much
+    // older at most; an unseen message older than that may come from a device whose
+    // clock stepped back
+    private final static long MAX_MESSAGE_REORDER_MS = 30 * 1000;
+    private final static int DEFAULT_DEVICE_CHANNEL_SHARDS = 1;
+    // Enough virtual nodes per shard to keep the shards within ~10% of an even split
+    private final static int VIRTUAL_NODES_PER_SHARD = 256;
+    private final static int NO_SHARD = -1;
+    // Events kept by the trace, ~160 KB once enabled
+    private final static int TRACE_CAPACITY = 4096;
+    // Message ids remembered to drop redelivered messages, 16 KB per generation of the filter
+    private final static int RECENT_MESSAGE_IDS = 8192;
+    // Schedules fire up to one tick late; a turn of the wheel covers 51.2 s
+    private final static long TIMER_TICK_MS = 100;
+    private final static int TIMER_WHEEL_SIZE = 512;
+    private final static int DEFAULT_GROUP_PARALLELISM = 16;
+    // A group command held for a device that is not registered fails after this long,
+    // so its group completes
+    private final static long GROUP_HELD_TIMEOUT_MS = 60 * 1000;
 
     private static ArtikCloudSession ourInstance = new ArtikCloudSession();
     private static Context ourContext;
 
-    public final static String WEBSOCKET_LIVE_ONOPEN =
-            "cloud.artik.example.iot.WEBSOCKET_LIVE_ONOPEN";
-    public final static String WEBSOCKET_LIVE_ONMSG =
-            "cloud.artik.example.iot.WEBSOCKET_LIVE_ONMSG";
-    public final static String WEBSOCKET_LIVE_ONCLOSE =
-            "cloud.artik.example.iot.WEBSOCKET_LIVE_ONCLOSE";
-    public final static String WEBSOCKET_LIVE_ONERROR =
-            "cloud.artik.example.iot.WEBSOCKET_LIVE_ONERROR";
-    public final static String WEBSOCKET_WS_ONOPEN =
-            "cloud.artik.example.iot.WEBSOCKET_WS_ONOPEN";
-    public final static String WEBSOCKET_WS_ONREG =
-            "cloud.artik.example.iot.WEBSOCKET_WS_ONREG";
-    public final static String WEBSOCKET_WS_ONMSG =
-            "cloud.artik.example.iot.WEBSOCKET_WS_ONMSG";
-    public final static String WEBSOCKET_WS_ONACK =
-            "cloud.artik.example.iot.WEBSOCKET_WS_ONACK";
-    public final static String WEBSOCKET_WS_ONCLOSE =
-            "cloud.artik.example.iot.WEBSOCKET_WS_ONCLOSE";
-    public final static String WEBSOCKET_WS_ONERROR =
-            "cloud.artik.example.iot.WEBSOCKET_WS_ONERROR";
-    public final static String SDID = "sdid";
-    public final static String DEVICE_DATA = "data";
-    public final static String TIMESTEP = "ts";
-    public final static String ACK = "ack";
-    public final static String ERROR = "error";
-
     private UsersApi mUsersApi = null;
-    private String mAccessToken = null;
+    private volatile String mAccessToken = null;
+    // Expiry of the access token in ms since the epoch, 0 if unknown
+    private volatile long mTokenExpiresAt = 0;
     private String mUserId = null;
 
-    private FirehoseWebSocket mFirehoseWS = null; //  end point: /live
-    private DeviceChannelWebSocket mDeviceChannelWS = null; // end point: /websocket
+    // SDK websockets to api.artik.cloud, or lite websockets to a configured base URL
+    private volatile CloudSocketFactory mSocketFactory = new SdkSocketFactory();
+    private volatile CloudSocket mFirehoseWS = null; //  end point: /live
+    // The firehose being replaced, delivering messages until its successor opens
+    private volatile CloudSocket mRetiredFirehoseWS = null;
+    // Incremented for every new socket, so callbacks of a replaced socket are ignored
+    private volatile int mFirehoseGeneration = 0;
+    private final AtomicInteger mDeviceChannelGenerations = new AtomicInteger();
+    // The /websocket connections, end point: /websocket, and the devices assigned to them
+    private volatile DeviceChannelShard[] mShards;
+    private ConsistentHashRing mRing;
+    private volatile AccessTokenRefresher mTokenRefresher = null;
+    private ScheduledFuture<?> mTokenRefresh = null;
+    private volatile FirehoseFilter mFirehoseFilter = FirehoseFilter.devices();
+    private volatile String mApiBaseUrl = DEFAULT_API_BASE_URL;
+
+    private final DeviceFleet mFleet = new DeviceFleet();
+    private final CommandPipeline mCommandPipeline;
+    private final LatencyStats mLatencyStats = new LatencyStats(mFleet);
+    private final AdaptiveRateLimiter mRateLimiter = new AdaptiveRateLimiter(mFleet);
+    // Only used by the sender thread of the command pipeline
+    private final ActionFrameEncoder mActionEncoder = new ActionFrameEncoder();
+    private final EventBus mEventBus = new EventBus();
+    private final DeviceStateStore mStateStore = new DeviceStateStore();
+    private final StateHistory mStateHistory = new StateHistory(STATE_HISTORY_CAPACITY);
+    private final RecentMessageIds mRecentMessageIds = new RecentMessageIds(RECENT_MESSAGE_IDS);
+    private final AtomicInteger mDuplicateMessages = new AtomicInteger();
+    private final AtomicInteger mStaleMessages = new AtomicInteger();
+    private final TraceRing mTrace = new TraceRing(TRACE_CAPACITY);
+    private final HistoryBackfill mBackfill = new HistoryBackfill(mFleet, mStateStore, mStateHistory, STATE_FIELD,
+            BACKFILL_DEVICES_PER_PAGE, BACKFILL_MESSAGES_PER_DEVICE, BACKFILL_MAX_CONCURRENT_PAGES);
+    // The latest connection event of each endpoint, replayed to screens that start later
+    private final ConnectionEvent[] mLastConnectionEvents =
+            new ConnectionEvent[ConnectionEvent.Endpoint.values().length];
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ConnectionMonitor mFirehoseMonitor;
+    private final CommandJournal mJournal = new CommandJournal(mScheduler);
+    private final HashedTimerWheel mTimerWheel = new HashedTimerWheel(mScheduler, TIMER_TICK_MS, TIMER_WHEEL_SIZE);
+    private final Map<String, List<String>> mGroups = new HashMap<>();
+    private final GroupCommandFuture.Sender mGroupSender = new GroupCommandFuture.Sender() {
+        @Override
+        public CommandFuture send(String deviceId, String actionName) {
+            final CommandFuture future = sendAction(deviceId, actionName);
+            if (isHeld(future)) {
+                mTimerWheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Unless it was replayed in the meantime
+                        if (mJournal.unhold(future.getCommandId())) {
+                            future.complete(CommandFuture.Status.TIMED_OUT, "device not registered");
+                        }
+                    }
+                }, GROUP_HELD_TIMEOUT_MS);
+            }
+            return future;
+        }
+
+        @Override
+        public boolean isHeld(CommandFuture future) {
+            return mJournal.isHeld(future.getCommandId());
+        }
+    };
+    private volatile File mSnapshotFile = null;
+    // The journal and the snapshot of the previous run are loaded on the scheduler
+    private boolean mRestoreStarted = false;
+    private boolean mRestored = false;
+    private final List<Runnable> mOnRestored = new ArrayList<>();
+    // Update count of the state store when the snapshot was last written, scheduler thread only
+    private long mSavedUpdateCount = -1;
+
+    private final Runnable mSnapshotTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mStateStore.getUpdateCount() != mSavedUpdateCount) {
+                writeSnapshot();
+            }
+        }
+    };
+
+    private final Runnable mSaveSnapshotTask = new Runnable() {
+        @Override
+        public void run() {
+            writeSnapshot();
+        }
+    };
+
+    private final Runnable mTokenRefreshTask = new Runnable() {
+        @Override
+        public void run() {
+            AccessTokenRefresher refresher = mTokenRefresher;
+            if (refresher != null) {
+                Log.d(TAG, "access token expires at " + mTokenExpiresAt + ", refreshing");
+                refresher.onAccessTokenExpiring(mTokenExpiresAt);
+            }
+        }
+    };
 
     public static ArtikCloudSession getInstance() {
         return ourInstance;
     }
 
     private ArtikCloudSession() {
-        // Do nothing
+        mFleet.addDevice(DEVICE_ID, DEVICE_NAME);
+        CommandCoalescer coalescer = new CommandCoalescer(MAX_ACTIONS_PER_FRAME);
+        coalescer.addConflictGroup("power", ACTION_NAME_ON, ACTION_NAME_OFF);
+        mCommandPipeline = new CommandPipeline(COMMAND_QUEUE_CAPACITY, DEFAULT_MAX_ACTIONS_IN_FLIGHT,
+                coalescer, new CommandPipeline.Sender() {
+                    @Override
+                    public void send(ActionBatch batch) throws IOException {
+                        sendActionInDeviceChannelWS(batch);
+                    }
+
+                    @Override
+                    public void onNotSent(ActionBatch batch, String reason) {
+                        holdCommands(batch);
+                    }
+                });
+        mCommandPipeline.setCoalescingWindow(DEFAULT_COALESCING_WINDOW_MS);
+        mCommandPipeline.setAckTimeout(DEFAULT_ACK_TIMEOUT_MS);
+        mCommandPipeline.setThrottle(mRateLimiter);
+        mCommandPipeline.start();
+
+        mFirehoseMonitor = new ConnectionMonitor("/live", mScheduler, new ConnectionMonitor.Reconnector() {
+            @Override
+            public void reconnect() {
+                openFirehoseWS();
+            }
+        });
+        mFirehoseMonitor.setPingPolicy(PING_INTERVAL_MS, MISSED_PINGS_ALLOWED);
+        mShards = createShards(DEFAULT_DEVICE_CHANNEL_SHARDS);
+        mRing = new ConsistentHashRing(DEFAULT_DEVICE_CHANNEL_SHARDS, VIRTUAL_NODES_PER_SHARD);
+        setWebSocketBaseUrl(BuildConfig.WEBSOCKET_BASE_URL);
+        setApiBaseUrl(BuildConfig.API_BASE_URL);
+    }
+
+    /**
+     * Points the REST calls, like the history backfill, at another server.
+     *
+     * @param baseUrl http:// or https:// URL of the REST API, like http://10.0.2.2:8888/v1.1,
+     *                or null for api.artik.cloud
+     */
+    public void setApiBaseUrl(String baseUrl) {
+        mApiBaseUrl = baseUrl == null ? DEFAULT_API_BASE_URL : baseUrl;
+    }
+
+    /**
+     * Points the websockets to another server, e.g. the cloud-standin server for load
+     * and latency tests. The connections use the SDK websockets to api.artik.cloud when
+     * the base URL is null. Takes effect on the next connect.
+     *
+     * @param baseUrl ws:// or wss:// URL of the websocket API, like ws://10.0.2.2:8888/v1.1
+     */
+    public void setWebSocketBaseUrl(String baseUrl) {
+        setSocketFactory(baseUrl == null ? new SdkSocketFactory() : new LiteSocketFactory(baseUrl));
+    }
+
+    /**
+     * Replaces how the websockets are created, e.g. by in-memory sockets in benchmarks.
+     * Takes effect on the next connect.
+     */
+    public void setSocketFactory(CloudSocketFactory socketFactory) {
+        mSocketFactory = socketFactory;
     }
 
+    /**
+     * Loads the command journal and the snapshot of the previous run on the scheduler,
+     * so the disk is not read on the calling thread, usually the main thread of a cold
+     * start. whenRestored() runs code once they are loaded.
+     */
     public void setContext(Context context) {
-        ourContext = context;
+        synchronized (this) {
+            ourContext = context.getApplicationContext();
+            if (mRestoreStarted) {
+                return;
+            }
+            mRestoreStarted = true;
+        }
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                restore();
+            }
+        });
+    }
+
+    /**
+     * Runs the callback once the journal and the snapshot of the previous run are
+     * loaded: right away on the calling thread if they are (or if no context was set),
+     * else on the scheduler thread.
+     */
+    public void whenRestored(Runnable callback) {
+        if (!deferUntilRestored(callback)) {
+            callback.run();
+        }
+    }
+
+    private synchronized boolean deferUntilRestored(Runnable task) {
+        if (!mRestoreStarted || mRestored) {
+            return false;
+        }
+        if (!mOnRestored.contains(task)) {
+            mOnRestored.add(task);
+        }
+        return true;
+    }
+
+    private void restore() {
+        File filesDir = ourContext.getFilesDir();
+        mJournal.open(new File(filesDir, COMMAND_JOURNAL_FILE));
+        restoreSnapshot(new File(filesDir, SNAPSHOT_FILE));
+        List<Runnable> callbacks;
+        synchronized (this) {
+            mRestored = true;
+            callbacks = new ArrayList<>(mOnRestored);
+            mOnRestored.clear();
+        }
+        // The commands of the previous run, for the devices registered in the meantime
+        for (int index = 0; index < mFleet.size(); index++) {
+            if (mFleet.isRegistered(index)) {
+                replayHeldCommands(mFleet.getDeviceId(index));
+            }
+        }
+        for (int i = 0; i < callbacks.size(); i++) {
+            callbacks.get(i).run();
+        }
+    }
+
+    /**
+     * Restores the token and the device states saved by the previous run, so the first
+     * frame shows the last known states before any connection is open, then saves
+     * them periodically. Only the first call restores.
+     */
+    private void restoreSnapshot(File file) {
+        if (mSnapshotFile != null) {
+            return;
+        }
+        SessionSnapshot snapshot = SessionSnapshot.load(file);
+        if (snapshot != null) {
+            synchronized (this) {
+                if (mAccessToken == null && snapshot.getAccessToken() != null) {
+                    mAccessToken = snapshot.getAccessToken();
+                    mTokenExpiresAt = snapshot.getTokenExpiresAt();
+                    scheduleTokenRefresh();
+                }
+            }
+            // Devices that left the fleet since the snapshot are skipped
+            for (int i = 0; i < snapshot.getDeviceCount(); i++) {
+                int index = mFleet.indexOf(snapshot.getDeviceId(i));
+                if (index >= 0) {
+                    mStateStore.updateIfNewer(index, snapshot.getState(i), snapshot.getTimestamp(i));
+                }
+            }
+            Log.d(TAG, "restored the states of " + snapshot.getDeviceCount() + " devices");
+        }
+        mSavedUpdateCount = mStateStore.getUpdateCount();
+        mSnapshotFile = file;
+        mScheduler.scheduleWithFixedDelay(mSnapshotTask, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves the token and the device states in the background, e.g. before the
+     * process may be killed.
+     */
+    public void saveSnapshot() {
+        if (mSnapshotFile != null) {
+            mScheduler.execute(mSaveSnapshotTask);
+        }
+    }
+
+    // Runs on the scheduler
+    private void writeSnapshot() {
+        File file = mSnapshotFile;
+        long updateCount = mStateStore.getUpdateCount();
+        try {
+            SessionSnapshot.save(file, mAccessToken, mTokenExpiresAt, mFleet, mStateStore);
+            mSavedUpdateCount = updateCount;
+        } catch (IOException e) {
+            Log.e(TAG, "cannot write " + file, e);
+        }
     }
 
     public String getDeviceID() {
@@ -111,13 +412,121 @@ public class ArtikCloudSession {
         return DEVICE_NAME;
     }
 
+    /**
+     * Adds a device to the set controlled by this session. Devices added while the
+     * websockets are connected are picked up on the next connect.
+     */
+    public void addDevice(String deviceId, String deviceName) {
+        mFleet.addDevice(deviceId, deviceName);
+    }
+
+    public DeviceFleet getFleet() {
+        return mFleet;
+    }
+
+    /**
+     * Sets the handler of the firehose messages of a device of the fleet.
+     *
+     * @param handler called on the firehose thread, null to remove the handler
+     */
+    public void setDeviceMessageHandler(String deviceId, DeviceMessageHandler handler) {
+        int index = mFleet.indexOf(deviceId);
+        if (index < 0) {
+            throw new IllegalArgumentException(deviceId + " is not part of the fleet");
+        }
+        mFleet.setMessageHandler(index, handler);
+    }
+
+    /**
+     * Chooses what the /live firehose subscribes to. A connected firehose is reopened
+     * with the new filter.
+     */
+    public void setFirehoseFilter(FirehoseFilter filter) {
+        mFirehoseFilter = filter;
+        if (isFirehoseWSConnected()) {
+            openFirehoseWS();
+        }
+    }
+
+    public FirehoseFilter getFirehoseFilter() {
+        return mFirehoseFilter;
+    }
+
     public void setAccessToken(String token) {
+        setAccessToken(token, 0);
+    }
+
+    /**
+     * @param expiresInSeconds lifetime of the token, the expires_in of the OAuth2
+     *                         redirect, or 0 if unknown
+     */
+    public void setAccessToken(String token, long expiresInSeconds) {
         if (token == null || token.length() <= 0) {
             Log.e(TAG, "Attempt to set an invalid token");
             mAccessToken = null;
+            mTokenExpiresAt = 0;
+            scheduleTokenRefresh();
             return;
         }
+        String previousToken = mAccessToken;
         mAccessToken = token;
+        mTokenExpiresAt = expiresInSeconds > 0 ? System.currentTimeMillis() + expiresInSeconds * 1000 : 0;
+        scheduleTokenRefresh();
+        saveSnapshot();
+        if (previousToken != null && !previousToken.equals(token)) {
+            renewConnections();
+        }
+    }
+
+    /**
+     * Sets who gets a new access token ahead of the expiry of the current one, null for
+     * nobody. Without a refresher the connections close when the token expires and
+     * reconnect with whatever token is set next.
+     */
+    public void setAccessTokenRefresher(AccessTokenRefresher refresher) {
+        mTokenRefresher = refresher;
+    }
+
+    private synchronized void scheduleTokenRefresh() {
+        if (mTokenRefresh != null) {
+            mTokenRefresh.cancel(false);
+            mTokenRefresh = null;
+        }
+        long expiresAt = mTokenExpiresAt;
+        if (expiresAt == 0) {
+            return;
+        }
+        long remainingMs = Math.max(0, expiresAt - System.currentTimeMillis());
+        long leadMs = Math.min(TOKEN_REFRESH_LEAD_MS, remainingMs / 5);
+        mTokenRefresh = mScheduler.schedule(mTokenRefreshTask, remainingMs - leadMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves the open connections to the current token, make-before-break: the previous
+     * connections keep carrying commands and messages until the new ones are ready.
+     */
+    private void renewConnections() {
+        rotateDeviceChannel();
+        renewFirehoseWS();
+    }
+
+    /**
+     * @return true if the session has a token, e.g. restored from the previous run,
+     * that does not expire within the next minute
+     */
+    public boolean hasValidAccessToken() {
+        if (mAccessToken == null) {
+            return false;
+        }
+        long expiresAt = mTokenExpiresAt;
+        return expiresAt == 0 || System.currentTimeMillis() < expiresAt - TOKEN_EXPIRY_MARGIN_MS;
+    }
+
+    /**
+     * @return when the access token expires in ms since the epoch, 0 if unknown
+     */
+    public long getTokenExpiresAt() {
+        return mTokenExpiresAt;
     }
 
     public String getAuthorizationRequestUri() {
@@ -129,29 +538,104 @@ public class ArtikCloudSession {
     public void reset() {
         mUsersApi = null;
         mAccessToken = null;
+        mTokenExpiresAt = 0;
+        scheduleTokenRefresh();
         mUserId = null;
-        mFirehoseWS = null;
-        mDeviceChannelWS = null;
+        mBackfill.cancel();
+        mStateHistory.clear();
+        mFleet.clearMessageTs();
+        disconnectFirehoseWS();
+        disconnectDeviceChannelWS();
+        // The last known states stay, the token is not reused
+        saveSnapshot();
     }
 
+    /**
+     * Opens the connections that are not open yet. Non blocking.
+     */
+    public void ensureConnected() {
+        // The token of the previous run may still be loading
+        if (deferUntilRestored(mEnsureConnected)) {
+            return;
+        }
+        if (!isFirehoseWSConnected()) {
+            connectFirehoseWS();
+        }
+        if (!isDeviceChannelWSConnected()) {
+            connectDeviceChannelWS();
+        }
+    }
+
+    private final Runnable mEnsureConnected = new Runnable() {
+        @Override
+        public void run() {
+            ensureConnected();
+        }
+    };
+
     private void createFirehoseWebsocket() {
         try {
-            mFirehoseWS = new FirehoseWebSocket(mAccessToken, DEVICE_ID, null, null, null, new ArtikCloudWebSocketCallback() {
+            // A single device is subscribed by sdid, a fleet by the comma separated sdids
+            // filter, unless the whole device type or user is subscribed
+            FirehoseFilter filter = mFirehoseFilter;
+            String sdid = null;
+            String sdids = null;
+            String sdtid = null;
+            String uid = null;
+            switch (filter.getKind()) {
+                case DEVICE_TYPE:
+                    sdtid = filter.getId();
+                    break;
+                case USER:
+                    uid = filter.getId();
+                    break;
+                default:
+                    if (mFleet.size() == 1) {
+                        sdid = mFleet.getDeviceId(0);
+                    } else {
+                        sdids = mFleet.getDeviceIdsParam();
+                    }
+                    break;
+            }
+            final int generation = ++mFirehoseGeneration;
+            final MessageFieldReader fieldReader = new MessageFieldReader(STATE_FIELD);
+            mFirehoseWS = mSocketFactory.createFirehose(mAccessToken, sdid, sdids, sdtid, uid, new MessageFieldsCallback() {
                 @Override
                 public void onOpen(int i, String s) {
+                    if (generation != mFirehoseGeneration) {
+                        return;
+                    }
                     Log.d(TAG, "FirehoseWebSocket: onOpen()");
-                    final Intent intent = new Intent(WEBSOCKET_LIVE_ONOPEN);
-                    LocalBroadcastManager.getInstance(ourContext).sendBroadcast(intent);
+                    mFirehoseMonitor.onConnected();
+                    if (mRetiredFirehoseWS != null) {
+                        mScheduler.schedule(mCloseRetiredFirehose, FIREHOSE_OVERLAP_MS, TimeUnit.MILLISECONDS);
+                    }
+                    postConnectionEvent(new ConnectionEvent(ConnectionEvent.Endpoint.LIVE,
+                            ConnectionEvent.Kind.OPENED, null, null));
                 }
 
                 @Override
                 public void onMessage(MessageOut messageOut) {
-                    Log.d(TAG, "FirehoseWebSocket: onMessage(" + messageOut.toString() + ")");
-                    final Intent intent = new Intent(WEBSOCKET_LIVE_ONMSG);
-                    intent.putExtra(SDID, messageOut.getSdid());
-                    intent.putExtra(DEVICE_DATA, messageOut.getData().toString());
-                    intent.putExtra(TIMESTEP, messageOut.getTs().toString());
-                    LocalBroadcastManager.getInstance(ourContext).sendBroadcast(intent);
+                    Map<String, Object> data = messageOut.getData();
+                    Long ts = messageOut.getTs();
+                    String mid = messageOut.getMid();
+                    if (onDeviceMessage(messageOut.getSdid(), data != null && data.containsKey(STATE_FIELD),
+                            data != null ? data.get(STATE_FIELD) : null, ts == null ? 0 : ts,
+                            mid == null ? RecentMessageIds.NO_ID : RecentMessageIds.hash(mid, 0, mid.length()))) {
+                        mEventBus.post(messageOut);
+                    }
+                }
+
+                @Override
+                public MessageFieldReader getMessageFieldReader() {
+                    // Subscribers of the bus get the whole MessageOut
+                    return mEventBus.hasSubscribers(MessageOut.class) ? null : fieldReader;
+                }
+
+                @Override
+                public void onMessageFields(MessageFieldReader reader) {
+                    onDeviceMessage(reader.getSdid(), reader.hasValue(0), reader.getValue(0), reader.getTs(),
+                            reader.getMidId());
                 }
 
                 @Override
@@ -164,21 +648,32 @@ public class ArtikCloudSession {
 
                 @Override
                 public void onClose(int code, String reason, boolean remote) {
-                    final Intent intent = new Intent(WEBSOCKET_LIVE_ONCLOSE);
-                    intent.putExtra("error", "mFirehoseWS is closed. code: " + code + "; reason: " + reason);
-                    LocalBroadcastManager.getInstance(ourContext).sendBroadcast(intent);
+                    if (generation != mFirehoseGeneration) {
+                        return;
+                    }
+                    String detail = "mFirehoseWS is closed. code: " + code + "; reason: " + reason;
+                    mFirehoseMonitor.onConnectionLost(detail);
+                    postConnectionEvent(new ConnectionEvent(ConnectionEvent.Endpoint.LIVE, ConnectionEvent.Kind.CLOSED,
+                            null, detail));
                 }
 
                 @Override
                 public void onError(WebSocketError ex) {
-                    final Intent intent = new Intent(WEBSOCKET_LIVE_ONERROR);
-                    intent.putExtra("error", "mFirehoseWS error: " + ex.getMessage());
-                    LocalBroadcastManager.getInstance(ourContext).sendBroadcast(intent);
+                    if (generation != mFirehoseGeneration) {
+                        return;
+                    }
+                    String detail = "mFirehoseWS error: " + ex.getMessage();
+                    mFirehoseMonitor.onConnectionLost(detail);
+                    postConnectionEvent(new ConnectionEvent(ConnectionEvent.Endpoint.LIVE, ConnectionEvent.Kind.ERROR,
+                            null, detail));
                 }
 
                 @Override
                 public void onPing(long timestamp) {
                     Log.d(TAG, "FirehoseWebSocket::onPing: " + timestamp);
+                    if (generation == mFirehoseGeneration) {
+                        mFirehoseMonitor.onPing();
+                    }
                 }
             });
         } catch (URISyntaxException|IOException e) {
@@ -186,57 +681,292 @@ public class ArtikCloudSession {
         }
     }
 
+    // Routes a message to its device through the sdid index of the fleet; returns false
+    // if the message is from a device outside the fleet, or is stale or a duplicate.
+    // Around a reconnect, or while two firehoses overlap, a message may be delivered
+    // twice or after a more recent one of its device: an older message is dropped,
+    // and one with the same ts if its mid was seen already. DeviceFleet tells a
+    // device whose clock stepped back from a redelivery, see advanceMessageTs().
+    // The mids are not checked for newer messages, so a false positive of the
+    // filter can never drop a state change newer than the displayed one.
+    private boolean onDeviceMessage(String sdid, boolean hasState, Object state, long ts, long midId) {
+        int index = mFleet.indexOf(sdid);
+        if (index < 0) {
+            // Expected with device type and user subscriptions, which cover more devices
+            if (mFirehoseFilter.getKind() == FirehoseFilter.Kind.DEVICES) {
+                Log.w(TAG, "FirehoseWebSocket: drop message of unknown device " + sdid);
+            }
+            return false;
+        }
+        boolean seen = midId != RecentMessageIds.NO_ID && mRecentMessageIds.add(midId);
+        int order = ts == 0 ? DeviceFleet.MESSAGE_SAME_TS
+                : mFleet.advanceMessageTs(index, ts, seen, System.currentTimeMillis(), MAX_MESSAGE_REORDER_MS);
+        if (order == DeviceFleet.MESSAGE_STALE) {
+            mStaleMessages.incrementAndGet();
+            mTrace.record(TraceRing.STALE, index, midId, ts);
+            return false;
+        }
+        if (order == DeviceFleet.MESSAGE_SAME_TS && seen) {
+            mDuplicateMessages.incrementAndGet();
+            mTrace.record(TraceRing.DUPLICATE, index, midId, ts);
+            return false;
+        }
+        if (order == DeviceFleet.MESSAGE_CLOCK_STEP) {
+            Log.w(TAG, "FirehoseWebSocket: clock of " + sdid + " stepped back, history restarted");
+            mStateHistory.clear(index);
+        }
+        mTrace.record(TraceRing.MESSAGE, index, midId, ts);
+        mLatencyStats.onStateMessage(sdid, System.nanoTime());
+        if (hasState) {
+            mStateStore.update(index, state, ts);
+            mStateHistory.record(index, state, ts == 0 ? System.currentTimeMillis() : ts);
+        }
+        DeviceMessageHandler handler = mFleet.getMessageHandler(index);
+        if (handler != null) {
+            handler.onDeviceMessage(sdid, hasState, state, ts);
+        }
+        return true;
+    }
+
     /**
      * Closes a websocket /live connection
      */
     public void disconnectFirehoseWS() {
-        if (mFirehoseWS != null) {
+        mFirehoseMonitor.stop();
+        mBackfill.cancel();
+        closeFirehoseWS();
+    }
+
+    private void closeFirehoseWS() {
+        closeRetiredFirehoseWS();
+        CloudSocket firehoseWS = mFirehoseWS;
+        mFirehoseWS = null;
+        // Callbacks of the closed socket are ignored from now on
+        mFirehoseGeneration++;
+        if (firehoseWS != null) {
             try {
-                mFirehoseWS.close();
+                firehoseWS.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-        mFirehoseWS = null;
     }
 
-    public void connectFirehoseWS() {
+    private final Runnable mCloseRetiredFirehose = new Runnable() {
+        @Override
+        public void run() {
+            closeRetiredFirehoseWS();
+        }
+    };
+
+    private void closeRetiredFirehoseWS() {
+        CloudSocket retired = mRetiredFirehoseWS;
+        mRetiredFirehoseWS = null;
+        if (retired != null) {
+            try {
+                retired.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Opens a new firehose with the current token. The previous one keeps delivering
+     * until the new one has been open for FIREHOSE_OVERLAP_MS, which covers the
+     * messages published while the new subscription was set up; only the new one is
+     * monitored from now on.
+     */
+    private void renewFirehoseWS() {
+        CloudSocket previous = mFirehoseWS;
+        if (previous == null) {
+            return;
+        }
+        closeRetiredFirehoseWS();
+        mRetiredFirehoseWS = previous;
         createFirehoseWebsocket();
+        CloudSocket firehoseWS = mFirehoseWS;
+        if (firehoseWS == null || firehoseWS == previous) {
+            mFirehoseMonitor.onConnectionLost("mFirehoseWS could not be created");
+            return;
+        }
+        Log.d(TAG, "renewing /live with the new access token");
         try {
-            mFirehoseWS.connect();
+            firehoseWS.connect();
         } catch (IOException e) {
             e.printStackTrace();
+            mFirehoseMonitor.onConnectionLost("mFirehoseWS connect failed: " + e.getMessage());
+        }
+    }
+
+    public boolean isFirehoseWSConnected() {
+        return mFirehoseWS != null;
+    }
+
+    /**
+     * Opens a websocket /live connection, reconnected automatically until
+     * disconnectFirehoseWS() is called. Non blocking.
+     */
+    public void connectFirehoseWS() {
+        mFirehoseMonitor.start();
+        openFirehoseWS();
+        startHistoryBackfill();
+    }
+
+    /**
+     * Fetches the recent messages of the fleet, for the states that /live only
+     * delivers once the devices publish again.
+     */
+    private void startHistoryBackfill() {
+        String accessToken = mAccessToken;
+        if (accessToken == null) {
+            return;
         }
+        mBackfill.start(new SdkMessageHistorySource(mApiBaseUrl, accessToken), mFleet.getDeviceIds());
     }
 
-    private void createDeviceChannelWebSockets() {
+    private void openFirehoseWS() {
+        closeFirehoseWS();
+        createFirehoseWebsocket();
+        CloudSocket firehoseWS = mFirehoseWS;
+        if (firehoseWS == null) {
+            mFirehoseMonitor.onConnectionLost("mFirehoseWS could not be created");
+            return;
+        }
         try {
-            mDeviceChannelWS = new DeviceChannelWebSocket(true, new ArtikCloudWebSocketCallback() {
+            firehoseWS.connect();
+        } catch (IOException e) {
+            e.printStackTrace();
+            mFirehoseMonitor.onConnectionLost("mFirehoseWS connect failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Splits the device channel into count /websocket connections, the shards of the
+     * pool. Every device is registered on the shard the consistent hash ring assigns
+     * it to; the shards connect and register in parallel, and when one fails, its
+     * devices move to the next shards of the ring until it is back. A connected device
+     * channel is closed; the shards open with the next connectDeviceChannelWS(). One
+     * connection is the default.
+     */
+    public synchronized void setDeviceChannelShards(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("the device channel needs at least one shard");
+        }
+        if (count == mShards.length) {
+            return;
+        }
+        disconnectDeviceChannelWS();
+        mShards = createShards(count);
+        mRing = new ConsistentHashRing(count, VIRTUAL_NODES_PER_SHARD);
+        rebalance(NO_SHARD);
+    }
+
+    /**
+     * @return the shards of the device channel pool, with their counters
+     */
+    public List<DeviceChannelShard> getDeviceChannelShards() {
+        return Collections.unmodifiableList(Arrays.asList(mShards));
+    }
+
+    private DeviceChannelShard[] createShards(int count) {
+        final DeviceChannelShard[] shards = new DeviceChannelShard[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            ConnectionMonitor monitor = new ConnectionMonitor(count == 1 ? "/websocket" : "/websocket#" + i,
+                    mScheduler, new ConnectionMonitor.Reconnector() {
                 @Override
-                public void onOpen(int i, String s) {
-                    Log.d(TAG, "Registering " + DEVICE_ID);
-                    final Intent intent = new Intent(WEBSOCKET_WS_ONOPEN);
-                    LocalBroadcastManager.getInstance(ourContext).sendBroadcast(intent);
+                public void reconnect() {
+                    openDeviceChannelWS(shards[index]);
+                }
+            });
+            monitor.setPingPolicy(PING_INTERVAL_MS, MISSED_PINGS_ALLOWED);
+            shards[i] = new DeviceChannelShard(i, monitor);
+        }
+        return shards;
+    }
 
-                    RegisterMessage registerMessage = new RegisterMessage();
-                    registerMessage.setAuthorization("bearer " + mAccessToken);
-                    registerMessage.setCid("myRegisterMessage");
-                    registerMessage.setSdid(DEVICE_ID);
+    // Prefixes the connection events of a pool with the shard they come from
+    private String describe(DeviceChannelShard shard, String detail) {
+        return mShards.length == 1 ? detail : "/websocket#" + shard.getIndex() + ": " + detail;
+    }
 
-                    try {
-                        Log.d(TAG, "DeviceChannelWebSocket::onOpen: registering" + DEVICE_ID);
-                        mDeviceChannelWS.registerChannel(registerMessage);
-                    } catch (IOException e) {
-                        e.printStackTrace();
+    /**
+     * Assigns every device to the shard the ring gives it, and registers the devices
+     * that moved on their new shard if it is connected, except on openedShard, which
+     * registers all its devices itself.
+     */
+    private synchronized void rebalance(int openedShard) {
+        DeviceChannelShard[] shards = mShards;
+        List<List<Integer>> moved = new ArrayList<>(shards.length);
+        int[] counts = new int[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            moved.add(new ArrayList<Integer>());
+        }
+        int movedCount = 0;
+        for (int index = 0; index < mFleet.size(); index++) {
+            int shard = mRing.shardOf(mFleet.getDeviceId(index));
+            if (shard < 0) {
+                // No shard alive: the devices stay until one comes back
+                shard = mFleet.getShard(index);
+            } else if (mFleet.setShard(index, shard)) {
+                moved.get(shard).add(index);
+                movedCount++;
+            }
+            counts[shard]++;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setDeviceCount(counts[i]);
+            List<Integer> indexes = moved.get(i);
+            if (i == openedShard || indexes.isEmpty() || shards[i].getChannel() == null
+                    || !shards[i].getMonitor().isConnected()) {
+                continue;
+            }
+            int[] devices = new int[indexes.size()];
+            for (int j = 0; j < devices.length; j++) {
+                devices[j] = indexes.get(j);
+            }
+            registerDevices(shards[i], shards[i].getChannel(), devices);
+        }
+        if (movedCount > 0) {
+            Log.d(TAG, movedCount + " devices moved to other shards, " + mRing.getAliveCount() + " of "
+                    + shards.length + " shards alive");
+        }
+    }
+
+    /**
+     * Creates a device channel of a shard. Its callbacks act for the active channel of
+     * the shard while its generation is current, and register the devices of the shard
+     * for the switch while it is the standby. Acks and errors of frames written on a
+     * replaced channel still complete their commands.
+     */
+    private DeviceChannel createDeviceChannel(final DeviceChannelShard shard, final int generation) {
+        try {
+            return mSocketFactory.createDeviceChannel(true, new ArtikCloudWebSocketCallback() {
+                @Override
+                public void onOpen(int i, String s) {
+                    if (shard.isStandby(generation)) {
+                        onStandbyOpened(shard, generation);
+                        return;
+                    }
+                    if (!shard.isCurrent(generation)) {
+                        return;
                     }
+                    shard.getMonitor().onConnected();
+                    postConnectionEvent(new ConnectionEvent(ConnectionEvent.Endpoint.WEBSOCKET,
+                            ConnectionEvent.Kind.OPENED, null, mShards.length == 1 ? null : describe(shard, "opened")));
+                    onShardOpened(shard);
                 }
 
                 @Override
                 public void onMessage(MessageOut messageOut) {
-                    Log.d(TAG, "DeviceChannelWebSocket::onMessage(" + messageOut.toString());
-                    final Intent intent = new Intent(WEBSOCKET_WS_ONMSG);
-                    intent.putExtra(ACK, messageOut.toString());
-                    LocalBroadcastManager.getInstance(ourContext).sendBroadcast(intent);
+                    if (mTrace.isEnabled()) {
+                        Long ts = messageOut.getTs();
+                        mTrace.record(TraceRing.CHANNEL_MESSAGE, mFleet.indexOf(messageOut.getSdid()),
+                                TraceRing.NO_CID, ts == null ? 0 : ts);
+                    }
+                    postConnectionEvent(ConnectionEvent.message(ConnectionEvent.Endpoint.WEBSOCKET,
+                            messageOut.getSdid(), messageOut));
                 }
 
                 @Override
@@ -246,132 +976,757 @@ public class ArtikCloudSession {
 
                 @Override
                 public void onAck(Acknowledgement acknowledgement) {
-                    Log.d(TAG, "DeviceChannelWebSocket::onAck(" + acknowledgement.toString());
-                    Intent intent;
-                    if (acknowledgement.getMessage() != null && acknowledgement.getMessage().equals("OK")) {
-                        intent = new Intent(WEBSOCKET_WS_ONREG);
+                    int index = mFleet.indexOfRegisterCid(acknowledgement.getCid());
+                    if (index >= 0) {
+                        boolean registered = "OK".equals(acknowledgement.getMessage());
+                        mTrace.record(TraceRing.REGISTERED, index, TraceRing.NO_CID, registered ? 1 : 0);
+                        if (shard.isStandby(generation)) {
+                            onStandbyRegistered(shard, generation, index, registered, acknowledgement.getMessage());
+                            return;
+                        }
+                        // The device may have moved to another shard in the meantime
+                        if (!shard.isCurrent(generation) || mFleet.getShard(index) != shard.getIndex()) {
+                            return;
+                        }
+                        mFleet.setRegistered(index, registered);
+                        postConnectionEvent(new ConnectionEvent(ConnectionEvent.Endpoint.WEBSOCKET,
+                                registered ? ConnectionEvent.Kind.REGISTERED : ConnectionEvent.Kind.ERROR,
+                                mFleet.getDeviceId(index), acknowledgement.getMessage()));
+                        if (registered) {
+                            replayHeldCommands(mFleet.getDeviceId(index));
+                        }
                     } else {
-                        intent = new Intent(WEBSOCKET_WS_ONACK);
-                        intent.putExtra(ACK, acknowledgement.toString());
+                        ActionBatch acked = mCommandPipeline.onAck(acknowledgement.getCid());
+                        if (acked != null) {
+                            long now = System.nanoTime();
+                            mLatencyStats.onAcked(acked, now);
+                            mRateLimiter.onAcked(acked, now);
+                            shard.onAcked(now - acked.getSentAtNanos());
+                            if (mTrace.isEnabled()) {
+                                mTrace.record(TraceRing.ACKED, mFleet.indexOf(acked.getDeviceId()), acked.getCid(),
+                                        now - acked.getSentAtNanos());
+                            }
+                        }
+                        mEventBus.post(acknowledgement);
                     }
-                    LocalBroadcastManager.getInstance(ourContext).sendBroadcast(intent);
                 }
 
                 @Override
                 public void onClose(int code, String reason, boolean remote) {
-                    final Intent intent = new Intent(WEBSOCKET_WS_ONCLOSE);
-                    intent.putExtra(ERROR, "mWebSocket is closed. code: " + code + "; reason: " + reason);
-                    LocalBroadcastManager.getInstance(ourContext).sendBroadcast(intent);
-
+                    String detail = describe(shard, "mWebSocket is closed. code: " + code + "; reason: " + reason);
+                    if (shard.isStandby(generation)) {
+                        abortStandby(shard, generation, detail);
+                        return;
+                    }
+                    if (!shard.isCurrent(generation)) {
+                        return;
+                    }
+                    onShardLost(shard, "/websocket closed", detail);
+                    postConnectionEvent(new ConnectionEvent(ConnectionEvent.Endpoint.WEBSOCKET, ConnectionEvent.Kind.CLOSED,
+                            null, detail));
                 }
 
                 @Override
                 public void onError(WebSocketError error) {
-                    final Intent intent = new Intent(WEBSOCKET_WS_ONERROR);
-                    intent.putExtra(ERROR, "mWebSocket error: " + error.getMessage());
-                    LocalBroadcastManager.getInstance(ourContext).sendBroadcast(intent);
+                    String detail = describe(shard, "mWebSocket error: " + error.getMessage());
+                    if (shard.isStandby(generation)) {
+                        abortStandby(shard, generation, detail);
+                        return;
+                    }
+                    if (onRateLimited(error)) {
+                        return;
+                    }
+                    if (!shard.isCurrent(generation)) {
+                        mCommandPipeline.onError(error.getCid(), error.getMessage());
+                        return;
+                    }
+                    // An error with a cid rejects one message; without one the connection failed
+                    if (!mCommandPipeline.onError(error.getCid(), error.getMessage()) && error.getCid() == null) {
+                        onShardLost(shard, detail, detail);
+                    }
+                    postConnectionEvent(new ConnectionEvent(ConnectionEvent.Endpoint.WEBSOCKET, ConnectionEvent.Kind.ERROR,
+                            null, detail));
                 }
 
                 @Override
                 public void onPing(long timestamp) {
                     Log.d(TAG, "DeviceChannelWebSocket::onPing: " + timestamp);
+                    if (shard.isCurrent(generation)) {
+                        shard.getMonitor().onPing();
+                    }
                 }
             });
         } catch (URISyntaxException|IOException e) {
             e.printStackTrace();
+            return null;
         }
     }
 
-    /**
-     * Closes a websocket /websocket connection
-     */
-    public void disconnectDeviceChannelWS() {
-        if (mDeviceChannelWS != null) {
+    // Takes the shard back into the ring, and registers its devices, the ones it gets
+    // back from the other shards included
+    private synchronized void onShardOpened(DeviceChannelShard shard) {
+        if (mRing.setAlive(shard.getIndex(), true)) {
+            rebalance(shard.getIndex());
+        }
+        int[] devices = mFleet.indexesOfShard(shard.getIndex());
+        Log.d(TAG, describe(shard, "Registering " + devices.length + " devices"));
+        registerDevices(shard, shard.getChannel(), devices);
+    }
+
+    // The commands in flight on the shard are held for a replay, and its devices move
+    // to the other shards until it reconnects
+    private void onShardLost(DeviceChannelShard shard, String reason, String detail) {
+        mFleet.clearRegistrations(shard.getIndex());
+        mCommandPipeline.returnInFlight(shard.getIndex(), reason);
+        shard.getMonitor().onConnectionLost(detail);
+        synchronized (this) {
+            if (mShards.length > 1 && mRing.setAlive(shard.getIndex(), false)) {
+                rebalance(NO_SHARD);
+            }
+        }
+    }
+
+    /**
+     * Registers devices of the fleet on a device channel of a shard. The register
+     * messages are written back to back without waiting for the previous ack; the acks
+     * are routed back to their device by cid in onAck().
+     */
+    private void registerDevices(DeviceChannelShard shard, DeviceChannel channel, int[] devices) {
+        if (channel == null) {
+            return;
+        }
+        final String authorization = "bearer " + mAccessToken;
+        for (int i = 0; i < devices.length; i++) {
+            RegisterMessage registerMessage = new RegisterMessage();
+            registerMessage.setAuthorization(authorization);
+            registerMessage.setCid(mFleet.registerCid(devices[i]));
+            registerMessage.setSdid(mFleet.getDeviceId(devices[i]));
             try {
-                mDeviceChannelWS.close();
+                channel.registerChannel(registerMessage);
             } catch (IOException e) {
                 e.printStackTrace();
+                shard.onRegistrationsSent(i);
+                return;
             }
         }
-        mDeviceChannelWS = null;
+        shard.onRegistrationsSent(devices.length);
+        Log.d(TAG, "DeviceChannelWebSocket::registerDevices: sent " + devices.length + " register messages");
+    }
+
+    /**
+     * Opens a standby channel on every shard, registering its devices with the current
+     * token while the active channel keeps carrying the commands. If a standby fails,
+     * the active channel of its shard stays until it closes and reconnects with the
+     * current token.
+     */
+    private void rotateDeviceChannel() {
+        DeviceChannelShard[] shards = mShards;
+        for (int i = 0; i < shards.length; i++) {
+            rotateDeviceChannel(shards[i]);
+        }
+    }
+
+    private synchronized void rotateDeviceChannel(DeviceChannelShard shard) {
+        if (shard.getChannel() == null) {
+            // Not connected, the next connect uses the current token
+            return;
+        }
+        abortStandby(shard, shard.getStandbyGeneration(), "replaced by a newer token");
+        int generation = mDeviceChannelGenerations.incrementAndGet();
+        DeviceChannel standby = createDeviceChannel(shard, generation);
+        if (standby == null) {
+            return;
+        }
+        shard.setStandby(standby, generation);
+        Log.d(TAG, describe(shard, "renewing /websocket with the new access token"));
+        try {
+            standby.connect();
+        } catch (IOException e) {
+            e.printStackTrace();
+            abortStandby(shard, generation, "standby connect failed: " + e.getMessage());
+        }
     }
 
+    private synchronized void onStandbyOpened(DeviceChannelShard shard, int generation) {
+        if (!shard.isStandby(generation)) {
+            return;
+        }
+        int[] devices = mFleet.indexesOfShard(shard.getIndex());
+        shard.setStandbyDevices(devices);
+        if (devices.length == 0) {
+            promoteStandby(shard);
+            return;
+        }
+        registerDevices(shard, shard.getStandbyChannel(), devices);
+    }
+
+    private synchronized void onStandbyRegistered(DeviceChannelShard shard, int generation, int index,
+                                                  boolean registered, String message) {
+        if (!shard.isStandby(generation)) {
+            return;
+        }
+        if (!registered) {
+            abortStandby(shard, generation, "registration of " + mFleet.getDeviceId(index) + " failed: " + message);
+            return;
+        }
+        if (shard.onStandbyRegistered()) {
+            promoteStandby(shard);
+        }
+    }
+
+    /**
+     * Switches the traffic of a shard to its standby channel once it registered all
+     * the devices of the shard. The previous channel stays open for the ack timeout,
+     * so the frames already written on it still get their acks.
+     */
+    private void promoteStandby(DeviceChannelShard shard) {
+        int[] devices = shard.getStandbyDevices();
+        final DeviceChannel previous = shard.promoteStandby();
+        shard.getMonitor().onConnected();
+        for (int i = 0; i < devices.length; i++) {
+            int index = devices[i];
+            if (mFleet.getShard(index) == shard.getIndex() && !mFleet.isRegistered(index)) {
+                mFleet.setRegistered(index, true);
+                replayHeldCommands(mFleet.getDeviceId(index));
+            }
+        }
+        Log.d(TAG, describe(shard, "/websocket renewed, " + devices.length + " devices registered"));
+        postConnectionEvent(new ConnectionEvent(ConnectionEvent.Endpoint.WEBSOCKET,
+                ConnectionEvent.Kind.REGISTERED, null, describe(shard, "access token renewed")));
+        if (previous != null) {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        previous.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, mCommandPipeline.getAckTimeout(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void abortStandby(DeviceChannelShard shard, int generation, String reason) {
+        if (!shard.isStandby(generation)) {
+            return;
+        }
+        DeviceChannel standby = shard.clearStandby();
+        Log.w(TAG, describe(shard, "/websocket renewal aborted: " + reason));
+        if (standby != null) {
+            try {
+                standby.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes the websocket /websocket connections
+     */
+    public void disconnectDeviceChannelWS() {
+        DeviceChannelShard[] shards = mShards;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].getMonitor().stop();
+        }
+        for (int i = 0; i < shards.length; i++) {
+            closeDeviceChannelWS(shards[i]);
+        }
+        mFleet.clearRegistrations();
+        mCommandPipeline.returnInFlight("/websocket disconnected");
+    }
+
+    private void closeDeviceChannelWS(DeviceChannelShard shard) {
+        abortStandby(shard, shard.getStandbyGeneration(), "/websocket closed");
+        DeviceChannel deviceChannelWS = shard.getChannel();
+        // Callbacks of the closed socket are ignored from now on
+        shard.setChannel(null, mDeviceChannelGenerations.incrementAndGet());
+        mFleet.clearRegistrations(shard.getIndex());
+        mCommandPipeline.returnInFlight(shard.getIndex(), "/websocket disconnected");
+        if (deviceChannelWS != null) {
+            try {
+                deviceChannelWS.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return true if at least one shard of the device channel is open
+     */
+    public boolean isDeviceChannelWSConnected() {
+        DeviceChannelShard[] shards = mShards;
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i].getChannel() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens the websocket /websocket connections, one per shard, and registers the
+     * devices of each shard on it. They are reconnected and re-registered
+     * automatically until disconnectDeviceChannelWS() is called. Non blocking.
+     */
     public void connectDeviceChannelWS() {
-        createDeviceChannelWebSockets();
+        DeviceChannelShard[] shards;
+        synchronized (this) {
+            shards = mShards;
+            mRing.reset();
+            rebalance(NO_SHARD);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].getMonitor().start();
+            openDeviceChannelWS(shards[i]);
+        }
+    }
+
+    private void openDeviceChannelWS(DeviceChannelShard shard) {
+        closeDeviceChannelWS(shard);
+        int generation = mDeviceChannelGenerations.incrementAndGet();
+        DeviceChannel deviceChannelWS = createDeviceChannel(shard, generation);
+        shard.setChannel(deviceChannelWS, generation);
+        if (deviceChannelWS == null) {
+            onShardLost(shard, "/websocket not created", describe(shard, "mWebSocket could not be created"));
+            return;
+        }
         try {
-            mDeviceChannelWS.connect();
+            deviceChannelWS.connect();
         } catch (IOException e) {
             e.printStackTrace();
+            onShardLost(shard, "/websocket not connected", describe(shard, "mWebSocket connect failed: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Queues a setOn action for the default device.
+     *
+     * @return false if the command queue is full and the command was dropped
+     */
+    public boolean sendOnActionInDeviceChannelWS() {
+        return sendOnActionInDeviceChannelWS(DEVICE_ID);
+    }
+
+    /**
+     * Queues a setOff action for the default device.
+     *
+     * @return false if the command queue is full and the command was dropped
+     */
+    public boolean sendOffActionInDeviceChannelWS() {
+        return sendOffActionInDeviceChannelWS(DEVICE_ID);
+    }
+
+    public boolean sendOnActionInDeviceChannelWS(String deviceId) {
+        return sendAction(deviceId, ACTION_NAME_ON).getStatus() != CommandFuture.Status.REJECTED;
+    }
+
+    public boolean sendOffActionInDeviceChannelWS(String deviceId) {
+        return sendAction(deviceId, ACTION_NAME_OFF).getStatus() != CommandFuture.Status.REJECTED;
+    }
+
+    /**
+     * Accepts an action for a device, whatever the state of the connection. The
+     * command is journaled first; it is queued for sending right away if the device
+     * is registered, and replayed once it gets registered otherwise.
+     *
+     * @return the future completed when the action is acknowledged or dropped
+     */
+    public CommandFuture sendAction(String deviceId, String actionName) {
+        Command command = new Command(mJournal.nextCommandId(), deviceId, actionName);
+        CommandFuture future = command.getFuture();
+        int index = mFleet.indexOf(deviceId);
+        if (index < 0) {
+            future.complete(CommandFuture.Status.FAILED, "unknown device " + deviceId);
+            return future;
         }
+        mJournal.append(command);
+        if (mFleet.isRegistered(index) && mJournal.markSubmitted(command)) {
+            mCommandPipeline.submit(command);
+        }
+        return future;
     }
 
-    public void sendOnActionInDeviceChannelWS() {
-        new sendActionInBackground().execute(ACTION_NAME_ON);
+    /**
+     * Defines or replaces a named group of devices of the fleet, e.g. "floor 3 lights".
+     */
+    public void setGroup(String name, List<String> deviceIds) {
+        for (int i = 0; i < deviceIds.size(); i++) {
+            if (mFleet.indexOf(deviceIds.get(i)) < 0) {
+                throw new IllegalArgumentException(deviceIds.get(i) + " is not part of the fleet");
+            }
+        }
+        synchronized (mGroups) {
+            mGroups.put(name, new ArrayList<>(deviceIds));
+        }
     }
 
-    public void sendOffActionInDeviceChannelWS() {
-        new sendActionInBackground().execute(ACTION_NAME_OFF);
+    public void removeGroup(String name) {
+        synchronized (mGroups) {
+            mGroups.remove(name);
+        }
+    }
+
+    /**
+     * @return the devices of the group, or null if there is no such group
+     */
+    public List<String> getGroup(String name) {
+        synchronized (mGroups) {
+            List<String> deviceIds = mGroups.get(name);
+            return deviceIds == null ? null : new ArrayList<>(deviceIds);
+        }
+    }
+
+    /**
+     * Sends an action to every device of a group, DEFAULT_GROUP_PARALLELISM commands
+     * at a time.
+     */
+    public GroupCommandFuture sendGroupAction(String groupName, String actionName) {
+        return sendGroupAction(groupName, actionName, DEFAULT_GROUP_PARALLELISM);
+    }
+
+    /**
+     * Sends an action to every device of a group, with at most maxParallel of the
+     * commands outstanding at a time.
+     *
+     * @return the future completed when every command completed
+     */
+    public GroupCommandFuture sendGroupAction(String groupName, String actionName, int maxParallel) {
+        List<String> deviceIds = getGroup(groupName);
+        if (deviceIds == null) {
+            throw new IllegalArgumentException("unknown group " + groupName);
+        }
+        GroupCommandFuture future = new GroupCommandFuture(groupName, deviceIds, actionName, maxParallel,
+                mGroupSender);
+        future.start();
+        return future;
+    }
+
+    /**
+     * Sends an action to a group, or to a single device, on a schedule. The schedules
+     * share one timer wheel, so they cost a small node each and no thread or alarm.
+     * The target is resolved when the schedule fires, so the group may change later.
+     *
+     * @param target the name of a group or the id of a device of the fleet
+     * @return the handle to cancel the schedule
+     */
+    public ScheduledAction scheduleAction(CommandSchedule schedule, String target, String actionName) {
+        ScheduledAction action = new ScheduledAction(schedule, target, actionName);
+        armScheduledAction(action);
+        return action;
+    }
+
+    private void armScheduledAction(final ScheduledAction action) {
+        action.arm(mTimerWheel, new Runnable() {
+            @Override
+            public void run() {
+                fireScheduledAction(action, this);
+            }
+        }, System.currentTimeMillis());
+    }
+
+    // Runs on the scheduler thread when the timeout of a schedule expired
+    private void fireScheduledAction(ScheduledAction action, Runnable fire) {
+        long now = System.currentTimeMillis();
+        long fireTime = action.getNextFireTime();
+        if (fireTime < 0) {
+            return;
+        }
+        if (now < fireTime - TIMER_TICK_MS) {
+            // The wall clock was set back since the schedule was armed
+            action.rearm(mTimerWheel, fire, now);
+            return;
+        }
+        String target = action.getTarget();
+        List<String> deviceIds = getGroup(target);
+        if (deviceIds == null && mFleet.indexOf(target) >= 0) {
+            deviceIds = Collections.singletonList(target);
+        }
+        GroupCommandFuture result = null;
+        if (deviceIds == null) {
+            Log.w(TAG, "scheduled " + action + ": no such group or device");
+        } else {
+            Log.d(TAG, "scheduled " + action + ": sending to " + deviceIds.size() + " devices");
+            result = new GroupCommandFuture(target, deviceIds, action.getActionName(), DEFAULT_GROUP_PARALLELISM,
+                    mGroupSender);
+            result.start();
+        }
+        action.onFired(fireTime, result);
+        action.arm(mTimerWheel, fire, now);
+    }
+
+    /**
+     * @return the number of accepted commands not completed yet, sent or not
+     */
+    public int getPendingCommandCount() {
+        return mJournal.getPendingCount();
+    }
+
+    // A frame rejected by the rate limit is sent again, more slowly, instead of failing
+    private boolean onRateLimited(WebSocketError error) {
+        Integer code = error.getCode();
+        if (code == null || code != AdaptiveRateLimiter.RATE_LIMIT_ERROR_CODE || error.getCid() == null) {
+            return false;
+        }
+        ActionBatch batch = mCommandPipeline.onThrottled(error.getCid());
+        if (batch == null) {
+            return false;
+        }
+        mRateLimiter.onThrottled(batch);
+        if (mTrace.isEnabled()) {
+            mTrace.record(TraceRing.THROTTLED, mFleet.indexOf(batch.getDeviceId()), batch.getCid(), batch.getShard());
+        }
+        return true;
+    }
+
+    // The frame did not reach ARTIK Cloud for sure: keep its commands for a replay
+    private void holdCommands(ActionBatch batch) {
+        List<Command> commands = batch.getCommands();
+        for (int i = 0; i < commands.size(); i++) {
+            mJournal.markHeld(commands.get(i));
+        }
+        // The device may have been registered again in the meantime
+        int index = mFleet.indexOf(batch.getDeviceId());
+        mTrace.record(TraceRing.HELD, index, batch.getCid(), batch.getShard());
+        if (index >= 0 && mFleet.isRegistered(index)) {
+            replayHeldCommands(batch.getDeviceId());
+        }
+    }
+
+    /**
+     * Queues the held commands of a device in acceptance order.
+     */
+    private void replayHeldCommands(final String deviceId) {
+        List<Command> commands = mJournal.takeHeld(deviceId);
+        for (int i = 0; i < commands.size(); i++) {
+            if (!mCommandPipeline.offer(commands.get(i))) {
+                for (int j = i; j < commands.size(); j++) {
+                    mJournal.markHeld(commands.get(j));
+                }
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        replayHeldCommands(deviceId);
+                    }
+                }, REPLAY_RETRY_MS, TimeUnit.MILLISECONDS);
+                break;
+            }
+        }
+        if (!commands.isEmpty()) {
+            Log.d(TAG, "replayed " + commands.size() + " commands for " + deviceId);
+        }
+    }
+
+    public int getCommandQueueDepth() {
+        return mCommandPipeline.getQueueDepth();
+    }
+
+    /**
+     * @return the number of frames written to the shard of the device channel and
+     * not acknowledged yet, its lag
+     */
+    public int getActionsInFlight(int shard) {
+        return mCommandPipeline.getInFlight(shard);
+    }
+
+    public int getActionsInFlight() {
+        return mCommandPipeline.getInFlight();
+    }
+
+    /**
+     * @return the bus the session posts MessageOut, Acknowledgement and ConnectionEvent to
+     */
+    public EventBus getEventBus() {
+        return mEventBus;
+    }
+
+    /**
+     * @return the health monitors of the endpoint, with their reconnect count and
+     * downtime: one per shard of the device channel pool
+     */
+    public List<ConnectionMonitor> getConnectionMonitors(ConnectionEvent.Endpoint endpoint) {
+        if (endpoint == ConnectionEvent.Endpoint.LIVE) {
+            return Collections.singletonList(mFirehoseMonitor);
+        }
+        DeviceChannelShard[] shards = mShards;
+        List<ConnectionMonitor> monitors = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            monitors.add(shards[i].getMonitor());
+        }
+        return monitors;
+    }
+
+    /**
+     * @return the latest connection event of the endpoint, or null if it never connected
+     */
+    public ConnectionEvent getLastConnectionEvent(ConnectionEvent.Endpoint endpoint) {
+        synchronized (mLastConnectionEvents) {
+            return mLastConnectionEvents[endpoint.ordinal()];
+        }
+    }
+
+    private void postConnectionEvent(ConnectionEvent event) {
+        if (event.getKind() != ConnectionEvent.Kind.MESSAGE) {
+            synchronized (mLastConnectionEvents) {
+                mLastConnectionEvents[event.getEndpoint().ordinal()] = event;
+            }
+        }
+        mEventBus.post(event);
+    }
+
+    /**
+     * @return the latest state of every device, indexed like getFleet()
+     */
+    public DeviceStateStore getStateStore() {
+        return mStateStore;
+    }
+
+    /**
+     * @return the recent state changes of the devices, indexed like the fleet
+     */
+    public StateHistory getStateHistory() {
+        return mStateHistory;
+    }
+
+    public LatencyStats getLatencyStats() {
+        return mLatencyStats;
+    }
+
+    /**
+     * @return the trace of the message, send and ack paths, disabled until setEnabled(true)
+     */
+    public TraceRing getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * @return the events of the trace as CSV, with the ids of their devices
+     */
+    public String exportTrace() {
+        return mTrace.export(mFleet);
+    }
+
+    /**
+     * @return the number of /live messages dropped because they were received already
+     */
+    public int getDuplicateMessageCount() {
+        return mDuplicateMessages.get();
+    }
+
+    /**
+     * @return the number of /live messages dropped because their device had sent a
+     * more recent one
+     */
+    public int getStaleMessageCount() {
+        return mStaleMessages.get();
+    }
+
+    /**
+     * @return the limiter pacing the action frames after rate limit errors
+     */
+    public AdaptiveRateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    public CommandPipeline getCommandPipeline() {
+        return mCommandPipeline;
+    }
+
+    /**
+     * Sets how many frames may be written on the device channel before their acks arrive.
+     */
+    public void setMaxActionsInFlight(int maxActionsInFlight) {
+        mCommandPipeline.setMaxInFlight(maxActionsInFlight);
+    }
+
+    /**
+     * Sets how long a frame may stay unacknowledged before its commands time out.
+     */
+    public void setAckTimeout(long timeoutMs) {
+        mCommandPipeline.setAckTimeout(timeoutMs);
+    }
+
+    /**
+     * Sets the window within which rapid commands are collapsed (last write wins per
+     * device) and batched into one frame.
+     */
+    public void setCoalescingWindow(long windowMs) {
+        mCommandPipeline.setCoalescingWindow(windowMs);
     }
 
     /*
-     * Example of Action sent to ARTIK Cloud over /websocket endpoint
+     * Example of Action sent to ARTIK Cloud over /websocket endpoint.
+     * A batch of coalesced commands is sent as one frame with several actions; the
+     * cid is the id of the batch, echoed back in the ack of the frame.
      *  {
-        cid:  setOff
+        type:  action
+        cid:  "4217"
         data:  {
                  actions: [
                             {
                               name:  setOff
-                              parameter: {}
                             }
                           ]
                }
         ddid:  fde8715961f84798a841be23480b8ce5
-        sdid:  null
         ts:   1451606965889
         }
      *
      */
-    private void sendActionInDeviceChannelWS(String actionName) {
+    // Package visible for the benchmarks of the send path
+    void sendActionInDeviceChannelWS(ActionBatch batch) throws IOException {
+        int index = mFleet.indexOf(batch.getDeviceId());
+        if (index < 0) {
+            throw new IOException(batch.getDeviceId() + " is not registered");
+        }
+        // setDeviceChannelShards() replaces the pool before it reassigns the devices: a
+        // device of a removed shard is held, and replayed once registered on its new one
+        DeviceChannelShard[] shards = mShards;
+        int shardIndex = mFleet.getShard(index);
+        if (shardIndex >= shards.length) {
+            throw new IOException(batch.getDeviceId() + " is moving to another shard");
+        }
+        DeviceChannelShard shard = shards[shardIndex];
+        DeviceChannel channel = shard.getChannel();
+        if (channel == null) {
+            throw new IOException("/websocket is not connected");
+        }
+        if (!mFleet.isRegistered(index)) {
+            throw new IOException(batch.getDeviceId() + " is not registered");
+        }
+        batch.setShard(shard.getIndex());
+        if (channel instanceof TextFrameChannel) {
+            // Allocation free: the frame is patched from pre-encoded templates
+            int length = mActionEncoder.encode(batch, System.currentTimeMillis());
+            ((TextFrameChannel) channel).sendText(mActionEncoder.getBuffer(), length);
+            mLatencyStats.onSent(batch);
+            shard.onSent();
+            mTrace.record(TraceRing.SENT, index, batch.getCid(), shard.getIndex());
+            return;
+        }
+
         ActionIn actionIn = new ActionIn();
-        ActionDetails action = new ActionDetails();
-        ArrayList<ActionDetails> actions = new ArrayList<>();
+        List<Command> commands = batch.getCommands();
+        ArrayList<ActionDetails> actions = new ArrayList<>(commands.size());
         ActionDetailsArray actionDetailsArray = new ActionDetailsArray();
 
-        action.setName(actionName);
-        actions.add(action);
+        for (int i = 0; i < commands.size(); i++) {
+            ActionDetails action = new ActionDetails();
+            action.setName(commands.get(i).getActionName());
+            actions.add(action);
+        }
         actionDetailsArray.setActions(actions);
         actionIn.setData(actionDetailsArray);
-        actionIn.setCid(actionName);
-        actionIn.setDdid(DEVICE_ID);
+        actionIn.setCid(batch.getCidString());
+        actionIn.setDdid(batch.getDeviceId());
         actionIn.setTs(System.currentTimeMillis());
 
-        try {
-            mDeviceChannelWS.sendAction(actionIn);
-            Log.d(TAG, "DeviceChannelWebSocket sendAction:" + actionIn.toString());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-    }
-
-    class sendActionInBackground extends AsyncTask<String, Void, Void> {
-        final static String TAG = "sendActionInBackground";
-        @Override
-        protected Void doInBackground(String... actionName) {
-            try {
-                sendActionInDeviceChannelWS(actionName[0]);
-            } catch (Exception e) {
-                Log.v(TAG, "::doInBackground run into Exception");
-                e.printStackTrace();
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void result) {
-            // Do nothing!
-        }
+        channel.sendAction(actionIn);
+        mLatencyStats.onSent(batch);
+        shard.onSent();
+        mTrace.record(TraceRing.SENT, index, batch.getCid(), shard.getIndex());
     }
 
-
 }
\ No newline at end of file
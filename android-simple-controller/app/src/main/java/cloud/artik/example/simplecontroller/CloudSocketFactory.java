@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import cloud.artik.websocket.ArtikCloudWebSocketCallback;
+
+/**
+ * Creates the websocket connections of a session, so the session does not depend on
+ * which client implementation or which server it talks to.
+ */
+public interface CloudSocketFactory {
+    /**
+     * Creates a /live connection. The filter parameters are the ones of the SDK
+     * FirehoseWebSocket; null parameters are not sent.
+     */
+    CloudSocket createFirehose(String accessToken, String sdid, String sdids, String sdtid, String uid,
+                               ArtikCloudWebSocketCallback callback) throws URISyntaxException, IOException;
+
+    DeviceChannel createDeviceChannel(boolean ack, ArtikCloudWebSocketCallback callback)
+            throws URISyntaxException, IOException;
+}
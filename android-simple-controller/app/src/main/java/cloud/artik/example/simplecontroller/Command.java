@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+/**
+ * An action requested for one device, e.g. setOn for a light.
+ *
+ * The id identifies the command in the CommandJournal; it stays the same when the
+ * command is replayed after a reconnect or a restart.
+ */
+public class Command {
+    private final long mId;
+    private final String mDeviceId;
+    private final String mActionName;
+    private final CommandFuture mFuture;
+    private final long mCreatedAtNanos = System.nanoTime();
+    // Wall clock time, kept across restarts by the journal
+    private final long mAcceptedAtMillis;
+
+    public Command(long id, String deviceId, String actionName) {
+        this(id, deviceId, actionName, System.currentTimeMillis());
+    }
+
+    public Command(long id, String deviceId, String actionName, long acceptedAtMillis) {
+        mId = id;
+        mDeviceId = deviceId;
+        mActionName = actionName;
+        mAcceptedAtMillis = acceptedAtMillis;
+        mFuture = new CommandFuture(id);
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public long getCreatedAtNanos() {
+        return mCreatedAtNanos;
+    }
+
+    public long getAcceptedAtMillis() {
+        return mAcceptedAtMillis;
+    }
+
+    public CommandFuture getFuture() {
+        return mFuture;
+    }
+
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    public String getActionName() {
+        return mActionName;
+    }
+
+    @Override
+    public String toString() {
+        return mActionName + "@" + mDeviceId + "#" + mId;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses the commands collected during one coalescing window and packs the
+ * survivors into multi-action frames.
+ *
+ * Commands for the same device whose actions are in the same conflict group (setOn
+ * and setOff both set the power state) are last-write-wins: only the latest one is
+ * sent. The remaining actions of a device are batched into frames of at most
+ * maxActionsPerFrame actions.
+ */
+public class CommandCoalescer {
+    private final Map<String, String> mConflictGroups = new HashMap<>();
+    private final int mMaxActionsPerFrame;
+
+    public CommandCoalescer(int maxActionsPerFrame) {
+        mMaxActionsPerFrame = maxActionsPerFrame;
+    }
+
+    /**
+     * Declares that the given actions overwrite each other, e.g. setOn and setOff.
+     * Actions without a group only conflict with themselves.
+     */
+    public synchronized void addConflictGroup(String group, String... actionNames) {
+        for (String actionName : actionNames) {
+            mConflictGroups.put(actionName, group);
+        }
+    }
+
+    /**
+     * @param commands commands in submission order
+     * @param superseded receives the commands that were overwritten by a later one
+     * @return the frames to send, in order of the first command of each device
+     */
+    public synchronized List<ActionBatch> coalesce(List<Command> commands, List<Command> superseded) {
+        Map<String, LinkedHashMap<String, Command>> latestByDevice = new LinkedHashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            Command command = commands.get(i);
+            LinkedHashMap<String, Command> latest = latestByDevice.get(command.getDeviceId());
+            if (latest == null) {
+                latest = new LinkedHashMap<>();
+                latestByDevice.put(command.getDeviceId(), latest);
+            }
+            Command previous = latest.put(conflictKey(command.getActionName()), command);
+            if (previous != null) {
+                superseded.add(previous);
+            }
+        }
+
+        List<ActionBatch> batches = new ArrayList<>();
+        for (Map.Entry<String, LinkedHashMap<String, Command>> entry : latestByDevice.entrySet()) {
+            ActionBatch batch = null;
+            for (Command command : entry.getValue().values()) {
+                if (batch == null || batch.size() >= mMaxActionsPerFrame) {
+                    batch = new ActionBatch(entry.getKey());
+                    batches.add(batch);
+                }
+                batch.add(command);
+            }
+        }
+        return batches;
+    }
+
+    private String conflictKey(String actionName) {
+        String group = mConflictGroups.get(actionName);
+        return group == null ? actionName : group;
+    }
+}
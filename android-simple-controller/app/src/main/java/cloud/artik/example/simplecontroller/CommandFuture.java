@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of one command, completed when ARTIK Cloud acknowledges the frame the
+ * command was sent in, or when the command is dropped.
+ */
+public class CommandFuture {
+    public enum Status {
+        PENDING,
+        // The frame carrying the command was acknowledged
+        ACKED,
+        // A later command for the same device overwrote it before it was sent
+        SUPERSEDED,
+        // The command queue was full
+        REJECTED,
+        // ARTIK Cloud answered with an error
+        FAILED,
+        // No ack arrived within the ack timeout
+        TIMED_OUT
+    }
+
+    public interface Listener {
+        void onComplete(CommandFuture future);
+    }
+
+    private final long mCommandId;
+    private Status mStatus = Status.PENDING;
+    private String mError = null;
+    private List<Listener> mListeners = null;
+
+    CommandFuture(long commandId) {
+        mCommandId = commandId;
+    }
+
+    public long getCommandId() {
+        return mCommandId;
+    }
+
+    /**
+     * @return false if the future was already completed
+     */
+    boolean complete(Status status, String error) {
+        List<Listener> listeners;
+        synchronized (this) {
+            if (mStatus != Status.PENDING) {
+                return false;
+            }
+            mStatus = status;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onComplete(this);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a listener called on the completing thread, or right away if the command
+     * is already done.
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (mStatus == Status.PENDING) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<>(1);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    public synchronized boolean isDone() {
+        return mStatus != Status.PENDING;
+    }
+
+    public synchronized Status getStatus() {
+        return mStatus;
+    }
+
+    public synchronized String getError() {
+        return mError;
+    }
+
+    /**
+     * Waits up to timeoutMs for the command to complete.
+     *
+     * @return the status, PENDING if the timeout elapsed first
+     */
+    public synchronized Status await(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while (mStatus == Status.PENDING && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return mStatus;
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only on-disk log of the commands that were accepted but not completed yet.
+ *
+ * A command is appended when it is accepted, whatever the state of the connection,
+ * and marked done when its future completes. Records are buffered and synced to
+ * disk in groups (every SYNC_INTERVAL_MS or SYNC_BATCH_RECORDS records) on the
+ * scheduler, so accepting a command never waits for the disk.
+ *
+ * A pending command is either held (waiting for its device to be registered) or
+ * submitted (queued or in flight in the CommandPipeline). Commands that come back
+ * unsent, e.g. because the channel closed, are held again and replayed in order by
+ * takeHeld() once the device is registered. Commands are keyed by id, so a command
+ * is never held or replayed twice. On open, the pending commands of the previous
+ * run are loaded back as held and the file is compacted; commands accepted more
+ * than MAX_REPLAY_AGE_MS ago are dropped instead, a light should not turn on
+ * because it was tapped yesterday.
+ *
+ * Record format: type byte, command id, then for ACCEPTED the device id, action
+ * name and acceptance time. A torn record at the end of the file is ignored.
+ */
+public class CommandJournal {
+    private static final String TAG = CommandJournal.class.getSimpleName();
+
+    private static final byte ACCEPTED = 'A';
+    private static final byte DONE = 'D';
+
+    private static final long SYNC_INTERVAL_MS = 50;
+    private static final int SYNC_BATCH_RECORDS = 64;
+    // The file is rewritten with only the pending commands once it holds this many records
+    private static final int COMPACT_THRESHOLD_RECORDS = 4096;
+    // Older pending commands of the previous run are not replayed
+    static final long MAX_REPLAY_AGE_MS = 10 * 60 * 1000;
+
+    private final ScheduledExecutorService mScheduler;
+    private final Map<Long, Command> mPending = new LinkedHashMap<>();
+    private final Set<Long> mHeld = new HashSet<>();
+    private File mFile = null;
+    private FileOutputStream mFileStream = null;
+    private DataOutputStream mOut = null;
+    private int mUnsyncedRecords = 0;
+    private int mRecordsInFile = 0;
+    private boolean mSyncScheduled = false;
+    private boolean mSyncNow = false;
+    private long mNextId;
+
+    // Drops a command from the journal once it completed, whatever the outcome
+    private final CommandFuture.Listener mCompletion = new CommandFuture.Listener() {
+        @Override
+        public void onComplete(CommandFuture future) {
+            markDone(future.getCommandId());
+        }
+    };
+
+    private final Runnable mSyncTask = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    public CommandJournal(ScheduledExecutorService scheduler) {
+        mScheduler = scheduler;
+        // Unique across restarts without reading the file first
+        mNextId = System.currentTimeMillis() * 1000;
+    }
+
+    /**
+     * Loads the pending commands of the previous run and starts persisting to the file.
+     * Until then the journal only keeps the commands in memory.
+     */
+    public synchronized void open(File file) {
+        if (mFile != null) {
+            return;
+        }
+        List<Command> restored = new ArrayList<>();
+        if (file.exists()) {
+            load(file, restored);
+        }
+        long oldest = System.currentTimeMillis() - MAX_REPLAY_AGE_MS;
+        int expired = 0;
+        for (int i = 0; i < restored.size(); i++) {
+            Command command = restored.get(i);
+            mNextId = Math.max(mNextId, command.getId() + 1);
+            if (command.getAcceptedAtMillis() < oldest) {
+                expired++;
+            } else if (!mPending.containsKey(command.getId())) {
+                mPending.put(command.getId(), command);
+                mHeld.add(command.getId());
+                command.getFuture().addListener(mCompletion);
+            }
+        }
+        mFile = file;
+        try {
+            List<Command> snapshot = new ArrayList<>(mPending.values());
+            File tmp = tmpFile();
+            writeSnapshot(tmp, snapshot);
+            replace(tmp, snapshot);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot write " + file, e);
+            mOut = null;
+        }
+        Log.d(TAG, "restored " + (restored.size() - expired) + " pending commands, " + expired + " expired");
+    }
+
+    public synchronized long nextCommandId() {
+        return mNextId++;
+    }
+
+    /**
+     * Journals a newly accepted command as held. It is dropped from the journal when
+     * its future completes.
+     */
+    public synchronized void append(Command command) {
+        if (mPending.containsKey(command.getId())) {
+            return;
+        }
+        mPending.put(command.getId(), command);
+        mHeld.add(command.getId());
+        writeAccepted(command);
+        command.getFuture().addListener(mCompletion);
+    }
+
+    /**
+     * Marks a held command as handed over to the pipeline.
+     *
+     * @return false if the command is not held (unknown, done, or already submitted)
+     */
+    public synchronized boolean markSubmitted(Command command) {
+        return mHeld.remove(command.getId());
+    }
+
+    /**
+     * Holds a submitted command again, e.g. because its frame could not be written.
+     */
+    public synchronized void markHeld(Command command) {
+        if (mPending.containsKey(command.getId())) {
+            mHeld.add(command.getId());
+        }
+    }
+
+    /**
+     * Takes a held command out of the replay, e.g. before failing it.
+     *
+     * @return false if the command is not held (unknown, done, or already submitted)
+     */
+    public synchronized boolean unhold(long commandId) {
+        return mHeld.remove(commandId);
+    }
+
+    public synchronized boolean isHeld(long commandId) {
+        return mHeld.contains(commandId);
+    }
+
+    public synchronized void markDone(long commandId) {
+        if (mPending.remove(commandId) == null) {
+            return;
+        }
+        mHeld.remove(commandId);
+        writeDone(commandId);
+    }
+
+    /**
+     * Takes the held commands of a device, in acceptance order, and marks them submitted.
+     */
+    public synchronized List<Command> takeHeld(String deviceId) {
+        List<Command> commands = new ArrayList<>();
+        if (mHeld.isEmpty()) {
+            return commands;
+        }
+        for (Command command : mPending.values()) {
+            if (command.getDeviceId().equals(deviceId) && mHeld.remove(command.getId())) {
+                commands.add(command);
+            }
+        }
+        return commands;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    public synchronized int getHeldCount() {
+        return mHeld.size();
+    }
+
+    /**
+     * Flushes the buffered records and syncs them to disk, then compacts the file if it
+     * grew too big. Only called on the scheduler, which is thus the only thread replacing
+     * the file; the journal is not locked during the fsyncs, so commands can be accepted
+     * meanwhile.
+     */
+    void sync() {
+        syncFile();
+        List<Command> snapshot;
+        File tmp;
+        synchronized (this) {
+            if (mOut == null || mRecordsInFile < COMPACT_THRESHOLD_RECORDS || mRecordsInFile <= 2 * mPending.size()) {
+                return;
+            }
+            snapshot = new ArrayList<>(mPending.values());
+            tmp = tmpFile();
+        }
+        try {
+            writeSnapshot(tmp, snapshot);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot compact " + mFile, e);
+            return;
+        }
+        synchronized (this) {
+            try {
+                replace(tmp, snapshot);
+            } catch (IOException e) {
+                Log.e(TAG, "cannot compact " + mFile, e);
+                return;
+            }
+        }
+        // The records written again for the commands accepted or done meanwhile
+        syncFile();
+    }
+
+    private void syncFile() {
+        FileOutputStream stream;
+        synchronized (this) {
+            mSyncScheduled = false;
+            mSyncNow = false;
+            if (mOut == null || mUnsyncedRecords == 0) {
+                return;
+            }
+            try {
+                mOut.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "cannot sync " + mFile, e);
+                return;
+            }
+            stream = mFileStream;
+            mUnsyncedRecords = 0;
+        }
+        try {
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "cannot sync " + mFile, e);
+        }
+    }
+
+    private void writeAccepted(Command command) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.writeByte(ACCEPTED);
+            mOut.writeLong(command.getId());
+            mOut.writeUTF(command.getDeviceId());
+            mOut.writeUTF(command.getActionName());
+            mOut.writeLong(command.getAcceptedAtMillis());
+            onRecordWritten();
+        } catch (IOException e) {
+            Log.e(TAG, "cannot journal " + command, e);
+        }
+    }
+
+    private void writeDone(long commandId) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.writeByte(DONE);
+            mOut.writeLong(commandId);
+            onRecordWritten();
+        } catch (IOException e) {
+            Log.e(TAG, "cannot journal completion of " + commandId, e);
+        }
+    }
+
+    private void onRecordWritten() {
+        mRecordsInFile++;
+        mUnsyncedRecords++;
+        if (mUnsyncedRecords >= SYNC_BATCH_RECORDS) {
+            // A full batch is synced right away, still off the calling thread
+            if (!mSyncNow) {
+                mSyncNow = true;
+                mScheduler.execute(mSyncTask);
+            }
+        } else if (!mSyncScheduled) {
+            mSyncScheduled = true;
+            mScheduler.schedule(mSyncTask, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private File tmpFile() {
+        return new File(mFile.getPath() + ".tmp");
+    }
+
+    // Writes one ACCEPTED record per command to the file and syncs it, without the lock
+    private static void writeSnapshot(File file, List<Command> commands) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try {
+            for (int i = 0; i < commands.size(); i++) {
+                Command command = commands.get(i);
+                out.writeByte(ACCEPTED);
+                out.writeLong(command.getId());
+                out.writeUTF(command.getDeviceId());
+                out.writeUTF(command.getActionName());
+                out.writeLong(command.getAcceptedAtMillis());
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replaces the file with the snapshot written by writeSnapshot(), then journals again
+     * the commands accepted or done since the snapshot was taken. Called with the lock
+     * held; until the rename succeeds, records keep going to the current file.
+     */
+    private void replace(File tmp, List<Command> snapshot) throws IOException {
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("cannot replace " + mFile);
+        }
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Whatever it still held is written again below
+                Log.w(TAG, "cannot close the replaced " + mFile, e);
+            }
+        }
+            mOut = null;
+        mFileStream = new FileOutputStream(mFile, true);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileStream));
+        mRecordsInFile = snapshot.size();
+        mUnsyncedRecords = 0;
+        Set<Long> snapshotIds = new HashSet<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            long id = snapshot.get(i).getId();
+            snapshotIds.add(id);
+            if (!mPending.containsKey(id)) {
+                writeDone(id);
+            }
+        }
+        for (Command command : mPending.values()) {
+            if (!snapshotIds.contains(command.getId())) {
+                writeAccepted(command);
+            }
+        }
+    }
+
+    private static void load(File file, List<Command> restored) {
+        Map<Long, Command> pending = new LinkedHashMap<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                byte type = in.readByte();
+                long id = in.readLong();
+                if (type == ACCEPTED) {
+                    String deviceId = in.readUTF();
+                    String actionName = in.readUTF();
+                    long acceptedAt = in.readLong();
+                    if (!pending.containsKey(id)) {
+                        pending.put(id, new Command(id, deviceId, actionName, acceptedAt));
+                    }
+                } else if (type == DONE) {
+                    pending.remove(id);
+                } else {
+                    Log.w(TAG, "corrupt record in " + file + ", ignoring the rest");
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // End of the file, possibly in the middle of a torn record
+        } catch (IOException e) {
+            Log.e(TAG, "cannot read " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        restored.addAll(pending.values());
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends commands over the device channel from one dedicated thread.
+ *
+ * Commands are accepted into a bounded queue; submit() returns false instead of
+ * blocking when the queue is full, so the caller sees the backpressure. The sender
+ * thread collects the commands arriving within the coalescing window, lets the
+ * CommandCoalescer collapse and batch them, and writes up to maxInFlight frames
+ * without waiting for their acks. It only stalls once that window is full.
+ *
+ * Every frame gets a unique numeric cid and is kept in the InFlightTable until its
+ * ack (or error) arrives, or until it times out. Frames that could not be written,
+ * or whose channel closed before the ack, are handed back to the Sender without
+ * completing their commands, so they can be replayed.
+ *
+ * An optional Throttle paces the frames. A frame it holds back waits in the ready
+ * list while the frames of other devices go ahead; frames of one device keep their
+ * order. Frames ARTIK Cloud rejected for exceeding its rate limit are retried ahead
+ * of the others instead of failing their commands. New commands are only taken from
+ * the queue while the ready list is short, so a throttled pipeline still pushes
+ * back on submit().
+ */
+public class CommandPipeline {
+    private static final String TAG = CommandPipeline.class.getSimpleName();
+
+    // How often stale in-flight frames are looked for while the sender is idle
+    private static final long SWEEP_INTERVAL_MS = 500;
+
+    public interface Throttle {
+        /**
+         * Takes what sending the frame costs if it may be sent now.
+         *
+         * @return 0 if the frame may be sent now, else the ns to wait before asking again
+         */
+        long tryAcquire(ActionBatch batch);
+    }
+
+    public interface Sender {
+        void send(ActionBatch batch) throws IOException;
+
+        /**
+         * Called with a frame that was not written, or not acknowledged before its
+         * channel went away. The futures of its commands are still pending.
+         */
+        void onNotSent(ActionBatch batch, String reason);
+    }
+
+    private final BlockingQueue<Command> mQueue;
+    private final InFlightTable mInFlight;
+    private final Sender mSender;
+    private final CommandCoalescer mCoalescer;
+    private final AtomicLong mNextCid = new AtomicLong(1);
+    private volatile long mCoalescingWindowMs = 0;
+    private volatile long mAckTimeoutMs = 10000;
+    private volatile int mSupersededCount = 0;
+    private volatile int mTimedOutCount = 0;
+    private final AtomicInteger mThrottledCount = new AtomicInteger();
+    private volatile Throttle mThrottle = null;
+    private Thread mThread = null;
+    // Frames waiting for the throttle, oldest first; only used by the sender thread
+    private final List<ActionBatch> mReady = new ArrayList<>();
+    private final Set<String> mHeldBackDevices = new HashSet<>();
+    private final int mMaxReady;
+    private long mReadyWaitNanos = 0;
+    // Frames rejected by the rate limit of ARTIK Cloud, to send again
+    private final Queue<ActionBatch> mRetries = new ConcurrentLinkedQueue<>();
+
+    public CommandPipeline(int queueCapacity, int maxInFlight, CommandCoalescer coalescer,
+                           Sender sender) {
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mMaxReady = queueCapacity;
+        mInFlight = new InFlightTable(maxInFlight);
+        mCoalescer = coalescer;
+        mSender = sender;
+    }
+
+    /**
+     * Sets how long the sender waits after the first queued command for more commands
+     * to coalesce with it. 0 sends immediately and only coalesces what is already queued.
+     */
+    public void setCoalescingWindow(long windowMs) {
+        mCoalescingWindowMs = windowMs;
+    }
+
+    /**
+     * Sets how many frames may be written before their acks arrive.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        mInFlight.setMaxOutstanding(maxInFlight);
+    }
+
+    /**
+     * Sets how long a frame may stay unacknowledged before its commands time out.
+     */
+    public void setAckTimeout(long timeoutMs) {
+        mAckTimeoutMs = timeoutMs;
+    }
+
+    public long getAckTimeout() {
+        return mAckTimeoutMs;
+    }
+
+    /**
+     * Paces the frames, null to send them as fast as the in-flight window allows.
+     */
+    public void setThrottle(Throttle throttle) {
+        mThrottle = throttle;
+    }
+
+    /**
+     * @return the number of frames ARTIK Cloud rejected for exceeding its rate limit
+     */
+    public int getThrottledCount() {
+        return mThrottledCount.get();
+    }
+
+    /**
+     * @return the number of commands dropped because a later command overwrote them
+     */
+    public int getSupersededCount() {
+        return mSupersededCount;
+    }
+
+    /**
+     * @return the number of frames that were not acknowledged within the ack timeout
+     */
+    public int getTimedOutCount() {
+        return mTimedOutCount;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "command-pipeline");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * @return false if the queue is full and the command was rejected. The future
+     * of a rejected command is completed with REJECTED.
+     */
+    public boolean submit(Command command) {
+        if (mQueue.offer(command)) {
+            return true;
+        }
+        command.getFuture().complete(CommandFuture.Status.REJECTED, "command queue is full");
+        return false;
+    }
+
+    /**
+     * Like submit(), but leaves the future of a command that did not fit pending.
+     */
+    public boolean offer(Command command) {
+        return mQueue.offer(command);
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getInFlight() {
+        return mInFlight.size();
+    }
+
+    /**
+     * @return the number of frames written to the shard and not acknowledged yet
+     */
+    public int getInFlight(int shard) {
+        return mInFlight.sizeOfShard(shard);
+    }
+
+    /**
+     * Completes the frame acknowledged with this cid. Cids that were not issued by
+     * the pipeline, such as registration cids, are ignored.
+     *
+     * @return the acknowledged frame, or null if the cid does not belong to an
+     * in-flight frame
+     */
+    public ActionBatch onAck(String cid) {
+        ActionBatch batch = mInFlight.remove(InFlightTable.parseCid(cid));
+        if (batch != null) {
+            batch.complete(CommandFuture.Status.ACKED, null);
+        }
+        return batch;
+    }
+
+    /**
+     * Fails the frame ARTIK Cloud answered with an error.
+     *
+     * @return false if the cid does not belong to an in-flight frame
+     */
+    public boolean onError(String cid, String error) {
+        ActionBatch batch = mInFlight.remove(InFlightTable.parseCid(cid));
+        if (batch == null) {
+            return false;
+        }
+        batch.complete(CommandFuture.Status.FAILED, error);
+        return true;
+    }
+
+    /**
+     * Sends the frame ARTIK Cloud rejected for exceeding its rate limit again, before
+     * the frames that are not sent yet, without completing its commands.
+     *
+     * @return the frame, or null if the cid does not belong to an in-flight frame
+     */
+    public ActionBatch onThrottled(String cid) {
+        ActionBatch batch = mInFlight.remove(InFlightTable.parseCid(cid));
+        if (batch != null) {
+            mThrottledCount.incrementAndGet();
+            mRetries.add(batch);
+        }
+        return batch;
+    }
+
+    /**
+     * Hands every outstanding frame back to the Sender, e.g. after the device channel
+     * closed: whether they reached the devices is unknown.
+     */
+    public void returnInFlight(String reason) {
+        List<ActionBatch> removed = new ArrayList<>();
+        mInFlight.clear(removed);
+        for (int i = 0; i < removed.size(); i++) {
+            mSender.onNotSent(removed.get(i), reason);
+        }
+    }
+
+    /**
+     * Hands the outstanding frames written to one shard of the device channel pool
+     * back to the Sender, after that connection closed.
+     */
+    public void returnInFlight(int shard, String reason) {
+        List<ActionBatch> removed = new ArrayList<>();
+        mInFlight.clearShard(shard, removed);
+        for (int i = 0; i < removed.size(); i++) {
+            mSender.onNotSent(removed.get(i), reason);
+        }
+    }
+
+    private void drainLoop() {
+        List<Command> commands = new ArrayList<>();
+        List<Command> superseded = new ArrayList<>();
+        List<ActionBatch> expired = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long waitNanos = !mRetries.isEmpty() ? 0
+                        : mReady.isEmpty() ? TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS)
+                        : Math.min(mReadyWaitNanos, TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS));
+                Command first = null;
+                if (mReady.size() < mMaxReady) {
+                    first = mQueue.poll(waitNanos, TimeUnit.NANOSECONDS);
+                } else {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                expireStale(expired);
+                takeRetries();
+                if (first != null) {
+                    commands.add(first);
+                    collectWindow(commands);
+                    mReady.addAll(mCoalescer.coalesce(commands, superseded));
+                    for (int i = 0; i < superseded.size(); i++) {
+                        superseded.get(i).getFuture().complete(CommandFuture.Status.SUPERSEDED, null);
+                    }
+                    mSupersededCount += superseded.size();
+                    commands.clear();
+                    superseded.clear();
+                }
+                sendReady(expired);
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "command pipeline stopped");
+        }
+    }
+
+    // Retried frames go first, they are older than every frame of their device still
+    // in the ready list
+    private void takeRetries() {
+        if (mRetries.isEmpty()) {
+            return;
+        }
+        List<ActionBatch> retries = new ArrayList<>();
+        ActionBatch batch;
+        while ((batch = mRetries.poll()) != null) {
+            retries.add(batch);
+        }
+        mReady.addAll(0, retries);
+    }
+
+    // Sends the ready frames the throttle lets through, keeping the others in order
+    private void sendReady(List<ActionBatch> expired) throws InterruptedException {
+        Throttle throttle = mThrottle;
+        int kept = 0;
+        mReadyWaitNanos = Long.MAX_VALUE;
+        mHeldBackDevices.clear();
+        for (int i = 0; i < mReady.size(); i++) {
+            ActionBatch batch = mReady.get(i);
+            long waitNanos = 0;
+            if (mHeldBackDevices.contains(batch.getDeviceId())) {
+                waitNanos = mReadyWaitNanos;
+            } else if (throttle != null) {
+                waitNanos = throttle.tryAcquire(batch);
+            }
+            if (waitNanos > 0) {
+                mHeldBackDevices.add(batch.getDeviceId());
+                mReadyWaitNanos = Math.min(mReadyWaitNanos, waitNanos);
+                mReady.set(kept++, batch);
+                continue;
+            }
+            while (!mInFlight.awaitSlot(SWEEP_INTERVAL_MS)) {
+                expireStale(expired);
+            }
+            sendOne(batch);
+        }
+        mReady.subList(kept, mReady.size()).clear();
+    }
+
+    private void collectWindow(List<Command> commands) throws InterruptedException {
+        long windowMs = mCoalescingWindowMs;
+        if (windowMs > 0) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                Command command = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (command == null) {
+                    break;
+                }
+                commands.add(command);
+            }
+        }
+        mQueue.drainTo(commands);
+    }
+
+    private void expireStale(List<ActionBatch> expired) {
+        long sentBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(mAckTimeoutMs);
+        mInFlight.expire(sentBefore, expired);
+        for (int i = 0; i < expired.size(); i++) {
+            Log.w(TAG, "no ack for cid " + expired.get(i).getCid());
+            expired.get(i).complete(CommandFuture.Status.TIMED_OUT, null);
+        }
+        mTimedOutCount += expired.size();
+        expired.clear();
+    }
+
+    private void sendOne(ActionBatch batch) {
+        long cid = mNextCid.getAndIncrement();
+        batch.markSent(cid, System.nanoTime());
+        mInFlight.put(cid, batch);
+        try {
+            mSender.send(batch);
+        } catch (Exception e) {
+            Log.w(TAG, "failed to send " + batch + ": " + e.getMessage());
+            if (mInFlight.remove(cid) != null) {
+                mSender.onNotSent(batch, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.Calendar;
+
+/**
+ * When a scheduled action fires: once at a given time, every day at a given local
+ * time, or at a fixed interval.
+ */
+public class CommandSchedule {
+    public enum Kind {
+        ONCE,
+        DAILY,
+        INTERVAL
+    }
+
+    private final Kind mKind;
+    // ONCE: ms since the epoch, DAILY: minute of the day, INTERVAL: ms
+    private final long mValue;
+
+    private CommandSchedule(Kind kind, long value) {
+        mKind = kind;
+        mValue = value;
+    }
+
+    /**
+     * @param atMillis ms since the epoch; a time in the past fires right away
+     */
+    public static CommandSchedule once(long atMillis) {
+        return new CommandSchedule(Kind.ONCE, atMillis);
+    }
+
+    /**
+     * Every day at hourOfDay:minute local time, e.g. daily(23, 0) for "all off at 23:00".
+     */
+    public static CommandSchedule daily(int hourOfDay, int minute) {
+        if (hourOfDay < 0 || hourOfDay > 23 || minute < 0 || minute > 59) {
+            throw new IllegalArgumentException("invalid time " + hourOfDay + ":" + minute);
+        }
+        return new CommandSchedule(Kind.DAILY, hourOfDay * 60 + minute);
+    }
+
+    public static CommandSchedule every(long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("invalid interval " + intervalMs);
+        }
+        return new CommandSchedule(Kind.INTERVAL, intervalMs);
+    }
+
+    public Kind getKind() {
+        return mKind;
+    }
+
+    public boolean isRecurring() {
+        return mKind != Kind.ONCE;
+    }
+
+    /**
+     * @param nowMillis    the current time
+     * @param lastFireTime when the schedule last fired, 0 if it never did
+     * @return when the schedule fires next, -1 if it never fires again
+     */
+    public long nextFireTime(long nowMillis, long lastFireTime) {
+        switch (mKind) {
+            case ONCE:
+                return lastFireTime == 0 ? mValue : -1;
+            case INTERVAL:
+                return lastFireTime == 0 ? nowMillis + mValue : Math.max(nowMillis, lastFireTime + mValue);
+            default:
+                Calendar next = Calendar.getInstance();
+                next.setTimeInMillis(nowMillis);
+                next.set(Calendar.HOUR_OF_DAY, (int) (mValue / 60));
+                next.set(Calendar.MINUTE, (int) (mValue % 60));
+                next.set(Calendar.SECOND, 0);
+                next.set(Calendar.MILLISECOND, 0);
+                if (next.getTimeInMillis() <= nowMillis || next.getTimeInMillis() <= lastFireTime) {
+                    next.add(Calendar.DAY_OF_MONTH, 1);
+                }
+                return next.getTimeInMillis();
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (mKind) {
+            case ONCE:
+                return "once at " + mValue;
+            case INTERVAL:
+                return "every " + mValue + " ms";
+            default:
+                return String.format("daily at %02d:%02d", mValue / 60, mValue % 60);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+/**
+ * A change of the state of the /live or /websocket connection.
+ */
+public class ConnectionEvent {
+    public enum Endpoint {
+        LIVE,
+        WEBSOCKET
+    }
+
+    public enum Kind {
+        OPENED,
+        // A device was registered on the device channel
+        REGISTERED,
+        // A message was received on the device channel
+        MESSAGE,
+        CLOSED,
+        ERROR
+    }
+
+    private final Endpoint mEndpoint;
+    private final Kind mKind;
+    private final String mDeviceId;
+    private final String mDetail;
+    // Turned into the detail only when a listener asks for it
+    private final Object mMessage;
+
+    public ConnectionEvent(Endpoint endpoint, Kind kind, String deviceId, String detail) {
+        this(endpoint, kind, deviceId, detail, null);
+    }
+
+    private ConnectionEvent(Endpoint endpoint, Kind kind, String deviceId, String detail, Object message) {
+        mEndpoint = endpoint;
+        mKind = kind;
+        mDeviceId = deviceId;
+        mDetail = detail;
+        mMessage = message;
+    }
+
+    /**
+     * @return a MESSAGE event whose detail is the string of the message, built by
+     * getDetail() rather than on the thread receiving the message
+     */
+    public static ConnectionEvent message(Endpoint endpoint, String deviceId, Object message) {
+        return new ConnectionEvent(endpoint, Kind.MESSAGE, deviceId, null, message);
+    }
+
+    public Endpoint getEndpoint() {
+        return mEndpoint;
+    }
+
+    public Kind getKind() {
+        return mKind;
+    }
+
+    /**
+     * @return the device the event is about, or null for connection-wide events
+     */
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    public String getDetail() {
+        return mMessage != null ? mMessage.toString() : mDetail;
+    }
+}
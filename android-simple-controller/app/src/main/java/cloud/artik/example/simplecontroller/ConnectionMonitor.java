@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the health of one websocket connection and reconnects it when it dies.
+ *
+ * ARTIK Cloud pings every connection periodically. The monitor tracks the ping
+ * arrival interval and its jitter, and declares the connection dead once
+ * missedPingsAllowed pings did not arrive, even if the socket never reported a
+ * close (half-open connection). A dead, closed or failed connection is reconnected
+ * with exponential backoff and random jitter, until stop() is called. Reconnect
+ * count and downtime are kept for display.
+ */
+public class ConnectionMonitor {
+    private static final String TAG = ConnectionMonitor.class.getSimpleName();
+
+    private static final long WATCHDOG_PERIOD_MS = 1000;
+
+    public interface Reconnector {
+        /**
+         * Closes the current connection, if any, and opens a new one. Non blocking;
+         * the outcome is reported through onConnected() or onConnectionLost().
+         */
+        void reconnect();
+    }
+
+    private enum State {
+        STOPPED,
+        CONNECTING,
+        CONNECTED,
+        BACKING_OFF
+    }
+
+    private final String mName;
+    private final ScheduledExecutorService mScheduler;
+    private final Reconnector mReconnector;
+    private final Random mRandom = new Random();
+
+    private long mExpectedPingIntervalMs = 30 * 1000;
+    private int mMissedPingsAllowed = 2;
+    private long mBackoffBaseMs = 500;
+    private long mBackoffMaxMs = 60 * 1000;
+
+    private State mState = State.STOPPED;
+    private long mStateSinceMs = 0;
+    private long mLastPingMs = 0;
+    private long mMeanPingIntervalMs = 0;
+    private long mPingJitterMs = 0;
+    private int mAttempt = 0;
+    private int mReconnectCount = 0;
+    private long mDownSinceMs = 0;
+    private long mTotalDowntimeMs = 0;
+    private ScheduledFuture<?> mWatchdog = null;
+    private ScheduledFuture<?> mPendingReconnect = null;
+
+    public ConnectionMonitor(String name, ScheduledExecutorService scheduler, Reconnector reconnector) {
+        mName = name;
+        mScheduler = scheduler;
+        mReconnector = reconnector;
+    }
+
+    /**
+     * @param expectedPingIntervalMs the ping interval of the server, used until pings were observed
+     * @param missedPingsAllowed how many pings may be missed before the connection is declared dead
+     */
+    public synchronized void setPingPolicy(long expectedPingIntervalMs, int missedPingsAllowed) {
+        mExpectedPingIntervalMs = expectedPingIntervalMs;
+        mMissedPingsAllowed = missedPingsAllowed;
+    }
+
+    public synchronized void setBackoff(long baseMs, long maxMs) {
+        mBackoffBaseMs = baseMs;
+        mBackoffMaxMs = maxMs;
+    }
+
+    /**
+     * Starts watching a connection that is being opened.
+     */
+    public synchronized void start() {
+        setState(State.CONNECTING);
+        if (mWatchdog == null) {
+            mWatchdog = mScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkHealth();
+                }
+            }, WATCHDOG_PERIOD_MS, WATCHDOG_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops watching, e.g. when the connection is closed on purpose.
+     */
+    public synchronized void stop() {
+        endDowntime();
+        setState(State.STOPPED);
+        if (mWatchdog != null) {
+            mWatchdog.cancel(false);
+            mWatchdog = null;
+        }
+        cancelPendingReconnect();
+    }
+
+    public synchronized void onConnected() {
+        if (mState == State.STOPPED) {
+            return;
+        }
+        endDowntime();
+        mAttempt = 0;
+        mLastPingMs = 0;
+        setState(State.CONNECTED);
+    }
+
+    public synchronized void onPing() {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastPingMs > 0) {
+            long interval = now - mLastPingMs;
+            if (mMeanPingIntervalMs == 0) {
+                mMeanPingIntervalMs = interval;
+            } else {
+                // RFC 3550 style smoothing: mean with gain 1/8, jitter with gain 1/16
+                long deviation = Math.abs(interval - mMeanPingIntervalMs);
+                mMeanPingIntervalMs += (interval - mMeanPingIntervalMs) / 8;
+                mPingJitterMs += (deviation - mPingJitterMs) / 16;
+            }
+        }
+        mLastPingMs = now;
+    }
+
+    /**
+     * Reports that the connection closed or failed. Schedules a reconnect unless the
+     * monitor is stopped or a reconnect is already scheduled.
+     */
+    public synchronized void onConnectionLost(String reason) {
+        if (mState == State.STOPPED || mState == State.BACKING_OFF) {
+            return;
+        }
+        Log.w(TAG, mName + " lost: " + reason);
+        if (mDownSinceMs == 0) {
+            mDownSinceMs = SystemClock.elapsedRealtime();
+        }
+        long delay = nextBackoffMs();
+        mAttempt++;
+        setState(State.BACKING_OFF);
+        cancelPendingReconnect();
+        mPendingReconnect = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isConnected() {
+        return mState == State.CONNECTED;
+    }
+
+    public synchronized int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * @return the downtime of all outages so far, including the current one
+     */
+    public synchronized long getTotalDowntimeMs() {
+        long current = mDownSinceMs == 0 ? 0 : SystemClock.elapsedRealtime() - mDownSinceMs;
+        return mTotalDowntimeMs + current;
+    }
+
+    public synchronized long getPingJitterMs() {
+        return mPingJitterMs;
+    }
+
+    public synchronized long getMeanPingIntervalMs() {
+        return mMeanPingIntervalMs;
+    }
+
+    /**
+     * @return how long ago the last ping arrived, -1 if none arrived on this connection
+     */
+    public synchronized long getLastPingAgeMs() {
+        return mLastPingMs == 0 ? -1 : SystemClock.elapsedRealtime() - mLastPingMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": " + mState.name().toLowerCase() + ", reconnects " + mReconnectCount
+                + ", downtime " + getTotalDowntimeMs() + " ms, ping jitter " + mPingJitterMs + " ms";
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            if (mState != State.BACKING_OFF) {
+                return;
+            }
+            mPendingReconnect = null;
+            mReconnectCount++;
+            setState(State.CONNECTING);
+        }
+        Log.d(TAG, mName + " reconnecting, attempt " + mAttempt);
+        try {
+            mReconnector.reconnect();
+        } catch (Exception e) {
+            onConnectionLost("reconnect failed: " + e.getMessage());
+        }
+    }
+
+    private void checkHealth() {
+        String reason = null;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            long pingInterval = mMeanPingIntervalMs > 0 ? mMeanPingIntervalMs : mExpectedPingIntervalMs;
+            // Half an interval of slack on top of the allowed misses absorbs the jitter
+            long deadline = pingInterval * mMissedPingsAllowed + pingInterval / 2;
+            if (mState == State.CONNECTED) {
+                long lastSign = Math.max(mLastPingMs, mStateSinceMs);
+                if (now - lastSign > deadline) {
+                    reason = "no ping for " + (now - lastSign) + " ms";
+                }
+            } else if (mState == State.CONNECTING && now - mStateSinceMs > deadline) {
+                reason = "connect timed out";
+            }
+        }
+        if (reason != null) {
+            onConnectionLost(reason);
+        }
+    }
+
+    // Exponential backoff with "equal jitter": half fixed, half random
+    private long nextBackoffMs() {
+        long ceiling = mBackoffBaseMs << Math.min(mAttempt, 20);
+        ceiling = Math.min(ceiling, mBackoffMaxMs);
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    private void setState(State state) {
+        mState = state;
+        mStateSinceMs = SystemClock.elapsedRealtime();
+    }
+
+    private void endDowntime() {
+        if (mDownSinceMs != 0) {
+            mTotalDowntimeMs += SystemClock.elapsedRealtime() - mDownSinceMs;
+            mDownSinceMs = 0;
+        }
+    }
+
+    private void cancelPendingReconnect() {
+        if (mPendingReconnect != null) {
+            mPendingReconnect.cancel(false);
+            mPendingReconnect = null;
+        }
+    }
+}
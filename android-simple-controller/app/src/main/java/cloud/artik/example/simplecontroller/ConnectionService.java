@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Owns the /live and /websocket connections independently of any Activity.
+ *
+ * Screens bind to the service while they are started. The connections are opened
+ * when the first screen binds and stay open across Activity recreation (rotation,
+ * app switch, ...). They are only closed after no screen has been bound for the
+ * idle teardown delay, so the first command after coming back goes out right away.
+ */
+public class ConnectionService extends Service {
+    private static final String TAG = ConnectionService.class.getSimpleName();
+
+    public static final long DEFAULT_IDLE_TEARDOWN_MS = 60 * 1000;
+
+    private static volatile long ourIdleTeardownMs = DEFAULT_IDLE_TEARDOWN_MS;
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mHandler = new Handler();
+
+    public class LocalBinder extends Binder {
+        public ConnectionService getService() {
+            return ConnectionService.this;
+        }
+    }
+
+    /**
+     * Sets how long the connections are kept open once no screen is bound.
+     */
+    public static void setIdleTeardown(long idleTeardownMs) {
+        ourIdleTeardownMs = idleTeardownMs;
+    }
+
+    private final Runnable mTeardown = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "idle, closing the connections");
+            ArtikCloudSession.getInstance().disconnectFirehoseWS();
+            ArtikCloudSession.getInstance().disconnectDeviceChannelWS();
+            stopSelf();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ArtikCloudSession.getInstance().setContext(this);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        onClientBound();
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        onClientBound();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // No screen is visible, the process may be killed from now on
+        ArtikCloudSession.getInstance().saveSnapshot();
+        mHandler.postDelayed(mTeardown, ourIdleTeardownMs);
+        // Get onRebind() when a screen binds again before the teardown
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mTeardown);
+        super.onDestroy();
+    }
+
+    private void onClientBound() {
+        mHandler.removeCallbacks(mTeardown);
+        ensureConnected();
+    }
+
+    /**
+     * Opens the connections that are not open yet. Non blocking.
+     */
+    public void ensureConnected() {
+        ArtikCloudSession.getInstance().ensureConnected();
+    }
+}
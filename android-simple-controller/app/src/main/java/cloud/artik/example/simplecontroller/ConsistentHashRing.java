@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Consistent hashing of the devices onto the shards of the device channel pool.
+ *
+ * Every shard owns a number of virtual nodes, points on a ring of 64-bit hashes, and
+ * a device belongs to the first live node at or after the hash of its sdid. When a
+ * shard fails, only its devices move, each to the shard owning the next node; when
+ * it comes back, the same devices move back. The virtual nodes spread the devices
+ * of a failed shard over all the others instead of doubling the load of one.
+ */
+class ConsistentHashRing {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int mShardCount;
+    // Every node of every shard, sorted by point
+    private final long[] mAllPoints;
+    private final int[] mAllOwners;
+    private final boolean[] mAlive;
+    private int mAliveCount;
+    // The nodes of the live shards, sorted by point
+    private long[] mPoints;
+    private int[] mOwners;
+
+    ConsistentHashRing(int shardCount, int virtualNodes) {
+        mShardCount = shardCount;
+        int nodes = shardCount * virtualNodes;
+        final long[] points = new long[nodes];
+        Integer[] order = new Integer[nodes];
+        for (int i = 0; i < nodes; i++) {
+            points[i] = hash("shard-" + (i / virtualNodes) + "#" + (i % virtualNodes));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return points[a] < points[b] ? -1 : points[a] > points[b] ? 1 : a.compareTo(b);
+            }
+        });
+        mAllPoints = new long[nodes];
+        mAllOwners = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            mAllPoints[i] = points[order[i]];
+            mAllOwners[i] = order[i] / virtualNodes;
+        }
+        mAlive = new boolean[shardCount];
+        Arrays.fill(mAlive, true);
+        mAliveCount = shardCount;
+        mPoints = mAllPoints;
+        mOwners = mAllOwners;
+    }
+
+    synchronized int getAliveCount() {
+        return mAliveCount;
+    }
+
+    /**
+     * Takes a shard out of the ring or puts it back.
+     *
+     * @return false if the shard already was in that state
+     */
+    synchronized boolean setAlive(int shard, boolean alive) {
+        if (mAlive[shard] == alive) {
+            return false;
+        }
+        mAlive[shard] = alive;
+        mAliveCount += alive ? 1 : -1;
+        int count = 0;
+        for (int i = 0; i < mAllOwners.length; i++) {
+            if (mAlive[mAllOwners[i]]) {
+                count++;
+            }
+        }
+        long[] points = new long[count];
+        int[] owners = new int[count];
+        int n = 0;
+        for (int i = 0; i < mAllOwners.length; i++) {
+            if (mAlive[mAllOwners[i]]) {
+                points[n] = mAllPoints[i];
+                owners[n++] = mAllOwners[i];
+            }
+        }
+        mPoints = points;
+        mOwners = owners;
+        return true;
+    }
+
+    /**
+     * Puts every shard back into the ring.
+     */
+    synchronized void reset() {
+        Arrays.fill(mAlive, true);
+        mAliveCount = mShardCount;
+        mPoints = mAllPoints;
+        mOwners = mAllOwners;
+    }
+
+    /**
+     * @return the shard of the key, or -1 if no shard is alive
+     */
+    synchronized int shardOf(String key) {
+        if (mPoints.length == 0) {
+            return -1;
+        }
+        long h = hash(key);
+        // First node at or after the hash, wrapping around
+        int low = 0;
+        int high = mPoints.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mPoints[mid] < h) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return mOwners[low == mPoints.length ? 0 : low];
+    }
+
+    // FNV-1a, finished with the MurmurHash3 mix so that similar sdids spread evenly
+    private static long hash(String key) {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= FNV_PRIME;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -17,13 +17,18 @@
 package cloud.artik.example.simplecontroller;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
+import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -33,6 +38,8 @@ import android.widget.TextView;
 import java.text.DateFormat;
 import java.util.Date;
 
+import cloud.artik.model.Acknowledgement;
+
 
 public class ControlActivity extends Activity {
     private static final String TAG = ControlActivity.class.getSimpleName();
@@ -46,6 +53,17 @@ public class ControlActivity extends Activity {
     private static final String LIVE_HEADER = "WebSocket /live: ";
     private static final String DEVICE_REGISTERED = "device registered ";
     private static final String CONNECTED = "connected ";
+    private static final String COMMAND_QUEUE_FULL = "command dropped: queue is full";
+
+    // Device status rendering: the store is read at most once per frame, and the
+    // formatter and date are reused between frames
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final DateFormat mDateFormat = DateFormat.getDateTimeInstance();
+    private final Date mUpdateDate = new Date();
+    private final DeviceStateStore.Entry mDisplayedState = new DeviceStateStore.Entry();
+    private int mDisplayedIndex = -1;
+    private long mDisplayedVersion = 0;
+    private boolean mResumed = false;
 
 
     @Override
@@ -69,7 +87,6 @@ public class ControlActivity extends Activity {
 
         setTitle(R.string.device_monitor_title);
 
-        ArtikCloudSession.getInstance().setContext(this);
         deviceID.setText("Device ID: " + ArtikCloudSession.getInstance().getDeviceID());
         deviceName.setText("Device Name: " + ArtikCloudSession.getInstance().getDeviceName());
 
@@ -78,7 +95,9 @@ public class ControlActivity extends Activity {
             public void onClick(View v) {
                 try {
                     Log.v(TAG, ": on button is clicked.");
-                    ArtikCloudSession.getInstance().sendOnActionInDeviceChannelWS();
+                    if (!ArtikCloudSession.getInstance().sendOnActionInDeviceChannelWS()) {
+                        displayWSReceived(COMMAND_QUEUE_FULL);
+                    }
                 } catch (Exception e) {
                     Log.v(TAG, "Run into Exception");
                     e.printStackTrace();
@@ -91,7 +110,9 @@ public class ControlActivity extends Activity {
             public void onClick(View v) {
                 try {
                     Log.v(TAG, ": off button is clicked.");
-                    ArtikCloudSession.getInstance().sendOffActionInDeviceChannelWS();
+                    if (!ArtikCloudSession.getInstance().sendOffActionInDeviceChannelWS()) {
+                        displayWSReceived(COMMAND_QUEUE_FULL);
+                    }
                 } catch (Exception e) {
                     Log.v(TAG, "Run into Exception");
                     e.printStackTrace();
@@ -103,6 +124,7 @@ public class ControlActivity extends Activity {
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
         return true;
     }
 
@@ -117,84 +139,258 @@ public class ControlActivity extends Activity {
         if (id == R.id.action_settings) {
             return true;
         }
+        if (id == R.id.action_latency) {
+            showLatencyStats();
+            return true;
+        }
+        if (id == R.id.action_health) {
+            showConnectionHealth();
+            return true;
+        }
+        if (id == R.id.action_trace) {
+            showTrace();
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
 
+    // Binding keeps the connections of ConnectionService open while this screen is started
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Log.v(TAG, "bound to ConnectionService");
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        Intent intent = new Intent(this, ConnectionService.class);
+        startService(intent);
+        bindService(intent, mServiceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        unbindService(mServiceConnection);
+        super.onStop();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
-        LocalBroadcastManager.getInstance(this).registerReceiver(mWSUpdateReceiver,
-                makeWebsocketUpdateIntentFilter());
-        mLiveStatus.setText("Connecting to /live ... ");
-        ArtikCloudSession.getInstance().connectFirehoseWS();//non blocking
-        mWSStatus.setText("Connecting to /websocket ...");
-        ArtikCloudSession.getInstance().connectDeviceChannelWS();//non blocking
-
+        EventBus eventBus = ArtikCloudSession.getInstance().getEventBus();
+        eventBus.subscribe(ConnectionEvent.class, mConnectionSubscriber);
+        eventBus.subscribe(Acknowledgement.class, mAckSubscriber);
+        mResumed = true;
+        mDisplayedIndex = ArtikCloudSession.getInstance().getFleet()
+                .indexOf(ArtikCloudSession.getInstance().getDeviceID());
+        ArtikCloudSession.getInstance().getStateStore().setListener(mStateListener);
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        // The connections outlive this screen; show where they are instead of reconnecting
+        ConnectionEvent liveEvent = ArtikCloudSession.getInstance()
+                .getLastConnectionEvent(ConnectionEvent.Endpoint.LIVE);
+        if (liveEvent == null) {
+            mLiveStatus.setText("Connecting to /live ... ");
+        } else {
+            onConnectionEvent(liveEvent);
+        }
+        ConnectionEvent wsEvent = ArtikCloudSession.getInstance()
+                .getLastConnectionEvent(ConnectionEvent.Endpoint.WEBSOCKET);
+        if (wsEvent == null) {
+            mWSStatus.setText("Connecting to /websocket ...");
+        } else {
+            onConnectionEvent(wsEvent);
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        ArtikCloudSession.getInstance().disconnectFirehoseWS();
-        ArtikCloudSession.getInstance().disconnectDeviceChannelWS();
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mWSUpdateReceiver);
+        EventBus eventBus = ArtikCloudSession.getInstance().getEventBus();
+        eventBus.unsubscribe(ConnectionEvent.class, mConnectionSubscriber);
+        eventBus.unsubscribe(Acknowledgement.class, mAckSubscriber);
+        mResumed = false;
+        ArtikCloudSession.getInstance().getStateStore().setListener(null);
+        mMainHandler.removeCallbacks(mScheduleFrame);
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
     }
 
 
-    private static IntentFilter makeWebsocketUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_LIVE_ONOPEN);
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_LIVE_ONMSG);
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_LIVE_ONCLOSE);
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_LIVE_ONERROR);
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_WS_ONOPEN);
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_WS_ONREG);
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_WS_ONMSG);
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_WS_ONACK);
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_WS_ONCLOSE);
-        intentFilter.addAction(ArtikCloudSession.WEBSOCKET_WS_ONERROR);
-        return intentFilter;
-    }
+    // The session posts from its websocket threads; the views are updated on the main thread
+    private final EventBus.Subscriber<ConnectionEvent> mConnectionSubscriber =
+            new EventBus.Subscriber<ConnectionEvent>() {
+        @Override
+        public void onEvent(final ConnectionEvent event) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onConnectionEvent(event);
+                }
+            });
+        }
+    };
 
-    private final BroadcastReceiver mWSUpdateReceiver = new BroadcastReceiver() {
+    // Called on the firehose thread once per batch of state updates
+    private final DeviceStateStore.Listener mStateListener = new DeviceStateStore.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (ArtikCloudSession.WEBSOCKET_LIVE_ONOPEN.equals(action)) {
-                displayLiveStatus(LIVE_HEADER + CONNECTED);
-            } else if (ArtikCloudSession.WEBSOCKET_LIVE_ONMSG.equals(action)) {
-                String status = intent.getStringExtra(ArtikCloudSession.DEVICE_DATA);
-                String updateTime = intent.getStringExtra(ArtikCloudSession.TIMESTEP);
-                displayDeviceStatus(status, updateTime);
-            } else if (ArtikCloudSession.WEBSOCKET_LIVE_ONCLOSE.equals(action) ||
-                    ArtikCloudSession.WEBSOCKET_LIVE_ONERROR.equals(action)) {
-                displayLiveStatus(LIVE_HEADER + intent.getStringExtra(ArtikCloudSession.ERROR));
-            } else  if (ArtikCloudSession.WEBSOCKET_WS_ONOPEN.equals(action)) {
-                displayWSStatus(WS_HEADER + CONNECTED);
-            } else  if (ArtikCloudSession.WEBSOCKET_WS_ONREG.equals(action)) {
-                displayWSStatus(WS_HEADER + DEVICE_REGISTERED);
-            } else if (ArtikCloudSession.WEBSOCKET_WS_ONMSG.equals(action)) {
-                displayWSReceived(intent.getStringExtra("msg"));
-            } else if (ArtikCloudSession.WEBSOCKET_WS_ONACK.equals(action)) {
-                displayWSReceived(intent.getStringExtra(ArtikCloudSession.ACK));
-            } else if (ArtikCloudSession.WEBSOCKET_WS_ONCLOSE.equals(action) ||
-                    ArtikCloudSession.WEBSOCKET_WS_ONERROR.equals(action)) {
-                displayWSStatus(WS_HEADER + intent.getStringExtra(ArtikCloudSession.ERROR));
+        public void onDirty() {
+            mMainHandler.post(mScheduleFrame);
+        }
+    };
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (mResumed) {
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
             }
+        }
+    };
 
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            DeviceStateStore store = ArtikCloudSession.getInstance().getStateStore();
+            store.takeDirty();
+            store.read(mDisplayedIndex, mDisplayedState);
+            if (mDisplayedState.version != mDisplayedVersion) {
+                mDisplayedVersion = mDisplayedState.version;
+                displayDeviceStatus(mDisplayedState.state, mDisplayedState.ts);
+            }
         }
     };
 
+    private final EventBus.Subscriber<Acknowledgement> mAckSubscriber = new EventBus.Subscriber<Acknowledgement>() {
+        @Override
+        public void onEvent(final Acknowledgement acknowledgement) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    displayWSReceived(acknowledgement.toString());
+                }
+            });
+        }
+    };
+
+    private void onConnectionEvent(ConnectionEvent event) {
+        if (event.getEndpoint() == ConnectionEvent.Endpoint.LIVE) {
+            switch (event.getKind()) {
+                case OPENED:
+                    displayLiveStatus(LIVE_HEADER + CONNECTED);
+                    break;
+                case CLOSED:
+                case ERROR:
+                    displayLiveStatus(LIVE_HEADER + event.getDetail());
+                    break;
+                default:
+                    break;
+            }
+            return;
+        }
+        switch (event.getKind()) {
+            case OPENED:
+                displayWSStatus(WS_HEADER + CONNECTED);
+                break;
+            case REGISTERED:
+                displayWSStatus(WS_HEADER + DEVICE_REGISTERED);
+                break;
+            case MESSAGE:
+                displayWSReceived(event.getDetail());
+                break;
+            case CLOSED:
+            case ERROR:
+                displayWSStatus(WS_HEADER + event.getDetail());
+                break;
+        }
+    }
+
+    private void showLatencyStats() {
+        final LatencyStats stats = ArtikCloudSession.getInstance().getLatencyStats();
+        String summary = stats.getSummary();
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.action_latency))
+                .setMessage(summary.isEmpty() ? getString(R.string.latency_no_data) : summary)
+                .setPositiveButton(getString(R.string.latency_export), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent share = new Intent(Intent.ACTION_SEND);
+                        share.setType("text/csv");
+                        share.putExtra(Intent.EXTRA_SUBJECT, "command latency");
+                        share.putExtra(Intent.EXTRA_TEXT, stats.export());
+                        startActivity(Intent.createChooser(share, getString(R.string.latency_export)));
+                    }
+                })
+                .setNeutralButton(getString(R.string.latency_reset), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        stats.reset();
+                    }
+                })
+                .setNegativeButton(getString(R.string.latency_close), null)
+                .show();
+    }
+
+    private void showTrace() {
+        final TraceRing trace = ArtikCloudSession.getInstance().getTrace();
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.action_trace))
+                .setMessage(trace.toString())
+                .setPositiveButton(getString(R.string.trace_export), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent share = new Intent(Intent.ACTION_SEND);
+                        share.setType("text/csv");
+                        share.putExtra(Intent.EXTRA_SUBJECT, "session trace");
+                        share.putExtra(Intent.EXTRA_TEXT, ArtikCloudSession.getInstance().exportTrace());
+                        startActivity(Intent.createChooser(share, getString(R.string.trace_export)));
+                    }
+                })
+                .setNeutralButton(getString(trace.isEnabled() ? R.string.trace_stop : R.string.trace_start),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                trace.setEnabled(!trace.isEnabled());
+                            }
+                        })
+                .setNegativeButton(getString(R.string.trace_close), null)
+                .show();
+    }
+
+    private void showConnectionHealth() {
+        ArtikCloudSession session = ArtikCloudSession.getInstance();
+        StringBuilder health = new StringBuilder();
+        for (ConnectionEvent.Endpoint endpoint : ConnectionEvent.Endpoint.values()) {
+            for (ConnectionMonitor monitor : session.getConnectionMonitors(endpoint)) {
+                if (health.length() > 0) {
+                    health.append('\n');
+                }
+                health.append(monitor);
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.action_health))
+                .setMessage(health.toString())
+                .setNegativeButton(getString(R.string.latency_close), null)
+                .show();
+    }
+
     private void displayLiveStatus(String status) {
         Log.d(TAG, status);
         mLiveStatus.setText(status);
     }
 
-    private void displayDeviceStatus(String status, String updateTimems) {
-        mDeviceStatus.setText(status);
-        long time_ms = Long.parseLong(updateTimems);
-        mStatusUpdateTime.setText(DateFormat.getDateTimeInstance().format(new Date(time_ms)));
+    private void displayDeviceStatus(Object state, long updateTimems) {
+        mDeviceStatus.setText("state: " + state);
+        if (updateTimems > 0) {
+            mUpdateDate.setTime(updateTimems);
+            mStatusUpdateTime.setText(mDateFormat.format(mUpdateDate));
+        }
     }
 
     private void displayWSStatus(String status) {
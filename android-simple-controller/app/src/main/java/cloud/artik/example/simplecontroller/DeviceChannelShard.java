@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One /websocket connection of the device channel pool, and the devices the
+ * consistent hash ring assigns to it.
+ *
+ * The connection state is owned by ArtikCloudSession, which opens, renews and
+ * closes the channel exactly like it did for a single channel; the shard adds the
+ * counters to size the pool: frames written and acknowledged, the mean time to the
+ * ack, and through the session, the frames still waiting for theirs.
+ */
+public class DeviceChannelShard {
+    // Weight of a new sample in the mean ack latency
+    private static final int ACK_LATENCY_SHIFT = 4;
+
+    private final int mIndex;
+    private final ConnectionMonitor mMonitor;
+
+    // Generation of no channel, e.g. while no standby is connecting
+    static final int NO_GENERATION = -1;
+
+    // Connection state: volatile for the sender thread and the callbacks, changed by
+    // the session under its lock
+    private volatile DeviceChannel mChannel = null;
+    // Incremented for every new socket, so callbacks of a replaced socket are ignored
+    private volatile int mGeneration = 0;
+    // The channel registering the devices with a new token, until the traffic switches to it
+    private volatile DeviceChannel mStandbyChannel = null;
+    private volatile int mStandbyGeneration = NO_GENERATION;
+    private int[] mStandbyDevices = new int[0];
+    private int mStandbyPendingRegistrations = 0;
+
+    private final AtomicLong mSentCount = new AtomicLong();
+    private final AtomicLong mAckedCount = new AtomicLong();
+    private final AtomicLong mRegistrationCount = new AtomicLong();
+    private volatile int mDeviceCount = 0;
+    private long mMeanAckNanos = 0;
+
+    DeviceChannelShard(int index, ConnectionMonitor monitor) {
+        mIndex = index;
+        mMonitor = monitor;
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public ConnectionMonitor getMonitor() {
+        return mMonitor;
+    }
+
+    public boolean isConnected() {
+        return mChannel != null && mMonitor.isConnected();
+    }
+
+    /**
+     * @return the number of devices assigned to the shard
+     */
+    public int getDeviceCount() {
+        return mDeviceCount;
+    }
+
+    /**
+     * @return the number of action frames written to the connection
+     */
+    public long getSentCount() {
+        return mSentCount.get();
+    }
+
+    public long getAckedCount() {
+        return mAckedCount.get();
+    }
+
+    /**
+     * @return the number of register messages written to the connection, renewals
+     * and moves of devices from failed shards included
+     */
+    public long getRegistrationCount() {
+        return mRegistrationCount.get();
+    }
+
+    /**
+     * @return the moving mean of the time from writing a frame to its ack, in ms
+     */
+    public synchronized double getMeanAckLatencyMs() {
+        return mMeanAckNanos / 1e6;
+    }
+
+    /**
+     * @return the channel carrying the commands of the shard, or null if it is closed
+     */
+    DeviceChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * @return true if the callbacks of the channel of that generation act for the shard
+     */
+    boolean isCurrent(int generation) {
+        return generation == mGeneration;
+    }
+
+    /**
+     * Replaces the channel of the shard; callbacks of the previous one are ignored.
+     */
+    void setChannel(DeviceChannel channel, int generation) {
+        mGeneration = generation;
+        mChannel = channel;
+    }
+
+    DeviceChannel getStandbyChannel() {
+        return mStandbyChannel;
+    }
+
+    int getStandbyGeneration() {
+        return mStandbyGeneration;
+    }
+
+    /**
+     * @return true if the channel of that generation is the standby of the shard
+     */
+    boolean isStandby(int generation) {
+        return generation != NO_GENERATION && generation == mStandbyGeneration;
+    }
+
+    void setStandby(DeviceChannel channel, int generation) {
+        mStandbyChannel = channel;
+        mStandbyGeneration = generation;
+        mStandbyDevices = new int[0];
+        mStandbyPendingRegistrations = 0;
+    }
+
+    /**
+     * @return the standby channel the shard dropped, or null
+     */
+    DeviceChannel clearStandby() {
+        DeviceChannel standby = mStandbyChannel;
+        mStandbyChannel = null;
+        mStandbyGeneration = NO_GENERATION;
+        return standby;
+    }
+
+    /**
+     * Sets the devices the standby registers before the traffic switches to it.
+     */
+    void setStandbyDevices(int[] devices) {
+        mStandbyDevices = devices;
+        mStandbyPendingRegistrations = devices.length;
+    }
+
+    int[] getStandbyDevices() {
+        return mStandbyDevices;
+    }
+
+    /**
+     * @return true once the standby registered all its devices
+     */
+    boolean onStandbyRegistered() {
+        return --mStandbyPendingRegistrations == 0;
+    }
+
+    /**
+     * Switches the traffic to the standby channel.
+     *
+     * @return the channel it replaced, or null
+     */
+    DeviceChannel promoteStandby() {
+        DeviceChannel previous = mChannel;
+        mGeneration = mStandbyGeneration;
+        // The sender picks the new channel up with its next frame
+        mChannel = mStandbyChannel;
+        clearStandby();
+        return previous;
+    }
+
+    void setDeviceCount(int count) {
+        mDeviceCount = count;
+    }
+
+    void onSent() {
+        mSentCount.incrementAndGet();
+    }
+
+    void onRegistrationsSent(int count) {
+        mRegistrationCount.addAndGet(count);
+    }
+
+    synchronized void onAcked(long latencyNanos) {
+        mAckedCount.incrementAndGet();
+        mMeanAckNanos = mMeanAckNanos == 0 ? latencyNanos
+                : mMeanAckNanos + ((latencyNanos - mMeanAckNanos) >> ACK_LATENCY_SHIFT);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "/websocket#%d %s devices=%d sent=%d acked=%d ack=%.1fms registrations=%d",
+                mIndex, isConnected() ? "connected" : "down", mDeviceCount, mSentCount.get(), mAckedCount.get(),
+                getMeanAckLatencyMs(), mRegistrationCount.get());
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The set of devices controlled over the shared /websocket device channels.
+ *
+ * Every device gets a dense index when it is added. Acks and messages coming back
+ * from ARTIK Cloud are routed to their device through the sdid index, so the
+ * lookup cost does not depend on the size of the fleet. Each device can have its
+ * own DeviceMessageHandler for the firehose messages routed to it, and is assigned
+ * to one shard of the device channel pool, the connection it is registered on.
+ */
+public class DeviceFleet {
+    private static final String REGISTER_CID_PREFIX = "reg:";
+    // How far the ts of two messages of a stepped-back clock may drift from the time
+    // between their receptions, network delays included
+    private static final long CLOCK_STEP_TOLERANCE_MS = 2000;
+
+    // Results of advanceMessageTs()
+    public static final int MESSAGE_STALE = -1;
+    public static final int MESSAGE_SAME_TS = 0;
+    public static final int MESSAGE_NEWER = 1;
+    public static final int MESSAGE_CLOCK_STEP = 2;
+
+    private final List<String> mDeviceIds = new ArrayList<>();
+    private final List<String> mDeviceNames = new ArrayList<>();
+    private final Map<String, Integer> mIndexBySdid = new HashMap<>();
+    private boolean[] mRegistered = new boolean[16];
+    private DeviceMessageHandler[] mMessageHandlers = new DeviceMessageHandler[16];
+    private long[] mLastMessageTs = new long[16];
+    // The first message of a possible clock step, until a second one confirms it
+    private long[] mClockStepTs = new long[16];
+    private long[] mClockStepReceivedAt = new long[16];
+    private int[] mShards = new int[16];
+    private int mRegisteredCount = 0;
+
+    /**
+     * Adds a device to the fleet. Adding a device twice keeps its original index.
+     *
+     * @return the index of the device
+     */
+    public synchronized int addDevice(String sdid, String name) {
+        Integer index = mIndexBySdid.get(sdid);
+        if (index != null) {
+            return index;
+        }
+        int newIndex = mDeviceIds.size();
+        mDeviceIds.add(sdid);
+        mDeviceNames.add(name);
+        mIndexBySdid.put(sdid, newIndex);
+        if (newIndex >= mRegistered.length) {
+            boolean[] grown = new boolean[mRegistered.length * 2];
+            System.arraycopy(mRegistered, 0, grown, 0, mRegistered.length);
+            mRegistered = grown;
+            DeviceMessageHandler[] grownHandlers = new DeviceMessageHandler[mRegistered.length];
+            System.arraycopy(mMessageHandlers, 0, grownHandlers, 0, mMessageHandlers.length);
+            mMessageHandlers = grownHandlers;
+            long[] grownTs = new long[mRegistered.length];
+            System.arraycopy(mLastMessageTs, 0, grownTs, 0, mLastMessageTs.length);
+            mLastMessageTs = grownTs;
+            long[] grownStepTs = new long[mRegistered.length];
+            System.arraycopy(mClockStepTs, 0, grownStepTs, 0, mClockStepTs.length);
+            mClockStepTs = grownStepTs;
+            long[] grownStepReceivedAt = new long[mRegistered.length];
+            System.arraycopy(mClockStepReceivedAt, 0, grownStepReceivedAt, 0, mClockStepReceivedAt.length);
+            mClockStepReceivedAt = grownStepReceivedAt;
+            int[] grownShards = new int[mRegistered.length];
+            System.arraycopy(mShards, 0, grownShards, 0, mShards.length);
+            mShards = grownShards;
+        }
+        return newIndex;
+    }
+
+    public synchronized int size() {
+        return mDeviceIds.size();
+    }
+
+    /**
+     * @return the index of the device, or -1 if it is not part of the fleet
+     */
+    public synchronized int indexOf(String sdid) {
+        if (sdid == null) {
+            return -1;
+        }
+        Integer index = mIndexBySdid.get(sdid);
+        return index == null ? -1 : index;
+    }
+
+    public synchronized String getDeviceId(int index) {
+        return mDeviceIds.get(index);
+    }
+
+    public synchronized String getDeviceName(int index) {
+        return mDeviceNames.get(index);
+    }
+
+    /**
+     * @return a snapshot of the device ids, in index order
+     */
+    public synchronized List<String> getDeviceIds() {
+        return new ArrayList<>(mDeviceIds);
+    }
+
+    /**
+     * @return the device ids joined with commas, as expected by the sdids filter of /live
+     */
+    public synchronized String getDeviceIdsParam() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mDeviceIds.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(mDeviceIds.get(i));
+        }
+        return builder.toString();
+    }
+
+    public String registerCid(int index) {
+        return REGISTER_CID_PREFIX + index;
+    }
+
+    /**
+     * @return the index of the device a registration cid belongs to, or -1 if the
+     * cid does not belong to a registration
+     */
+    public synchronized int indexOfRegisterCid(String cid) {
+        if (cid == null || !cid.startsWith(REGISTER_CID_PREFIX)) {
+            return -1;
+        }
+        try {
+            int index = Integer.parseInt(cid.substring(REGISTER_CID_PREFIX.length()));
+            return index < mDeviceIds.size() ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param handler receives the messages of the device, null to remove it
+     */
+    public synchronized void setMessageHandler(int index, DeviceMessageHandler handler) {
+        mMessageHandlers[index] = handler;
+    }
+
+    /**
+     * @return the handler of the device, or null
+     */
+    public synchronized DeviceMessageHandler getMessageHandler(int index) {
+        return mMessageHandlers[index];
+    }
+
+    /**
+     * Records the ts of a message of the device if it is the most recent so far.
+     *
+     * An older message is stale: a late delivery or a redelivery. Only a message
+     * whose mid was not seen yet and that is more than maxReorderMs older than the
+     * most recent one may come from a device whose clock stepped back, e.g. a
+     * Raspberry Pi rebooted without a real time clock. It is held as a candidate,
+     * and the next such message confirms the step if its ts advanced by the time
+     * between the two receptions; a burst of redelivered old messages does not. The
+     * confirming message becomes the most recent one.
+     *
+     * @param seen       true if the mid of the message was seen already
+     * @param receivedAt local time of the reception, in ms
+     * @return MESSAGE_NEWER, MESSAGE_SAME_TS as the most recent one, MESSAGE_STALE,
+     * or MESSAGE_CLOCK_STEP for the message confirming a clock step
+     */
+    public synchronized int advanceMessageTs(int index, long ts, boolean seen, long receivedAt,
+                                             long maxReorderMs) {
+        long last = mLastMessageTs[index];
+        if (ts > last) {
+            mLastMessageTs[index] = ts;
+            mClockStepTs[index] = 0;
+            return MESSAGE_NEWER;
+        }
+        if (ts == last) {
+            return MESSAGE_SAME_TS;
+        }
+        if (seen || last - ts <= maxReorderMs) {
+            return MESSAGE_STALE;
+        }
+        long candidate = mClockStepTs[index];
+        if (candidate != 0 && ts > candidate
+                && Math.abs(ts - candidate - (receivedAt - mClockStepReceivedAt[index])) <= CLOCK_STEP_TOLERANCE_MS) {
+            mLastMessageTs[index] = ts;
+            mClockStepTs[index] = 0;
+            return MESSAGE_CLOCK_STEP;
+        }
+        mClockStepTs[index] = ts;
+        mClockStepReceivedAt[index] = receivedAt;
+        return MESSAGE_STALE;
+    }
+
+    /**
+     * @return the shard of the device channel pool the device is assigned to
+     */
+    public synchronized int getShard(int index) {
+        return mShards[index];
+    }
+
+    /**
+     * Assigns the device to a shard of the device channel pool. A device moved to
+     * another shard is not registered there yet.
+     *
+     * @return false if the device already was on that shard
+     */
+    public synchronized boolean setShard(int index, int shard) {
+        if (mShards[index] == shard) {
+            return false;
+        }
+        mShards[index] = shard;
+        setRegistered(index, false);
+        return true;
+    }
+
+    /**
+     * @return the indexes of the devices assigned to the shard
+     */
+    public synchronized int[] indexesOfShard(int shard) {
+        int count = 0;
+        for (int i = 0; i < mDeviceIds.size(); i++) {
+            if (mShards[i] == shard) {
+                count++;
+            }
+        }
+        int[] indexes = new int[count];
+        int n = 0;
+        for (int i = 0; i < mDeviceIds.size(); i++) {
+            if (mShards[i] == shard) {
+                indexes[n++] = i;
+            }
+        }
+        return indexes;
+    }
+
+    public synchronized void setRegistered(int index, boolean registered) {
+        if (mRegistered[index] != registered) {
+            mRegistered[index] = registered;
+            mRegisteredCount += registered ? 1 : -1;
+        }
+    }
+
+    public synchronized boolean isRegistered(int index) {
+        return mRegistered[index];
+    }
+
+    public synchronized int getRegisteredCount() {
+        return mRegisteredCount;
+    }
+
+    /**
+     * Marks the devices of a shard as unregistered, after its connection closed.
+     */
+    public synchronized void clearRegistrations(int shard) {
+        for (int i = 0; i < mDeviceIds.size(); i++) {
+            if (mShards[i] == shard) {
+                setRegistered(i, false);
+            }
+        }
+    }
+
+    /**
+     * Marks every device as unregistered, e.g. after the device channel closed.
+     */
+    public synchronized void clearRegistrations() {
+        for (int i = 0; i < mDeviceIds.size(); i++) {
+            mRegistered[i] = false;
+        }
+        mRegisteredCount = 0;
+    }
+
+    /**
+     * Forgets the ts of the most recent message of every device, so the next message
+     * of a device is never taken as stale, e.g. on logout. The /live ordering is kept
+     * across reconnects of the device channel.
+     */
+    public synchronized void clearMessageTs() {
+        for (int i = 0; i < mDeviceIds.size(); i++) {
+            mLastMessageTs[i] = 0;
+            mClockStepTs[i] = 0;
+        }
+    }
+}
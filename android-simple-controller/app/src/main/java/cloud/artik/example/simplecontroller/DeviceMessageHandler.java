@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+/**
+ * Receives the /live messages of one device of the fleet, on the firehose thread,
+ * after the session updated the DeviceStateStore.
+ */
+public interface DeviceMessageHandler {
+    /**
+     * @param hasState false if the message does not carry the state field
+     * @param ts       the ts of the message, 0 if it has none
+     */
+    void onDeviceMessage(String sdid, boolean hasState, Object state, long ts);
+}
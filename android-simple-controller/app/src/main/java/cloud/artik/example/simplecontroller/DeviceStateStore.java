@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The latest known state of every device of the fleet, indexed by fleet index.
+ *
+ * Updates overwrite the previous state in place, so a burst of messages for a device
+ * costs O(1) each without allocating, and a reader only ever sees the newest one.
+ * The store tells its listener once when it turns dirty; the reader clears the flag
+ * with takeDirty() before reading, which makes it render at most once per batch of
+ * updates (e.g. once per frame).
+ */
+public class DeviceStateStore {
+    public interface Listener {
+        /**
+         * Called on the updating thread when the store goes from clean to dirty.
+         */
+        void onDirty();
+    }
+
+    /**
+     * A reusable copy of the state of one device.
+     */
+    public static class Entry {
+        public Object state;
+        public long ts;
+        // Incremented on every update of the device, 0 if it never had a state
+        public long version;
+    }
+
+    private Object[] mStates = new Object[16];
+    private long[] mTimestamps = new long[16];
+    private long[] mVersions = new long[16];
+    private long mUpdateCount = 0;
+    private final AtomicBoolean mDirty = new AtomicBoolean(false);
+    private volatile Listener mListener = null;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void update(int index, Object state, long ts) {
+        synchronized (this) {
+            ensureCapacity(index);
+            mStates[index] = state;
+            mTimestamps[index] = ts;
+            mVersions[index]++;
+            mUpdateCount++;
+        }
+        markDirty();
+    }
+
+    /**
+     * Updates the state of a device unless it already has a state at least as recent,
+     * e.g. for states read from the history while live messages arrive.
+     */
+    public void updateIfNewer(int index, Object state, long ts) {
+        synchronized (this) {
+            ensureCapacity(index);
+            if (mVersions[index] != 0 && mTimestamps[index] >= ts) {
+                return;
+            }
+            mStates[index] = state;
+            mTimestamps[index] = ts;
+            mVersions[index]++;
+            mUpdateCount++;
+        }
+        markDirty();
+    }
+
+    private void markDirty() {
+        if (mDirty.compareAndSet(false, true)) {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onDirty();
+            }
+        }
+    }
+
+    /**
+     * Clears the dirty flag.
+     *
+     * @return true if the store was updated since the previous call
+     */
+    public boolean takeDirty() {
+        return mDirty.getAndSet(false);
+    }
+
+    /**
+     * Copies the state of a device into a reusable entry.
+     */
+    public synchronized void read(int index, Entry out) {
+        if (index < 0 || index >= mStates.length) {
+            out.state = null;
+            out.ts = 0;
+            out.version = 0;
+            return;
+        }
+        out.state = mStates[index];
+        out.ts = mTimestamps[index];
+        out.version = mVersions[index];
+    }
+
+    public synchronized long getVersion(int index) {
+        return index < mVersions.length ? mVersions[index] : 0;
+    }
+
+    /**
+     * @return the number of updates of all the devices so far, e.g. to tell whether
+     * the store changed since a copy was saved
+     */
+    public synchronized long getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    private void ensureCapacity(int index) {
+        if (index >= mStates.length) {
+            int capacity = Math.max(index + 1, mStates.length * 2);
+            mStates = Arrays.copyOf(mStates, capacity);
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+            mVersions = Arrays.copyOf(mVersions, capacity);
+        }
+    }
+}
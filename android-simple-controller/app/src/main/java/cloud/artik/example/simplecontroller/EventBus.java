@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delivers session events to the subscribers of their exact type.
+ *
+ * Events are the model objects themselves (MessageOut, Acknowledgement) or a
+ * ConnectionEvent, so nothing is wrapped or stringified on the way. Delivery is
+ * synchronous on the posting thread, usually a websocket callback thread;
+ * subscribers that touch views must hop to the main thread themselves. Posting
+ * does not allocate: the subscriber arrays are copied on subscribe/unsubscribe only.
+ */
+public class EventBus {
+    public interface Subscriber<T> {
+        void onEvent(T event);
+    }
+
+    private static final Subscriber<?>[] NO_SUBSCRIBERS = new Subscriber<?>[0];
+
+    private final ConcurrentHashMap<Class<?>, Subscriber<?>[]> mSubscribers = new ConcurrentHashMap<>();
+
+    public synchronized <T> void subscribe(Class<T> type, Subscriber<? super T> subscriber) {
+        Subscriber<?>[] current = mSubscribers.get(type);
+        if (current == null) {
+            current = NO_SUBSCRIBERS;
+        }
+        Subscriber<?>[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = subscriber;
+        mSubscribers.put(type, updated);
+    }
+
+    public synchronized <T> void unsubscribe(Class<T> type, Subscriber<? super T> subscriber) {
+        Subscriber<?>[] current = mSubscribers.get(type);
+        if (current == null) {
+            return;
+        }
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscriber) {
+                Subscriber<?>[] updated = new Subscriber<?>[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                if (updated.length == 0) {
+                    mSubscribers.remove(type);
+                } else {
+                    mSubscribers.put(type, updated);
+                }
+                return;
+            }
+        }
+    }
+
+    public boolean hasSubscribers(Class<?> type) {
+        return mSubscribers.containsKey(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void post(Object event) {
+        Subscriber<?>[] subscribers = mSubscribers.get(event.getClass());
+        if (subscribers == null) {
+            return;
+        }
+        for (int i = 0; i < subscribers.length; i++) {
+            ((Subscriber<Object>) subscribers[i]).onEvent(event);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+/**
+ * What the /live firehose subscribes to: the devices of the fleet, every device of a
+ * device type, or every device of a user. Type and user subscriptions keep one
+ * socket for any number of devices, and a short URL; messages of devices outside
+ * the fleet are dropped by the session.
+ */
+public class FirehoseFilter {
+    public enum Kind {
+        // sdid for a single device, sdids for several
+        DEVICES,
+        // sdtid
+        DEVICE_TYPE,
+        // uid
+        USER
+    }
+
+    private static final FirehoseFilter DEVICES = new FirehoseFilter(Kind.DEVICES, null);
+
+    private final Kind mKind;
+    private final String mId;
+
+    private FirehoseFilter(Kind kind, String id) {
+        mKind = kind;
+        mId = id;
+    }
+
+    public static FirehoseFilter devices() {
+        return DEVICES;
+    }
+
+    public static FirehoseFilter deviceType(String sdtid) {
+        return new FirehoseFilter(Kind.DEVICE_TYPE, sdtid);
+    }
+
+    public static FirehoseFilter user(String uid) {
+        return new FirehoseFilter(Kind.USER, uid);
+    }
+
+    public Kind getKind() {
+        return mKind;
+    }
+
+    /**
+     * @return the device type or user id, null for DEVICES
+     */
+    public String getId() {
+        return mId;
+    }
+
+    @Override
+    public String toString() {
+        return mId == null ? mKind.toString() : mKind + " " + mId;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+
+import cloud.artik.model.Acknowledgement;
+import cloud.artik.model.ActionOut;
+import cloud.artik.model.MessageOut;
+import cloud.artik.model.WebSocketError;
+import cloud.artik.websocket.ArtikCloudWebSocketCallback;
+
+/**
+ * Turns the text frames of ARTIK Cloud into callback calls, like the SDK does:
+ * pings and actions carry a type, errors an error object, device messages an sdid,
+ * and acks only a data object.
+ *
+ * Device messages for a MessageFieldsCallback are first read with its
+ * MessageFieldReader, and only decoded in full when the reader cannot handle them.
+ */
+class FrameDispatcher implements LiteWebSocket.Listener {
+    private static final String TAG = FrameDispatcher.class.getSimpleName();
+
+    private final Gson mGson;
+    private final ArtikCloudWebSocketCallback mCallback;
+    private final MessageFieldsCallback mFieldsCallback;
+    private final JsonParser mParser = new JsonParser();
+
+    FrameDispatcher(Gson gson, ArtikCloudWebSocketCallback callback) {
+        mGson = gson;
+        mCallback = callback;
+        mFieldsCallback = callback instanceof MessageFieldsCallback ? (MessageFieldsCallback) callback : null;
+    }
+
+    @Override
+    public void onOpen() {
+        mCallback.onOpen(101, "Switching Protocols");
+    }
+
+    @Override
+    public void onText(String text) {
+        if (mFieldsCallback != null) {
+            MessageFieldReader reader = mFieldsCallback.getMessageFieldReader();
+            if (reader != null && reader.read(text)) {
+                mFieldsCallback.onMessageFields(reader);
+                return;
+            }
+        }
+        JsonObject frame;
+        try {
+            frame = mParser.parse(text).getAsJsonObject();
+        } catch (JsonParseException|IllegalStateException e) {
+            Log.w(TAG, "ignoring malformed frame: " + text);
+            return;
+        }
+        JsonElement type = frame.get("type");
+        if (type != null && "ping".equals(type.getAsString())) {
+            JsonElement ts = frame.get("ts");
+            mCallback.onPing(ts == null ? System.currentTimeMillis() : ts.getAsLong());
+        } else if (type != null && "action".equals(type.getAsString())) {
+            mCallback.onAction(mGson.fromJson(frame, ActionOut.class));
+        } else if (frame.has("error")) {
+            mCallback.onError(mGson.fromJson(frame.get("error"), WebSocketError.class));
+        } else if (frame.has("sdid") || frame.has("mid")) {
+            mCallback.onMessage(mGson.fromJson(frame, MessageOut.class));
+        } else if (frame.has("data")) {
+            mCallback.onAck(mGson.fromJson(frame.get("data"), Acknowledgement.class));
+        }
+    }
+
+    @Override
+    public void onClose(int code, String reason, boolean remote) {
+        mCallback.onClose(code, reason, remote);
+    }
+
+    @Override
+    public void onFailure(IOException e) {
+        WebSocketError error = new WebSocketError();
+        error.setMessage(e.getMessage());
+        mCallback.onError(error);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One action fanned out to the devices of a group, with at most maxParallel of its
+ * commands outstanding at a time, and their combined outcome.
+ *
+ * The next device gets its command when one of the outstanding commands completes,
+ * so a large group never floods the command queue. The command of a device that is
+ * not registered is held for a replay and gives its slot back right away, so offline
+ * devices do not stall the rest of the group; the session fails it if the device does
+ * not register in time. The future is done when every command completed, whatever
+ * the outcome.
+ */
+public class GroupCommandFuture {
+    public interface Listener {
+        void onComplete(GroupCommandFuture future);
+    }
+
+    /**
+     * Sends the command of one device.
+     */
+    interface Sender {
+        CommandFuture send(String deviceId, String actionName);
+
+        /**
+         * @return true if the command waits for its device to be registered
+         */
+        boolean isHeld(CommandFuture future);
+    }
+
+    private final String mGroupName;
+    private final String mActionName;
+    private final List<String> mDeviceIds;
+    private final CommandFuture.Status[] mStatuses;
+    // Commands that gave their slot back while held
+    private final boolean[] mReleased;
+    private final int mMaxParallel;
+    private final Sender mSender;
+    private int mNext = 0;
+    private int mOutstanding = 0;
+    private int mCompleted = 0;
+    private int mAcked = 0;
+    private boolean mPumping = false;
+    private List<Listener> mListeners = null;
+
+    GroupCommandFuture(String groupName, List<String> deviceIds, String actionName, int maxParallel,
+                       Sender sender) {
+        mGroupName = groupName;
+        mActionName = actionName;
+        mDeviceIds = new ArrayList<>(deviceIds);
+        mStatuses = new CommandFuture.Status[mDeviceIds.size()];
+        mReleased = new boolean[mDeviceIds.size()];
+        mMaxParallel = Math.max(1, maxParallel);
+        mSender = sender;
+    }
+
+    /**
+     * Sends the first commands, up to maxParallel of them.
+     */
+    void start() {
+        if (mDeviceIds.isEmpty()) {
+            notifyListeners();
+            return;
+        }
+        pump();
+    }
+
+    // Sends commands while slots are free; commands completing synchronously, like
+    // rejected ones, free their slot for the same loop instead of recursing
+    private void pump() {
+        while (true) {
+            final int index;
+            synchronized (this) {
+                if (mPumping || mNext >= mDeviceIds.size() || mOutstanding >= mMaxParallel) {
+                    return;
+                }
+                mPumping = true;
+                index = mNext++;
+                mOutstanding++;
+            }
+            try {
+                CommandFuture future = mSender.send(mDeviceIds.get(index), mActionName);
+                if (mSender.isHeld(future)) {
+                    synchronized (this) {
+                        mReleased[index] = true;
+                        mOutstanding--;
+                    }
+                }
+                future.addListener(new CommandFuture.Listener() {
+                    @Override
+                    public void onComplete(CommandFuture future) {
+                        onCommandComplete(index, future.getStatus());
+                    }
+                });
+            } finally {
+                synchronized (this) {
+                    mPumping = false;
+                }
+            }
+        }
+    }
+
+    private void onCommandComplete(int index, CommandFuture.Status status) {
+        boolean done;
+        synchronized (this) {
+            mStatuses[index] = status;
+            if (!mReleased[index]) {
+                mOutstanding--;
+            }
+            mCompleted++;
+            if (status == CommandFuture.Status.ACKED) {
+                mAcked++;
+            }
+            done = mCompleted == mDeviceIds.size();
+            if (done) {
+                notifyAll();
+            }
+        }
+        if (done) {
+            notifyListeners();
+        } else {
+            pump();
+        }
+    }
+
+    private void notifyListeners() {
+        List<Listener> listeners;
+        synchronized (this) {
+            listeners = mListeners;
+            mListeners = null;
+        }
+        if (listeners != null) {
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onComplete(this);
+            }
+        }
+    }
+
+    /**
+     * Adds a listener called on the thread completing the last command, or right away
+     * if the group is already done.
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<>(1);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    public String getGroupName() {
+        return mGroupName;
+    }
+
+    public String getActionName() {
+        return mActionName;
+    }
+
+    public int getDeviceCount() {
+        return mDeviceIds.size();
+    }
+
+    public synchronized boolean isDone() {
+        return mCompleted == mDeviceIds.size();
+    }
+
+    public synchronized int getCompletedCount() {
+        return mCompleted;
+    }
+
+    public synchronized int getAckedCount() {
+        return mAcked;
+    }
+
+    /**
+     * @return true if every command of the group was acknowledged
+     */
+    public synchronized boolean isSuccess() {
+        return mAcked == mDeviceIds.size();
+    }
+
+    /**
+     * @return the status of the command of the i-th device, PENDING until it completes
+     */
+    public synchronized CommandFuture.Status getStatus(int i) {
+        return mStatuses[i] == null ? CommandFuture.Status.PENDING : mStatuses[i];
+    }
+
+    /**
+     * @return the devices whose command completed without an ack
+     */
+    public synchronized List<String> getFailedDeviceIds() {
+        List<String> failed = new ArrayList<>();
+        for (int i = 0; i < mStatuses.length; i++) {
+            if (mStatuses[i] != null && mStatuses[i] != CommandFuture.Status.ACKED) {
+                failed.add(mDeviceIds.get(i));
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Waits up to timeoutMs for every command to complete.
+     *
+     * @return true if the group is done
+     */
+    public synchronized boolean await(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while (!isDone() && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return isDone();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mActionName + " to " + mGroupName + ": " + mAcked + "/" + mDeviceIds.size() + " acked, "
+                + mCompleted + " completed";
+    }
+}
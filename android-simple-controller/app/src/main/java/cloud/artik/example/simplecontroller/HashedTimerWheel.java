@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel: a ring of buckets, one per tick, each holding a doubly linked
+ * list of the timeouts that expire on that slot of the ring.
+ *
+ * A timeout goes into the bucket of its deadline tick modulo the wheel size, so
+ * scheduling and cancelling are O(1) and a timeout costs one small node whatever the
+ * delay. The wheel does not tick while nothing is due: a one-shot task on the given
+ * scheduler wakes it up at the nearest deadline, processes the buckets of the ticks
+ * that elapsed, and arms the next wake-up. A schedule firing once a day wakes the
+ * process once a day. The expired tasks run on that scheduler thread. Timeouts fire
+ * up to one tick late.
+ */
+public class HashedTimerWheel {
+    /**
+     * A pending task, until it runs or is cancelled.
+     */
+    public final class Timeout {
+        private final Runnable mTask;
+        private long mDeadlineTick;
+        private int mBucket = -1;
+        private Timeout mPrev;
+        private Timeout mNext;
+
+        private Timeout(Runnable task) {
+            mTask = task;
+        }
+
+        /**
+         * @return false if the task already ran or was cancelled
+         */
+        public boolean cancel() {
+            return remove(this);
+        }
+
+        public boolean isPending() {
+            synchronized (HashedTimerWheel.this) {
+                return mBucket >= 0;
+            }
+        }
+    }
+
+    private static final long NO_WAKE_UP = Long.MAX_VALUE;
+
+    private final ScheduledExecutorService mScheduler;
+    private final long mTickNanos;
+    private final Timeout[] mBuckets;
+    private final int mMask;
+    private final long mStartNanos = System.nanoTime();
+    // The next tick to process, counted from mStartNanos
+    private long mTick = 0;
+    private int mSize = 0;
+    private ScheduledFuture<?> mWakeUp = null;
+    private long mWakeUpTick = NO_WAKE_UP;
+
+    private final Runnable mTickTask = new Runnable() {
+        @Override
+        public void run() {
+            advance();
+        }
+    };
+
+    /**
+     * @param tickMs    resolution of the timeouts
+     * @param wheelSize number of buckets, rounded up to a power of two; delays longer
+     *                  than tickMs * wheelSize share their bucket with nearer ones
+     */
+    public HashedTimerWheel(ScheduledExecutorService scheduler, long tickMs, int wheelSize) {
+        mScheduler = scheduler;
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        mBuckets = new Timeout[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Runs the task on the scheduler thread once the delay elapsed.
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task);
+        long deadlineNanos = System.nanoTime() - mStartNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        if (mSize == 0) {
+            // Nothing is pending, the ticks missed while idle need no processing
+            mTick = Math.max(mTick, elapsedTicks());
+        }
+        timeout.mDeadlineTick = Math.max(mTick, (deadlineNanos + mTickNanos - 1) / mTickNanos);
+        timeout.mBucket = (int) (timeout.mDeadlineTick & mMask);
+        Timeout head = mBuckets[timeout.mBucket];
+        timeout.mNext = head;
+        if (head != null) {
+            head.mPrev = timeout;
+        }
+        mBuckets[timeout.mBucket] = timeout;
+        mSize++;
+        if (timeout.mDeadlineTick < mWakeUpTick) {
+            wakeUpAt(timeout.mDeadlineTick);
+        }
+        return timeout;
+    }
+
+    /**
+     * @return the number of pending timeouts
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private long elapsedTicks() {
+        return (System.nanoTime() - mStartNanos) / mTickNanos;
+    }
+
+    private synchronized boolean remove(Timeout timeout) {
+        if (timeout.mBucket < 0) {
+            return false;
+        }
+        unlink(timeout);
+        if (mSize == 0) {
+            cancelWakeUp();
+        }
+        return true;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.mPrev != null) {
+            timeout.mPrev.mNext = timeout.mNext;
+        } else {
+            mBuckets[timeout.mBucket] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrev = timeout.mPrev;
+        }
+        timeout.mPrev = null;
+        timeout.mNext = null;
+        timeout.mBucket = -1;
+        mSize--;
+    }
+
+    // Replaces the pending wake-up by one at the start of the given tick
+    private void wakeUpAt(long tick) {
+        cancelWakeUp();
+        long delayNanos = Math.max(0, mStartNanos + tick * mTickNanos - System.nanoTime());
+        mWakeUp = mScheduler.schedule(mTickTask, delayNanos, TimeUnit.NANOSECONDS);
+        mWakeUpTick = tick;
+    }
+
+    private void cancelWakeUp() {
+        if (mWakeUp != null) {
+            mWakeUp.cancel(false);
+            mWakeUp = null;
+        }
+        mWakeUpTick = NO_WAKE_UP;
+    }
+
+    // Processes every tick up to now, at most one turn of the wheel however long the
+    // wheel slept, then arms the wake-up of the nearest deadline
+    private void advance() {
+        List<Runnable> expired = null;
+        synchronized (this) {
+            mWakeUp = null;
+            mWakeUpTick = NO_WAKE_UP;
+            long now = elapsedTicks();
+            long last = Math.min(now, mTick + mBuckets.length - 1);
+            for (long tick = mTick; tick <= last && mSize > 0; tick++) {
+                Timeout timeout = mBuckets[(int) (tick & mMask)];
+                while (timeout != null) {
+                    Timeout next = timeout.mNext;
+                    if (timeout.mDeadlineTick <= now) {
+                        unlink(timeout);
+                        if (expired == null) {
+                            expired = new ArrayList<>();
+                        }
+                        expired.add(timeout.mTask);
+                    }
+                    timeout = next;
+                }
+            }
+            mTick = Math.max(mTick, now + 1);
+            if (mSize > 0) {
+                wakeUpAt(nextDeadlineTick());
+            }
+        }
+        if (expired == null) {
+            return;
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            try {
+                expired.get(i).run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // The first bucket of the coming turn with a timeout due in this turn holds the
+    // nearest deadline; without one, every pending timeout is looked at
+    private long nextDeadlineTick() {
+        long end = mTick + mBuckets.length;
+        for (long tick = mTick; tick < end; tick++) {
+            for (Timeout timeout = mBuckets[(int) (tick & mMask)]; timeout != null; timeout = timeout.mNext) {
+                if (timeout.mDeadlineTick == tick) {
+                    return tick;
+                }
+            }
+        }
+        long nearest = NO_WAKE_UP;
+        for (int bucket = 0; bucket < mBuckets.length; bucket++) {
+            for (Timeout timeout = mBuckets[bucket]; timeout != null; timeout = timeout.mNext) {
+                nearest = Math.min(nearest, timeout.mDeadlineTick);
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloud.artik.model.NormalizedMessage;
+
+/**
+ * Fills the DeviceStateStore and the StateHistory with the recent messages of the
+ * fleet, so the state of the devices is known before they publish a new one.
+ *
+ * The fleet is split into pages of devices, one REST request each. A bounded number
+ * of pages are requested in parallel, and each page is applied as soon as it
+ * arrives. A state from the history never replaces a newer one received on /live
+ * in the meantime.
+ */
+public class HistoryBackfill {
+    private static final String TAG = HistoryBackfill.class.getSimpleName();
+
+    private static final Comparator<NormalizedMessage> BY_TS = new Comparator<NormalizedMessage>() {
+        @Override
+        public int compare(NormalizedMessage first, NormalizedMessage second) {
+            long firstTs = first.getTs() == null ? 0 : first.getTs();
+            long secondTs = second.getTs() == null ? 0 : second.getTs();
+            return firstTs < secondTs ? -1 : (firstTs == secondTs ? 0 : 1);
+        }
+    };
+
+    private final DeviceFleet mFleet;
+    private final DeviceStateStore mStateStore;
+    private final StateHistory mStateHistory;
+    private final String mStateField;
+    private final int mDevicesPerPage;
+    private final int mMessagesPerDevice;
+    private final int mMaxConcurrentPages;
+    private Run mRun = null;
+
+    /**
+     * @param devicesPerPage     devices per request, which bounds the URL length
+     * @param messagesPerDevice  messages requested per device
+     * @param maxConcurrentPages requests in flight at the same time
+     */
+    public HistoryBackfill(DeviceFleet fleet, DeviceStateStore stateStore, StateHistory stateHistory,
+                           String stateField, int devicesPerPage, int messagesPerDevice, int maxConcurrentPages) {
+        mFleet = fleet;
+        mStateStore = stateStore;
+        mStateHistory = stateHistory;
+        mStateField = stateField;
+        mDevicesPerPage = devicesPerPage;
+        mMessagesPerDevice = messagesPerDevice;
+        mMaxConcurrentPages = maxConcurrentPages;
+    }
+
+    /**
+     * Starts fetching the history of the devices, cancelling a previous backfill.
+     * Non blocking.
+     */
+    public synchronized void start(MessageHistorySource source, List<String> deviceIds) {
+        cancel();
+        List<String> pages = new ArrayList<>();
+        for (int i = 0; i < deviceIds.size(); i += mDevicesPerPage) {
+            StringBuilder sdids = new StringBuilder();
+            for (int j = i; j < Math.min(deviceIds.size(), i + mDevicesPerPage); j++) {
+                if (j > i) {
+                    sdids.append(',');
+                }
+                sdids.append(deviceIds.get(j));
+            }
+            pages.add(sdids.toString());
+        }
+        if (pages.isEmpty()) {
+            return;
+        }
+        mRun = new Run(source, pages);
+        mRun.start();
+    }
+
+    /**
+     * Stops the current backfill; pages still in flight are discarded.
+     */
+    public synchronized void cancel() {
+        if (mRun != null) {
+            mRun.cancel();
+            mRun = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mRun != null && !mRun.isDone();
+    }
+
+    private class Run {
+        final MessageHistorySource mSource;
+        final List<String> mPages;
+        final ExecutorService mExecutor;
+        final AtomicInteger mRemaining;
+        final AtomicInteger mFailed = new AtomicInteger();
+        final AtomicInteger mApplied = new AtomicInteger();
+        final long mStartedAt = System.currentTimeMillis();
+        volatile boolean mCancelled = false;
+
+        Run(MessageHistorySource source, List<String> pages) {
+            mSource = source;
+            mPages = pages;
+            mExecutor = Executors.newFixedThreadPool(Math.min(mMaxConcurrentPages, pages.size()));
+            mRemaining = new AtomicInteger(pages.size());
+        }
+
+        void start() {
+            for (final String sdids : mPages) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetch(sdids);
+                    }
+                });
+            }
+            // The threads end once the queued pages are done
+            mExecutor.shutdown();
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mExecutor.shutdownNow();
+        }
+
+        boolean isDone() {
+            return mRemaining.get() == 0;
+        }
+
+        private void fetch(String sdids) {
+            try {
+                if (!mCancelled) {
+                    apply(mSource.getLastMessages(sdids, mMessagesPerDevice, mStateField));
+                }
+            } catch (IOException|RuntimeException e) {
+                mFailed.incrementAndGet();
+                Log.w(TAG, "history page failed: " + e.getMessage());
+            }
+            if (mRemaining.decrementAndGet() == 0 && !mCancelled) {
+                Log.i(TAG, "backfilled " + mApplied.get() + " messages of " + mPages.size() + " pages in "
+                        + (System.currentTimeMillis() - mStartedAt) + " ms, " + mFailed.get() + " pages failed");
+            }
+        }
+
+        private void apply(List<NormalizedMessage> messages) {
+            List<NormalizedMessage> sorted = new ArrayList<>(messages);
+            // The history only takes changes in ts order
+            Collections.sort(sorted, BY_TS);
+            for (int i = 0; i < sorted.size() && !mCancelled; i++) {
+                NormalizedMessage message = sorted.get(i);
+                int index = mFleet.indexOf(message.getSdid());
+                Map<String, Object> data = message.getData();
+                if (index < 0 || data == null || !data.containsKey(mStateField)) {
+                    continue;
+                }
+                Object state = data.get(mStateField);
+                long ts = message.getTs() == null ? 0 : message.getTs();
+                mStateHistory.record(index, state, ts);
+                mStateStore.updateIfNewer(index, state, ts);
+                mApplied.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.List;
+
+/**
+ * The frames sent on the device channel and not yet acknowledged, keyed by the
+ * numeric cid of their ActionIn.
+ *
+ * Open addressing over primitive long keys, so adding and removing an entry does
+ * not allocate. put() blocks while maxOutstanding frames are in flight, which
+ * bounds the pipelining window of the sender.
+ */
+public class InFlightTable {
+    private static final long EMPTY = 0;
+
+    private long[] mKeys;
+    private ActionBatch[] mBatches;
+    private int mMask;
+    private int mMaxOutstanding;
+    private int mSize = 0;
+
+    public InFlightTable(int maxOutstanding) {
+        allocate(capacityFor(maxOutstanding));
+        mMaxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * Changes how many frames may be in flight. Lowering the limit does not drop
+     * frames; it only delays new ones until enough acks arrived.
+     */
+    public synchronized void setMaxOutstanding(int maxOutstanding) {
+        int capacity = capacityFor(maxOutstanding);
+        if (capacity > mKeys.length) {
+            long[] keys = mKeys;
+            ActionBatch[] batches = mBatches;
+            allocate(capacity);
+            mSize = 0;
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != EMPTY) {
+                    put(keys[slot], batches[slot]);
+                }
+            }
+        }
+        mMaxOutstanding = maxOutstanding;
+        notifyAll();
+    }
+
+    // At most half full, so probe sequences stay short
+    private static int capacityFor(int maxOutstanding) {
+        return Integer.highestOneBit(Math.max(2, maxOutstanding) * 2 - 1) << 1;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mBatches = new ActionBatch[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Waits for a free slot, at most maxWaitMs.
+     *
+     * @return false if the table was still full when maxWaitMs elapsed
+     */
+    public synchronized boolean awaitSlot(long maxWaitMs) throws InterruptedException {
+        if (mSize < mMaxOutstanding) {
+            return true;
+        }
+        wait(maxWaitMs);
+        return mSize < mMaxOutstanding;
+    }
+
+    /**
+     * Adds a frame; the caller must have obtained a slot with awaitSlot().
+     *
+     * @param cid a positive, unique cid
+     */
+    public synchronized void put(long cid, ActionBatch batch) {
+        int slot = slotOf(cid);
+        while (mKeys[slot] != EMPTY) {
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = cid;
+        mBatches[slot] = batch;
+        mSize++;
+    }
+
+    /**
+     * @return the frame sent with this cid, or null if it is not in flight
+     */
+    public synchronized ActionBatch remove(long cid) {
+        if (cid <= 0) {
+            return null;
+        }
+        int slot = slotOf(cid);
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == cid) {
+                ActionBatch batch = mBatches[slot];
+                deleteSlot(slot);
+                return batch;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return null;
+    }
+
+    /**
+     * Removes every frame sent before sentBeforeNanos.
+     */
+    public synchronized void expire(long sentBeforeNanos, List<ActionBatch> expired) {
+        int slot = 0;
+        while (slot < mKeys.length) {
+            ActionBatch batch = mBatches[slot];
+            if (batch != null && batch.getSentAtNanos() - sentBeforeNanos < 0) {
+                expired.add(batch);
+                // The backward shift may move another entry into this slot; look at it again
+                deleteSlot(slot);
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    /**
+     * Removes the frames written to one shard of the device channel pool, e.g. after
+     * its connection closed.
+     */
+    public synchronized void clearShard(int shard, List<ActionBatch> removed) {
+        int slot = 0;
+        while (slot < mKeys.length) {
+            ActionBatch batch = mBatches[slot];
+            if (batch != null && batch.getShard() == shard) {
+                removed.add(batch);
+                // The backward shift may move another entry into this slot; look at it again
+                deleteSlot(slot);
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    /**
+     * @return the number of frames written to the shard and not acknowledged yet
+     */
+    public synchronized int sizeOfShard(int shard) {
+        int count = 0;
+        for (int slot = 0; slot < mBatches.length; slot++) {
+            if (mBatches[slot] != null && mBatches[slot].getShard() == shard) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes every frame, e.g. after the device channel closed.
+     */
+    public synchronized void clear(List<ActionBatch> removed) {
+        for (int slot = 0; slot < mKeys.length; slot++) {
+            if (mBatches[slot] != null) {
+                removed.add(mBatches[slot]);
+                mBatches[slot] = null;
+                mKeys[slot] = EMPTY;
+            }
+        }
+        mSize = 0;
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int getMaxOutstanding() {
+        return mMaxOutstanding;
+    }
+
+    private int slotOf(long cid) {
+        long h = cid * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+
+    // Backward shift deletion keeps the probe sequences intact without tombstones
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mMask;
+        while (mKeys[next] != EMPTY) {
+            int home = slotOf(mKeys[next]);
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mKeys[hole] = mKeys[next];
+                mBatches[hole] = mBatches[next];
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mKeys[hole] = EMPTY;
+        mBatches[hole] = null;
+        mSize--;
+        notifyAll();
+    }
+
+    /**
+     * Parses a cid produced by the command pipeline without allocating.
+     *
+     * @return the cid, or -1 if it is not a command cid (e.g. a registration cid)
+     */
+    public static long parseCid(String cid) {
+        if (cid == null || cid.length() == 0 || cid.length() > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < cid.length(); i++) {
+            char c = cid.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.Locale;
+
+/**
+ * A fixed-size latency histogram with log-linear buckets, in the style of HdrHistogram.
+ *
+ * Values are in microseconds. Each power of two range is split into the same number
+ * of linear sub-buckets, so the relative error of a reported percentile is bounded by
+ * 1 / 2^(subBucketBits - 1) over the whole range. Recording does not allocate.
+ */
+public class LatencyHistogram {
+    // Anything longer is recorded as this value: one hour
+    public static final long MAX_VALUE_US = 3600L * 1000 * 1000;
+
+    private final int mSubBucketBits;
+    private final long mSubBucketMask;
+    private final long[] mCounts;
+    private long mTotalCount = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+    private long mSum = 0;
+
+    /**
+     * @param subBucketBits 8 keeps percentiles within ~1%, 5 within ~6% at an eighth
+     *                      of the memory
+     */
+    public LatencyHistogram(int subBucketBits) {
+        mSubBucketBits = subBucketBits;
+        mSubBucketMask = (1L << subBucketBits) - 1;
+        mCounts = new long[indexOf(MAX_VALUE_US) + 1];
+    }
+
+    public synchronized void recordValue(long valueUs) {
+        long value = Math.max(0, Math.min(valueUs, MAX_VALUE_US));
+        mCounts[indexOf(value)]++;
+        mTotalCount++;
+        mSum += value;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized double getMean() {
+        return mTotalCount == 0 ? 0 : (double) mSum / mTotalCount;
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return the highest value equivalent to the value at that percentile, 0 if empty
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * mTotalCount));
+        long seen = 0;
+        for (int index = 0; index < mCounts.length; index++) {
+            seen += mCounts[index];
+            if (seen >= target) {
+                return Math.min(highestValueOf(index), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int index = 0; index < mCounts.length; index++) {
+            mCounts[index] = 0;
+        }
+        mTotalCount = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+        mSum = 0;
+    }
+
+    /**
+     * Appends one line per non-empty bucket: upper bound in microseconds, count and
+     * cumulative percentile, separated by commas.
+     */
+    public synchronized void appendDistribution(StringBuilder out) {
+        long seen = 0;
+        for (int index = 0; index < mCounts.length; index++) {
+            if (mCounts[index] == 0) {
+                continue;
+            }
+            seen += mCounts[index];
+            out.append(highestValueOf(index)).append(',')
+                    .append(mCounts[index]).append(',')
+                    .append(String.format(Locale.US, "%.4f", 100.0 * seen / mTotalCount))
+                    .append('\n');
+        }
+    }
+
+    private int indexOf(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value | mSubBucketMask);
+        int shift = msb - (mSubBucketBits - 1);
+        return (shift << (mSubBucketBits - 1)) + (int) (value >>> shift);
+    }
+
+    private long highestValueOf(int index) {
+        int subBucketCount = 1 << mSubBucketBits;
+        if (index < subBucketCount) {
+            return index;
+        }
+        int shift = (index >> (mSubBucketBits - 1)) - 1;
+        long lowest = (long) (index - (shift << (mSubBucketBits - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
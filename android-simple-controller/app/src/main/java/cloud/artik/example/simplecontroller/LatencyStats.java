@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Round-trip latency of the command path, split in three intervals:
+ *
+ *  click to send: from the command being submitted to its frame being written,
+ *  send to ack: from the frame being written to its ack on /websocket,
+ *  send to state: from the frame being written to the next state message of the
+ *  device on /live.
+ *
+ * All intervals are measured with System.nanoTime() on this phone; the ts fields
+ * of ActionIn and MessageOut come from different clocks and are not comparable.
+ * Fleet-wide histograms are precise to ~1%; the per-device histograms are coarser
+ * (~6%) to keep the memory of a large fleet small, and are only allocated for
+ * devices that were actually commanded.
+ */
+public class LatencyStats {
+    public static final int CLICK_TO_SEND = 0;
+    public static final int SEND_TO_ACK = 1;
+    public static final int SEND_TO_STATE = 2;
+    private static final String[] INTERVAL_NAMES = {"click->send", "send->ack", "send->state"};
+
+    private static final int FLEET_SUB_BUCKET_BITS = 8;
+    private static final int DEVICE_SUB_BUCKET_BITS = 5;
+    private static final long NO_PENDING_SEND = 0;
+
+    private final DeviceFleet mFleet;
+    private final LatencyHistogram[] mFleetHistograms = new LatencyHistogram[INTERVAL_NAMES.length];
+    private LatencyHistogram[][] mDeviceHistograms = new LatencyHistogram[16][];
+    // Send time of the latest frame per device still waiting for a state change
+    private long[] mPendingSendNanos = new long[16];
+
+    public LatencyStats(DeviceFleet fleet) {
+        mFleet = fleet;
+        for (int interval = 0; interval < mFleetHistograms.length; interval++) {
+            mFleetHistograms[interval] = new LatencyHistogram(FLEET_SUB_BUCKET_BITS);
+        }
+    }
+
+    /**
+     * Records click to send for every command of a frame that was just written.
+     */
+    public void onSent(ActionBatch batch) {
+        int index = mFleet.indexOf(batch.getDeviceId());
+        long sentAt = batch.getSentAtNanos();
+        for (int i = 0; i < batch.getCommands().size(); i++) {
+            record(CLICK_TO_SEND, index, sentAt - batch.getCommands().get(i).getCreatedAtNanos());
+        }
+        if (index >= 0) {
+            synchronized (this) {
+                ensureCapacity(index);
+                mPendingSendNanos[index] = sentAt;
+            }
+        }
+    }
+
+    public void onAcked(ActionBatch batch, long ackedAtNanos) {
+        record(SEND_TO_ACK, mFleet.indexOf(batch.getDeviceId()), ackedAtNanos - batch.getSentAtNanos());
+    }
+
+    /**
+     * Records send to state for the device if a frame sent to it is waiting for a state change.
+     */
+    public void onStateMessage(String deviceId, long receivedAtNanos) {
+        int index = mFleet.indexOf(deviceId);
+        if (index < 0) {
+            return;
+        }
+        long sentAt;
+        synchronized (this) {
+            if (index >= mPendingSendNanos.length || mPendingSendNanos[index] == NO_PENDING_SEND) {
+                return;
+            }
+            sentAt = mPendingSendNanos[index];
+            mPendingSendNanos[index] = NO_PENDING_SEND;
+        }
+        record(SEND_TO_STATE, index, receivedAtNanos - sentAt);
+    }
+
+    public LatencyHistogram getHistogram(int interval) {
+        return mFleetHistograms[interval];
+    }
+
+    /**
+     * @return the histogram of one device, or null if nothing was recorded for it
+     */
+    public synchronized LatencyHistogram getDeviceHistogram(int deviceIndex, int interval) {
+        if (deviceIndex >= mDeviceHistograms.length || mDeviceHistograms[deviceIndex] == null) {
+            return null;
+        }
+        return mDeviceHistograms[deviceIndex][interval];
+    }
+
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : mFleetHistograms) {
+            histogram.reset();
+        }
+        Arrays.fill(mDeviceHistograms, null);
+        Arrays.fill(mPendingSendNanos, NO_PENDING_SEND);
+    }
+
+    /**
+     * @return a human readable summary with p50/p99/p999 per interval, fleet-wide and per device
+     */
+    public String getSummary() {
+        StringBuilder out = new StringBuilder();
+        for (int interval = 0; interval < mFleetHistograms.length; interval++) {
+            appendPercentiles(out, "all", interval, mFleetHistograms[interval]);
+        }
+        for (int index = 0; index < mFleet.size(); index++) {
+            for (int interval = 0; interval < mFleetHistograms.length; interval++) {
+                LatencyHistogram histogram = getDeviceHistogram(index, interval);
+                if (histogram != null) {
+                    appendPercentiles(out, mFleet.getDeviceName(index), interval, histogram);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the fleet-wide distributions as CSV: interval, upper bound (us), count, percentile
+     */
+    public String export() {
+        StringBuilder out = new StringBuilder("interval,value_us,count,percentile\n");
+        StringBuilder distribution = new StringBuilder();
+        for (int interval = 0; interval < mFleetHistograms.length; interval++) {
+            distribution.setLength(0);
+            mFleetHistograms[interval].appendDistribution(distribution);
+            int start = 0;
+            while (start < distribution.length()) {
+                int end = distribution.indexOf("\n", start) + 1;
+                out.append(INTERVAL_NAMES[interval]).append(',').append(distribution, start, end);
+                start = end;
+            }
+        }
+        return out.toString();
+    }
+
+    private void appendPercentiles(StringBuilder out, String name, int interval, LatencyHistogram histogram) {
+        out.append(String.format(Locale.US, "%s %s: n=%d p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms\n",
+                name, INTERVAL_NAMES[interval], histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0));
+    }
+
+    private void record(int interval, int deviceIndex, long elapsedNanos) {
+        long elapsedUs = elapsedNanos / 1000;
+        mFleetHistograms[interval].recordValue(elapsedUs);
+        if (deviceIndex >= 0) {
+            deviceHistogram(deviceIndex, interval).recordValue(elapsedUs);
+        }
+    }
+
+    private synchronized LatencyHistogram deviceHistogram(int deviceIndex, int interval) {
+        ensureCapacity(deviceIndex);
+        LatencyHistogram[] histograms = mDeviceHistograms[deviceIndex];
+        if (histograms == null) {
+            histograms = new LatencyHistogram[INTERVAL_NAMES.length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram(DEVICE_SUB_BUCKET_BITS);
+            }
+            mDeviceHistograms[deviceIndex] = histograms;
+        }
+        return histograms[interval];
+    }
+
+    private void ensureCapacity(int deviceIndex) {
+        if (deviceIndex >= mPendingSendNanos.length) {
+            int capacity = Math.max(deviceIndex + 1, mPendingSendNanos.length * 2);
+            mPendingSendNanos = Arrays.copyOf(mPendingSendNanos, capacity);
+            mDeviceHistograms = Arrays.copyOf(mDeviceHistograms, capacity);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+
+import cloud.artik.model.ActionIn;
+import cloud.artik.model.RegisterMessage;
+import cloud.artik.websocket.ArtikCloudWebSocketCallback;
+
+/**
+ * Creates LiteWebSocket connections under a configurable base URL, e.g.
+ * ws://10.0.2.2:8888/v1.1 for the cloud-standin server seen from the emulator.
+ *
+ * Action frames are written by the session's ActionFrameEncoder through
+ * TextFrameChannel, and state messages of /live are read in place by the
+ * MessageFieldReader of FrameDispatcher. Other frames are encoded and decoded with
+ * the Gson models of the SDK and dispatched to the same ArtikCloudWebSocketCallback
+ * as the SDK websockets, so the session handles both the same way.
+ */
+public class LiteSocketFactory implements CloudSocketFactory {
+    private final String mBaseUrl;
+    private final Gson mGson = new Gson();
+
+    /**
+     * @param baseUrl ws:// or wss:// URL the /live and /websocket paths are appended to
+     */
+    public LiteSocketFactory(String baseUrl) {
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    public String getBaseUrl() {
+        return mBaseUrl;
+    }
+
+    @Override
+    public CloudSocket createFirehose(String accessToken, String sdid, String sdids, String sdtid, String uid,
+                                      ArtikCloudWebSocketCallback callback) throws URISyntaxException, IOException {
+        StringBuilder url = new StringBuilder(mBaseUrl).append("/live?Authorization=")
+                .append(encode("bearer " + accessToken));
+        appendParameter(url, "sdid", sdid);
+        appendParameter(url, "sdids", sdids);
+        appendParameter(url, "sdtid", sdtid);
+        appendParameter(url, "uid", uid);
+        final LiteWebSocket socket = new LiteWebSocket(new URI(url.toString()), new FrameDispatcher(mGson, callback));
+        return new CloudSocket() {
+            @Override
+            public void connect() throws IOException {
+                socket.connect();
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    @Override
+    public DeviceChannel createDeviceChannel(boolean ack, ArtikCloudWebSocketCallback callback)
+            throws URISyntaxException, IOException {
+        final LiteWebSocket socket = new LiteWebSocket(new URI(mBaseUrl + "/websocket?ack=" + ack),
+                new FrameDispatcher(mGson, callback));
+        return new TextFrameChannel() {
+            @Override
+            public void connect() throws IOException {
+                socket.connect();
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+
+            @Override
+            public void registerChannel(RegisterMessage registerMessage) throws IOException {
+                socket.sendText(mGson.toJson(registerMessage));
+            }
+
+            @Override
+            public void sendAction(ActionIn actionIn) throws IOException {
+                socket.sendText(mGson.toJson(actionIn));
+            }
+
+            @Override
+            public void sendText(byte[] utf8, int length) throws IOException {
+                socket.sendText(utf8, length);
+            }
+        };
+    }
+
+    private static void appendParameter(StringBuilder url, String name, String value)
+            throws UnsupportedEncodingException {
+        if (value != null) {
+            url.append('&').append(name).append('=').append(encode(value));
+        }
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import android.util.Base64;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Minimal RFC 6455 websocket client, used when the session talks to a configurable
+ * ws:// or wss:// base URL instead of the hardcoded host of the SDK websockets. Unlike
+ * the SDK websockets, it hands the raw frames to the allocation-free encoder and field
+ * reader of the session.
+ *
+ * connect() returns right away; the connection, handshake and reads run on a
+ * dedicated thread, which also calls the listener. Text frames are sent from any
+ * thread.
+ */
+public class LiteWebSocket {
+    private static final String TAG = LiteWebSocket.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private static final int CLOSE_NORMAL = 1000;
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+    private static final int CLOSE_ABNORMAL = 1006;
+
+    public interface Listener {
+        void onOpen();
+
+        void onText(String text);
+
+        void onClose(int code, String reason, boolean remote);
+
+        void onFailure(IOException e);
+    }
+
+    private final URI mUri;
+    private final Listener mListener;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final byte[] mMask = new byte[4];
+    // Reused by every write, grown when a larger frame is sent
+    private byte[] mFrameBuffer = new byte[512];
+    private volatile Socket mSocket = null;
+    private OutputStream mOut = null;
+    private volatile boolean mClosed = false;
+
+    public LiteWebSocket(URI uri, Listener listener) {
+        String scheme = uri.getScheme();
+        if (!"ws".equals(scheme) && !"wss".equals(scheme)) {
+            throw new IllegalArgumentException("not a websocket URI: " + uri);
+        }
+        mUri = uri;
+        mListener = listener;
+    }
+
+    /**
+     * Opens the connection in the background. Non blocking.
+     */
+    public void connect() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runConnection();
+            }
+        }, TAG + " " + mUri.getPath());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void sendText(String text) throws IOException {
+        byte[] payload = text.getBytes(UTF_8);
+        sendFrame(OP_TEXT, payload, payload.length);
+    }
+
+    /**
+     * Sends the first length bytes of an UTF-8 encoded text. The bytes are copied, so
+     * the caller can reuse the array as soon as this returns.
+     */
+    public void sendText(byte[] utf8, int length) throws IOException {
+        sendFrame(OP_TEXT, utf8, length);
+    }
+
+    /**
+     * Sends a close frame and closes the socket. The listener gets no onClose() for a
+     * connection closed locally.
+     */
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        Socket socket = mSocket;
+        if (socket == null) {
+            return;
+        }
+        try {
+            byte[] payload = new byte[] {(byte) (CLOSE_NORMAL >> 8), (byte) CLOSE_NORMAL};
+            sendFrame(OP_CLOSE, payload, payload.length);
+        } catch (IOException e) {
+            // Closing anyway
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void runConnection() {
+        InputStream in;
+        try {
+            in = open();
+        } catch (IOException e) {
+            closeQuietly();
+            if (!mClosed) {
+                mListener.onFailure(e);
+            }
+            return;
+        }
+        mListener.onOpen();
+        try {
+            readLoop(in);
+        } catch (IOException e) {
+            closeQuietly();
+            if (!mClosed) {
+                mClosed = true;
+                if (e instanceof EOFException) {
+                    mListener.onClose(CLOSE_ABNORMAL, "connection lost", true);
+                } else {
+                    mListener.onFailure(e);
+                }
+            }
+        }
+    }
+
+    // Connects and performs the upgrade handshake; returns the stream the frames follow on
+    private InputStream open() throws IOException {
+        boolean secure = "wss".equals(mUri.getScheme());
+        String host = mUri.getHost();
+        int port = mUri.getPort() != -1 ? mUri.getPort() : (secure ? 443 : 80);
+        Socket socket = new Socket();
+        mSocket = socket;
+        if (mClosed) {
+            throw new IOException("closed");
+        }
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        socket.setTcpNoDelay(true);
+        if (secure) {
+            // Layered over the connected socket with the host name, so the handshake
+            // sends it (SNI), which the shared front ends of api.artik.cloud expect
+            SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                    .createSocket(socket, host, port, true);
+            socket = sslSocket;
+            mSocket = socket;
+            sslSocket.startHandshake();
+            if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+                throw new IOException("certificate does not match " + host);
+            }
+        }
+
+        byte[] nonce = new byte[16];
+        mRandom.nextBytes(nonce);
+        String key = Base64.encodeToString(nonce, Base64.NO_WRAP);
+        String target = mUri.getRawPath() + (mUri.getRawQuery() != null ? "?" + mUri.getRawQuery() : "");
+        String request = "GET " + target + " HTTP/1.1\r\n"
+                + "Host: " + host + (mUri.getPort() != -1 ? ":" + port : "") + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n";
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        out.write(request.getBytes(UTF_8));
+        out.flush();
+
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String statusLine = readLine(in);
+        if (!statusLine.startsWith("HTTP/1.1 101")) {
+            throw new IOException("upgrade refused: " + statusLine);
+        }
+        String accept = null;
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && "sec-websocket-accept".equals(line.substring(0, colon).trim().toLowerCase(Locale.US))) {
+                accept = line.substring(colon + 1).trim();
+            }
+        }
+        if (!expectedAccept(key).equals(accept)) {
+            throw new IOException("invalid Sec-WebSocket-Accept");
+        }
+        synchronized (this) {
+            mOut = out;
+        }
+        return in;
+    }
+
+    private void readLoop(InputStream in) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        boolean inText = false;
+        while (true) {
+            int b0 = readByte(in);
+            int b1 = readByte(in);
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            // A server must not mask its frames, and no extension was negotiated that
+            // would give the RSV bits a meaning (RFC 6455, 5.1 and 5.2)
+            if ((b1 & 0x80) != 0) {
+                closeOnProtocolError("masked frame");
+                return;
+            }
+            if ((b0 & 0x70) != 0) {
+                closeOnProtocolError("nonzero RSV bits");
+                return;
+            }
+            if (opcode == OP_TEXT && inText) {
+                // A fragmented message must not be interleaved with another one (5.4)
+                closeOnProtocolError("text frame inside a fragmented message");
+                return;
+            }
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte(in) << 8) | readByte(in);
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte(in);
+                }
+            }
+            if (length < 0) {
+                // The most significant bit of a 64-bit length must be 0 (RFC 6455, 5.2)
+                closeOnProtocolError("invalid payload length");
+                return;
+            }
+            if (length > MAX_PAYLOAD_BYTES || message.size() + length > MAX_PAYLOAD_BYTES) {
+                throw new IOException("frame too big: " + length);
+            }
+            byte[] payload = new byte[(int) length];
+            readFully(in, payload);
+
+            switch (opcode) {
+                case OP_PING:
+                    sendFrame(OP_PONG, payload, payload.length);
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_CLOSE:
+                    int code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : CLOSE_NORMAL;
+                    String reason = payload.length > 2 ? new String(payload, 2, payload.length - 2, UTF_8) : "";
+                    if (!mClosed) {
+                        mClosed = true;
+                        try {
+                            sendFrame(OP_CLOSE, payload, Math.min(payload.length, 2));
+                        } catch (IOException e) {
+                            // The peer may already be gone
+                        }
+                        closeQuietly();
+                        mListener.onClose(code, reason, true);
+                    }
+                    return;
+                case OP_TEXT:
+                case OP_CONTINUATION:
+                    if (opcode == OP_TEXT) {
+                        inText = true;
+                        message.reset();
+                    }
+                    if (inText) {
+                        message.write(payload, 0, payload.length);
+                        if (fin) {
+                            inText = false;
+                            mListener.onText(new String(message.toByteArray(), UTF_8));
+                            message.reset();
+                        }
+                    }
+                    break;
+                default:
+                    // Binary frames are not part of the ARTIK Cloud protocol
+                    break;
+            }
+        }
+    }
+
+    private void closeOnProtocolError(String reason) {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            byte[] payload = new byte[] {(byte) (CLOSE_PROTOCOL_ERROR >> 8), (byte) CLOSE_PROTOCOL_ERROR};
+            sendFrame(OP_CLOSE, payload, payload.length);
+        } catch (IOException e) {
+            // The peer may already be gone
+        }
+        closeQuietly();
+        mListener.onClose(CLOSE_PROTOCOL_ERROR, reason, false);
+    }
+
+    // Client frames are masked, as required by RFC 6455
+    private synchronized void sendFrame(int opcode, byte[] payload, int length) throws IOException {
+        if (mOut == null) {
+            throw new IOException("not connected");
+        }
+        int headerLength = length < 126 ? 2 : (length <= 0xFFFF ? 4 : 10);
+        int frameLength = headerLength + 4 + length;
+        if (mFrameBuffer.length < frameLength) {
+            mFrameBuffer = new byte[Math.max(frameLength, mFrameBuffer.length * 2)];
+        }
+        byte[] frame = mFrameBuffer;
+        frame[0] = (byte) (0x80 | opcode);
+        int offset;
+        if (length < 126) {
+            frame[1] = (byte) (0x80 | length);
+            offset = 2;
+        } else if (length <= 0xFFFF) {
+            frame[1] = (byte) (0x80 | 126);
+            frame[2] = (byte) (length >> 8);
+            frame[3] = (byte) length;
+            offset = 4;
+        } else {
+            frame[1] = (byte) (0x80 | 127);
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >> (56 - 8 * i));
+            }
+            offset = 10;
+        }
+        mRandom.nextBytes(mMask);
+        System.arraycopy(mMask, 0, frame, offset, 4);
+        offset += 4;
+        for (int i = 0; i < length; i++) {
+            frame[offset + i] = (byte) (payload[i] ^ mMask[i & 3]);
+        }
+        mOut.write(frame, 0, offset + length);
+        mOut.flush();
+    }
+
+    private void closeQuietly() {
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+    }
+
+    private static String expectedAccept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(UTF_8)), Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = readByte(in)) != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
@@ -37,7 +37,8 @@ public class LoginActivity extends Activity {
         mWebView = (WebView)findViewById(R.id.webview);
         mWebView.setVisibility(View.GONE);
         mLoginView = findViewById(R.id.ask_for_login);
-        mLoginView.setVisibility(View.VISIBLE);
+        // Shown once the saved token turned out to be missing or expired
+        mLoginView.setVisibility(View.GONE);
         Button button = (Button)findViewById(R.id.btn);
 
         Log.v(TAG, "::onCreate");
@@ -53,8 +54,45 @@ public class LoginActivity extends Activity {
             }
         });
 
+        // The session loads the token of the previous run in the background
+        ArtikCloudSession session = ArtikCloudSession.getInstance();
+        session.setContext(this);
+        session.whenRestored(new Runnable() {
+            @Override
+            public void run() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            onSessionRestored();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void onSessionRestored() {
+        // A token of the previous run that is still valid skips the login: the
+        // connections open while the control screen inflates, and the screen shows
+        // the last known states until they report again
+        ArtikCloudSession session = ArtikCloudSession.getInstance();
+        if (session.hasValidAccessToken()) {
+            Log.d(TAG, "reusing the saved access token");
+            session.ensureConnected();
+            startControlActivity();
+            finish();
+            return;
+        }
+
         // Reset to start a new session cleanly
-        ArtikCloudSession.getInstance().reset();
+        session.reset();
+        mLoginView.setVisibility(View.VISIBLE);
+
+        // Builds for a local test server skip the OAuth login
+        if (BuildConfig.OFFLINE_ACCESS_TOKEN != null) {
+            onGetAccessToken(BuildConfig.OFFLINE_ACCESS_TOKEN);
+        }
     }
 
      private void loadWebView() {
@@ -70,14 +108,17 @@ public class LoginActivity extends Activity {
                     // Redirect URL has format android-app://redirect#expires_in=1209600&token_type=bearer&access_token=xxxx
                     // Extract OAuth2 access_token in URL
                     if (uri.contains("access_token=")) {
-                        String accessToken;
-                        String containingStr = uri.split("access_token=")[1];
-                        if (containingStr.contains("&")) {
-                            accessToken = containingStr.split("&")[0];
-                        } else {
-                            accessToken = containingStr;
+                        String accessToken = getFragmentParameter(uri, "access_token");
+                        long expiresIn = 0;
+                        String expiresInStr = getFragmentParameter(uri, "expires_in");
+                        if (expiresInStr != null) {
+                            try {
+                                expiresIn = Long.parseLong(expiresInStr);
+                            } catch (NumberFormatException e) {
+                                Log.w(TAG, "invalid expires_in " + expiresInStr);
+                            }
                         }
-                        onGetAccessToken(accessToken);
+                        onGetAccessToken(accessToken, expiresIn);
                     }
                     return true;
                 }
@@ -92,10 +133,27 @@ public class LoginActivity extends Activity {
     }
 
 
+    // Value of a name=value parameter of the URL, or null
+    private static String getFragmentParameter(String uri, String name) {
+        if (!uri.contains(name + "=")) {
+            return null;
+        }
+        String containingStr = uri.split(name + "=")[1];
+        if (containingStr.contains("&")) {
+            return containingStr.split("&")[0];
+        }
+        return containingStr;
+    }
+
     private void onGetAccessToken(String accessToken)
+    {
+        onGetAccessToken(accessToken, 0);
+    }
+
+    private void onGetAccessToken(String accessToken, long expiresInSeconds)
     {
         Log.d(TAG, "onGetAccessToken(" + accessToken +")");
-        ArtikCloudSession.getInstance().setAccessToken(accessToken);
+        ArtikCloudSession.getInstance().setAccessToken(accessToken, expiresInSeconds);
         startControlActivity();
     }
 
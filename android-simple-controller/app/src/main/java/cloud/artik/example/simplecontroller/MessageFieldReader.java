@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+/**
+ * Streaming decoder that picks the sdid, the ts, the id of the mid and a few data
+ * fields out of a /live message frame, without building the MessageOut model or a JSON tree.
+ *
+ * The frame is scanned once; the values of the other fields are skipped without
+ * being decoded. Data values are returned as Gson would map them into the data of a
+ * MessageOut: Boolean, Double, String or null. read() returns false when the frame
+ * is not a plain device message (pings, actions, errors, acks), is malformed, or has
+ * a selected value that is an object or an array; the caller then falls back to the
+ * full decode, which handles every case.
+ *
+ * A reader is reused from frame to frame and is not thread safe.
+ */
+class MessageFieldReader {
+    private final String[] mDataKeys;
+    private final Object[] mValues;
+    private final boolean[] mHasValue;
+
+    private String mText;
+    private int mPos;
+    private String mSdid;
+    private long mTs;
+    private long mMidId;
+
+    /**
+     * @param dataKeys the fields of the data object to decode, e.g. "state"
+     */
+    MessageFieldReader(String... dataKeys) {
+        mDataKeys = dataKeys.clone();
+        mValues = new Object[dataKeys.length];
+        mHasValue = new boolean[dataKeys.length];
+    }
+
+    /**
+     * Decodes a frame.
+     *
+     * @return true if the frame is a device message and all its selected fields were decoded
+     */
+    boolean read(String text) {
+        mText = text;
+        mPos = 0;
+        mSdid = null;
+        mTs = 0;
+        mMidId = RecentMessageIds.NO_ID;
+        for (int i = 0; i < mValues.length; i++) {
+            mValues[i] = null;
+            mHasValue[i] = false;
+        }
+        try {
+            return readMessage();
+        } catch (IndexOutOfBoundsException|NumberFormatException e) {
+            return false;
+        } finally {
+            mText = null;
+        }
+    }
+
+    String getSdid() {
+        return mSdid;
+    }
+
+    /**
+     * @return the ts of the message, 0 if it has none
+     */
+    long getTs() {
+        return mTs;
+    }
+
+    /**
+     * @return the RecentMessageIds hash of the mid, NO_ID if the message has none
+     */
+    long getMidId() {
+        return mMidId;
+    }
+
+    /**
+     * @param key index of the field in the keys given to the constructor
+     * @return true if the data of the message has the field, even with a null value
+     */
+    boolean hasValue(int key) {
+        return mHasValue[key];
+    }
+
+    Object getValue(int key) {
+        return mValues[key];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("sdid=").append(mSdid).append(" ts=").append(mTs);
+        for (int i = 0; i < mDataKeys.length; i++) {
+            if (mHasValue[i]) {
+                builder.append(' ').append(mDataKeys[i]).append('=').append(mValues[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    private boolean readMessage() {
+        if (!consume('{')) {
+            return false;
+        }
+        if (consume('}')) {
+            return false;
+        }
+        do {
+            int keyStart = readKey();
+            if (keyStart < 0) {
+                return false;
+            }
+            int keyLength = mPos - 1 - keyStart;
+            if (!consume(':')) {
+                return false;
+            }
+            if (keyIs(keyStart, keyLength, "sdid")) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    return false;
+                }
+                mSdid = readString();
+                if (mSdid == null) {
+                    return false;
+                }
+            } else if (keyIs(keyStart, keyLength, "ts")) {
+                skipWhitespace();
+                if (peek() == 'n') {
+                    skipLiteral("null");
+                } else if (!readTs()) {
+                    return false;
+                }
+            } else if (keyIs(keyStart, keyLength, "mid")) {
+                skipWhitespace();
+                if (peek() == 'n') {
+                    skipLiteral("null");
+                } else if (!readMidId()) {
+                    return false;
+                }
+            } else if (keyIs(keyStart, keyLength, "data")) {
+                if (!readData()) {
+                    return false;
+                }
+            } else if (keyIs(keyStart, keyLength, "type") || keyIs(keyStart, keyLength, "error")) {
+                return false;
+            } else if (!skipValue()) {
+                return false;
+            }
+        } while (consume(','));
+        return consume('}') && mSdid != null;
+    }
+
+    private boolean readData() {
+        skipWhitespace();
+        if (peek() == 'n') {
+            return skipLiteral("null");
+        }
+        if (!consume('{')) {
+            return false;
+        }
+        if (consume('}')) {
+            return true;
+        }
+        do {
+            int keyStart = readKey();
+            if (keyStart < 0) {
+                return false;
+            }
+            int keyLength = mPos - 1 - keyStart;
+            if (!consume(':')) {
+                return false;
+            }
+            int key = selectedKey(keyStart, keyLength);
+            if (key < 0) {
+                if (!skipValue()) {
+                    return false;
+                }
+            } else if (!readValue(key)) {
+                return false;
+            }
+        } while (consume(','));
+        return consume('}');
+    }
+
+    private boolean readValue(int key) {
+        skipWhitespace();
+        char c = peek();
+        Object value;
+        if (c == '"') {
+            value = readString();
+            if (value == null) {
+                return false;
+            }
+        } else if (c == 't') {
+            value = Boolean.TRUE;
+            if (!skipLiteral("true")) {
+                return false;
+            }
+        } else if (c == 'f') {
+            value = Boolean.FALSE;
+            if (!skipLiteral("false")) {
+                return false;
+            }
+        } else if (c == 'n') {
+            value = null;
+            if (!skipLiteral("null")) {
+                return false;
+            }
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            value = readNumber();
+        } else {
+            // Objects and arrays are left to the full decode
+            return false;
+        }
+        mValues[key] = value;
+        mHasValue[key] = true;
+        return true;
+    }
+
+    private boolean readTs() {
+        int start = mPos;
+        boolean negative = mText.charAt(mPos) == '-';
+        if (negative) {
+            mPos++;
+        }
+        long ts = 0;
+        int digits = 0;
+        char c;
+        while (mPos < mText.length() && (c = mText.charAt(mPos)) >= '0' && c <= '9') {
+            ts = ts * 10 + (c - '0');
+            mPos++;
+            digits++;
+        }
+        if (digits == 0 || digits > 18) {
+            mPos = start;
+            return false;
+        }
+        if (mPos < mText.length() && isNumberPart(mText.charAt(mPos))) {
+            // A fractional or exponent ts is left to the full decode
+            return false;
+        }
+        mTs = negative ? -ts : ts;
+        return true;
+    }
+
+    private Double readNumber() {
+        int start = mPos;
+        while (mPos < mText.length() && isNumberPart(mText.charAt(mPos))) {
+            mPos++;
+        }
+        int length = mPos - start;
+        if (length == 1 && mText.charAt(start) >= '0') {
+            // 0 and 1, the usual states, without a substring
+            return Double.valueOf(mText.charAt(start) - '0');
+        }
+        return Double.valueOf(mText.substring(start, mPos));
+    }
+
+    // Reads a key string and returns the index of its first character, -1 if the key
+    // is not a plain string (escaped keys are left to the full decode)
+    private int readKey() {
+        skipWhitespace();
+        if (!consume('"')) {
+            return -1;
+        }
+        int start = mPos;
+        char c;
+        while ((c = mText.charAt(mPos)) != '"') {
+            if (c == '\\') {
+                return -1;
+            }
+            mPos++;
+        }
+        mPos++;
+        return start;
+    }
+
+    private boolean keyIs(int start, int length, String name) {
+        return length == name.length() && mText.regionMatches(start, name, 0, length);
+    }
+
+    private int selectedKey(int start, int length) {
+        for (int i = 0; i < mDataKeys.length; i++) {
+            if (keyIs(start, length, mDataKeys[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Hashes the mid without a substring; escaped mids are left to the full decode
+    private boolean readMidId() {
+        if (peek() != '"') {
+            return false;
+        }
+        int start = ++mPos;
+        char c;
+        while ((c = mText.charAt(mPos)) != '"') {
+            if (c == '\\') {
+                return false;
+            }
+            mPos++;
+        }
+        mMidId = RecentMessageIds.hash(mText, start, mPos);
+        mPos++;
+        return true;
+    }
+
+    // Positioned on the opening quote; returns null for a malformed escape
+    private String readString() {
+        mPos++;
+        int start = mPos;
+        char c;
+        while ((c = mText.charAt(mPos)) != '"') {
+            if (c == '\\') {
+                return readEscapedString(start);
+            }
+            mPos++;
+        }
+        mPos++;
+        return mText.substring(start, mPos - 1);
+    }
+
+    private String readEscapedString(int start) {
+        StringBuilder builder = new StringBuilder(mText.length() - start);
+        builder.append(mText, start, mPos);
+        char c;
+        while ((c = mText.charAt(mPos++)) != '"') {
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            c = mText.charAt(mPos++);
+            switch (c) {
+                case '"': case '\\': case '/': builder.append(c); break;
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    builder.append((char) Integer.parseInt(mText.substring(mPos, mPos + 4), 16));
+                    mPos += 4;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return builder.toString();
+    }
+
+    private boolean skipValue() {
+        skipWhitespace();
+        char c = peek();
+        if (c == '"') {
+            skipString();
+            return true;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = mText.charAt(mPos);
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                mPos++;
+            } while (depth > 0);
+            return true;
+        }
+        int start = mPos;
+        while (mPos < mText.length() && (isNumberPart(c = mText.charAt(mPos)) || (c >= 'a' && c <= 'z'))) {
+            mPos++;
+        }
+        return mPos > start;
+    }
+
+    private void skipString() {
+        mPos++;
+        char c;
+        while ((c = mText.charAt(mPos++)) != '"') {
+            if (c == '\\') {
+                mPos++;
+            }
+        }
+    }
+
+    private boolean skipLiteral(String literal) {
+        if (!mText.startsWith(literal, mPos)) {
+            return false;
+        }
+        mPos += literal.length();
+        return true;
+    }
+
+    private boolean consume(char expected) {
+        skipWhitespace();
+        if (mPos < mText.length() && mText.charAt(mPos) == expected) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private char peek() {
+        return mText.charAt(mPos);
+    }
+
+    private void skipWhitespace() {
+        char c;
+        while (mPos < mText.length() && ((c = mText.charAt(mPos)) == ' ' || c == '\n' || c == '\r' || c == '\t')) {
+            mPos++;
+        }
+    }
+
+    private static boolean isNumberPart(char c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import cloud.artik.websocket.ArtikCloudWebSocketCallback;
+
+/**
+ * A firehose callback that can take device messages decoded field by field by a
+ * MessageFieldReader instead of as MessageOut models. Transports that see the raw
+ * frames use it; the SDK websockets keep calling onMessage().
+ */
+interface MessageFieldsCallback extends ArtikCloudWebSocketCallback {
+    /**
+     * @return the reader to decode the next message with, or null to get it through
+     * onMessage()
+     */
+    MessageFieldReader getMessageFieldReader();
+
+    void onMessageFields(MessageFieldReader reader);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.io.IOException;
+import java.util.List;
+
+import cloud.artik.model.NormalizedMessage;
+
+/**
+ * Fetches the recent messages of devices, so the session does not depend on which
+ * client or server the history comes from.
+ */
+public interface MessageHistorySource {
+    /**
+     * @param sdids         comma separated device ids
+     * @param count         number of messages per device
+     * @param fieldPresence only return messages with this data field, or null
+     * @return the messages, in any order
+     */
+    List<NormalizedMessage> getLastMessages(String sdids, int count, String fieldPresence) throws IOException;
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.Arrays;
+
+/**
+ * The ids of the recently received messages, in a fixed amount of memory.
+ *
+ * Two Bloom filters take turns: new ids go into the current one, and when it holds
+ * its capacity, it becomes the previous one and the old previous one is cleared and
+ * reused. An id is therefore remembered for at least one capacity of messages and
+ * at most two. Like any Bloom filter, add() may answer true for an id it never saw,
+ * at most about once in a thousand calls, but never answers false for an id it
+ * remembers.
+ *
+ * Ids are 64-bit FNV-1a hashes of the mid strings, see hash(); 0 means no mid.
+ */
+class RecentMessageIds {
+    static final long NO_ID = 0;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int BITS_PER_ID = 16;
+    private static final int HASH_COUNT = 8;
+
+    private final int mCapacity;
+    private final int mBitMask;
+    private long[] mCurrent;
+    private long[] mPrevious;
+    private int mCurrentCount = 0;
+
+    /**
+     * @param capacity the ids each of the two filters holds, rounded up to a power of two
+     */
+    RecentMessageIds(int capacity) {
+        int bits = Integer.highestOneBit(Math.max(64, capacity * BITS_PER_ID - 1)) << 1;
+        mCapacity = bits / BITS_PER_ID;
+        mBitMask = bits - 1;
+        mCurrent = new long[bits / 64];
+        mPrevious = new long[bits / 64];
+    }
+
+    /**
+     * @return the id of a mid, never NO_ID; the chars from start to end of text
+     */
+    static long hash(CharSequence text, int start, int end) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            hash ^= text.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash == NO_ID ? 1 : hash;
+    }
+
+    /**
+     * Remembers an id.
+     *
+     * @return true if the id was (probably) seen before
+     */
+    synchronized boolean add(long id) {
+        if (contains(mCurrent, id)) {
+            return true;
+        }
+        boolean seen = contains(mPrevious, id);
+        if (mCurrentCount == mCapacity) {
+            long[] cleared = mPrevious;
+            Arrays.fill(cleared, 0);
+            mPrevious = mCurrent;
+            mCurrent = cleared;
+            mCurrentCount = 0;
+        }
+        // Double hashing: the k bit positions are h1 + i * h2
+        int h1 = (int) id;
+        int h2 = (int) (id >>> 32) | 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = (h1 + i * h2) & mBitMask;
+            mCurrent[bit >>> 6] |= 1L << bit;
+        }
+        mCurrentCount++;
+        return seen;
+    }
+
+    private boolean contains(long[] filter, long id) {
+        int h1 = (int) id;
+        int h2 = (int) (id >>> 32) | 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = (h1 + i * h2) & mBitMask;
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+/**
+ * An action sent to a group or a device on a CommandSchedule, until it is cancelled
+ * or its schedule has no next time.
+ */
+public class ScheduledAction {
+    private final CommandSchedule mSchedule;
+    private final String mTarget;
+    private final String mActionName;
+    private HashedTimerWheel.Timeout mTimeout = null;
+    private long mNextFireTime = -1;
+    private long mLastFireTime = 0;
+    private GroupCommandFuture mLastResult = null;
+    private boolean mCancelled = false;
+
+    ScheduledAction(CommandSchedule schedule, String target, String actionName) {
+        mSchedule = schedule;
+        mTarget = target;
+        mActionName = actionName;
+    }
+
+    public CommandSchedule getSchedule() {
+        return mSchedule;
+    }
+
+    /**
+     * @return the group name or device id the action is sent to
+     */
+    public String getTarget() {
+        return mTarget;
+    }
+
+    public String getActionName() {
+        return mActionName;
+    }
+
+    /**
+     * @return when the action is sent next in ms since the epoch, -1 if never
+     */
+    public synchronized long getNextFireTime() {
+        return mNextFireTime;
+    }
+
+    /**
+     * @return the outcome of the latest firing, null if it never fired
+     */
+    public synchronized GroupCommandFuture getLastResult() {
+        return mLastResult;
+    }
+
+    /**
+     * Stops the schedule. Commands already sent are not affected.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        mNextFireTime = -1;
+        if (mTimeout != null) {
+            mTimeout.cancel();
+            mTimeout = null;
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Computes the next time and arms the timeout for it.
+     *
+     * @return false if the schedule has no next time or was cancelled
+     */
+    synchronized boolean arm(HashedTimerWheel wheel, Runnable fire, long nowMillis) {
+        if (mCancelled) {
+            return false;
+        }
+        mNextFireTime = mSchedule.nextFireTime(nowMillis, mLastFireTime);
+        if (mNextFireTime < 0) {
+            return false;
+        }
+        mTimeout = wheel.schedule(fire, mNextFireTime - nowMillis);
+        return true;
+    }
+
+    /**
+     * Re-arms the timeout for the same time, e.g. after the wall clock was set back.
+     */
+    synchronized boolean rearm(HashedTimerWheel wheel, Runnable fire, long nowMillis) {
+        if (mCancelled) {
+            return false;
+        }
+        mTimeout = wheel.schedule(fire, mNextFireTime - nowMillis);
+        return true;
+    }
+
+    synchronized void onFired(long fireTime, GroupCommandFuture result) {
+        mTimeout = null;
+        mLastFireTime = fireTime;
+        mLastResult = result;
+    }
+
+    @Override
+    public String toString() {
+        return mActionName + " to " + mTarget + " " + mSchedule;
+    }
+}
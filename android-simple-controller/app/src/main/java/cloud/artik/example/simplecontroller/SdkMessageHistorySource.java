@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import cloud.artik.api.MessagesApi;
+import cloud.artik.client.ApiClient;
+import cloud.artik.client.ApiException;
+import cloud.artik.model.NormalizedMessage;
+import cloud.artik.model.NormalizedMessagesEnvelope;
+
+/**
+ * Reads the message history with the REST messages API of the SDK.
+ */
+public class SdkMessageHistorySource implements MessageHistorySource {
+    private final MessagesApi mMessagesApi;
+
+    /**
+     * @param baseUrl base URL of the REST API, like https://api.artik.cloud/v1.1
+     */
+    public SdkMessageHistorySource(String baseUrl, String accessToken) {
+        ApiClient apiClient = new ApiClient();
+        apiClient.setBasePath(baseUrl);
+        apiClient.setAccessToken(accessToken);
+        mMessagesApi = new MessagesApi(apiClient);
+    }
+
+    @Override
+    public List<NormalizedMessage> getLastMessages(String sdids, int count, String fieldPresence)
+            throws IOException {
+        try {
+            NormalizedMessagesEnvelope envelope = mMessagesApi.getLastNormalizedMessages(count, sdids, fieldPresence);
+            List<NormalizedMessage> messages = envelope.getData();
+            return messages != null ? messages : Collections.<NormalizedMessage>emptyList();
+        } catch (ApiException e) {
+            throw new IOException("messages/last failed: " + e.getMessage(), e);
+        }
+    }
+}
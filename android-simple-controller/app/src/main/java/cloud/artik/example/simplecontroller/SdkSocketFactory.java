@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import cloud.artik.model.ActionIn;
+import cloud.artik.model.RegisterMessage;
+import cloud.artik.websocket.ArtikCloudWebSocketCallback;
+import cloud.artik.websocket.DeviceChannelWebSocket;
+import cloud.artik.websocket.FirehoseWebSocket;
+
+/**
+ * Creates the websockets of the ARTIK Cloud SDK, connected to api.artik.cloud.
+ */
+public class SdkSocketFactory implements CloudSocketFactory {
+    @Override
+    public CloudSocket createFirehose(String accessToken, String sdid, String sdids, String sdtid, String uid,
+                                      ArtikCloudWebSocketCallback callback) throws URISyntaxException, IOException {
+        final FirehoseWebSocket firehoseWS = new FirehoseWebSocket(accessToken, sdid, sdids, sdtid, uid, callback);
+        return new CloudSocket() {
+            @Override
+            public void connect() throws IOException {
+                firehoseWS.connect();
+            }
+
+            @Override
+            public void close() throws IOException {
+                firehoseWS.close();
+            }
+        };
+    }
+
+    @Override
+    public DeviceChannel createDeviceChannel(boolean ack, ArtikCloudWebSocketCallback callback)
+            throws URISyntaxException, IOException {
+        final DeviceChannelWebSocket deviceChannelWS = new DeviceChannelWebSocket(ack, callback);
+        return new DeviceChannel() {
+            @Override
+            public void connect() throws IOException {
+                deviceChannelWS.connect();
+            }
+
+            @Override
+            public void close() throws IOException {
+                deviceChannelWS.close();
+            }
+
+            @Override
+            public void registerChannel(RegisterMessage registerMessage) throws IOException {
+                deviceChannelWS.registerChannel(registerMessage);
+            }
+
+            @Override
+            public void sendAction(ActionIn actionIn) throws IOException {
+                deviceChannelWS.sendAction(actionIn);
+            }
+        };
+    }
+}
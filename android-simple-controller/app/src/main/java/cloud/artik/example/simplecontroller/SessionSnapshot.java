@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a cold start needs before the network answers: the access token with its
+ * expiry, and the last known state of every device of the fleet.
+ *
+ * The snapshot is a small binary file, read once on launch and rewritten whole to a
+ * temporary file that replaces the previous one, so a crash while saving leaves the
+ * previous snapshot intact.
+ *
+ * Format: magic, version, token (empty if none), token expiry in ms since the epoch
+ * (0 if unknown), device count, then per device its sdid, state timestamp, state type
+ * byte and state value.
+ */
+public class SessionSnapshot {
+    private static final String TAG = SessionSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x41435353;
+    private static final int VERSION = 1;
+
+    private static final byte STATE_NULL = 0;
+    private static final byte STATE_BOOLEAN = 1;
+    private static final byte STATE_NUMBER = 2;
+    private static final byte STATE_STRING = 3;
+
+    private final String mAccessToken;
+    private final long mTokenExpiresAt;
+    private final List<String> mDeviceIds = new ArrayList<>();
+    private final List<Object> mStates = new ArrayList<>();
+    private final List<Long> mTimestamps = new ArrayList<>();
+
+    private SessionSnapshot(String accessToken, long tokenExpiresAt) {
+        mAccessToken = accessToken;
+        mTokenExpiresAt = tokenExpiresAt;
+    }
+
+    /**
+     * @return the access token, or null if the session had none
+     */
+    public String getAccessToken() {
+        return mAccessToken;
+    }
+
+    /**
+     * @return when the access token expires in ms since the epoch, 0 if unknown
+     */
+    public long getTokenExpiresAt() {
+        return mTokenExpiresAt;
+    }
+
+    public int getDeviceCount() {
+        return mDeviceIds.size();
+    }
+
+    public String getDeviceId(int i) {
+        return mDeviceIds.get(i);
+    }
+
+    public Object getState(int i) {
+        return mStates.get(i);
+    }
+
+    public long getTimestamp(int i) {
+        return mTimestamps.get(i);
+    }
+
+    /**
+     * Writes the token and the devices of the fleet that have a state.
+     */
+    public static void save(File file, String accessToken, long tokenExpiresAt, DeviceFleet fleet,
+                            DeviceStateStore store) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpStream = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmpStream));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(accessToken == null ? "" : accessToken);
+            out.writeLong(tokenExpiresAt);
+            List<String> deviceIds = fleet.getDeviceIds();
+            DeviceStateStore.Entry entry = new DeviceStateStore.Entry();
+            int count = 0;
+            for (int i = 0; i < deviceIds.size(); i++) {
+                store.read(i, entry);
+                if (entry.version != 0) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (int i = 0; i < deviceIds.size() && count > 0; i++) {
+                store.read(i, entry);
+                if (entry.version == 0) {
+                    continue;
+                }
+                count--;
+                out.writeUTF(deviceIds.get(i));
+                out.writeLong(entry.ts);
+                writeState(out, entry.state);
+            }
+            out.flush();
+            tmpStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("cannot replace " + file);
+        }
+    }
+
+    /**
+     * @return the snapshot, or null if the file does not exist or cannot be read
+     */
+    public static SessionSnapshot load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "ignoring " + file + ", unknown format");
+                return null;
+            }
+            String accessToken = in.readUTF();
+            SessionSnapshot snapshot = new SessionSnapshot(accessToken.isEmpty() ? null : accessToken,
+                    in.readLong());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                snapshot.mDeviceIds.add(in.readUTF());
+                snapshot.mTimestamps.add(in.readLong());
+                snapshot.mStates.add(readState(in));
+            }
+            return snapshot;
+        } catch (IOException e) {
+            Log.e(TAG, "cannot read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // States are what the firehose decoders produce: Boolean, Double or String
+    private static void writeState(DataOutputStream out, Object state) throws IOException {
+        if (state instanceof Boolean) {
+            out.writeByte(STATE_BOOLEAN);
+            out.writeBoolean((Boolean) state);
+        } else if (state instanceof Number) {
+            out.writeByte(STATE_NUMBER);
+            out.writeDouble(((Number) state).doubleValue());
+        } else if (state != null) {
+            out.writeByte(STATE_STRING);
+            out.writeUTF(state.toString());
+        } else {
+            out.writeByte(STATE_NULL);
+        }
+    }
+
+    private static Object readState(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case STATE_BOOLEAN:
+                return in.readBoolean();
+            case STATE_NUMBER:
+                return in.readDouble();
+            case STATE_STRING:
+                return in.readUTF();
+            case STATE_NULL:
+                return null;
+            default:
+                throw new IOException("unknown state type " + type);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+/**
+ * The recent state changes of every device of the fleet, for dashboards that must
+ * not query ARTIK Cloud.
+ *
+ * Each device has a fixed capacity ring of (ts, state) entries, kept in two flat
+ * primitive arrays shared by all devices, so the memory used is capacity * 9 bytes
+ * per device whatever the message rate. Only changes are recorded: a message
+ * repeating the current state takes no room, which keeps the retention long for
+ * lights that rarely toggle. Messages older than the latest entry are ignored; the
+ * history of a device whose clock stepped back starts over, see clear(int).
+ *
+ * Window queries use the ts of the messages, in milliseconds.
+ */
+public class StateHistory {
+    public static final byte OFF = 0;
+    public static final byte ON = 1;
+    public static final byte UNKNOWN = -1;
+
+    private final int mCapacity;
+    // Device i owns the slots [i * capacity, (i + 1) * capacity)
+    private long[] mTimestamps;
+    private byte[] mStates;
+    // Slot of the oldest entry and number of entries, per device
+    private int[] mStarts = new int[16];
+    private int[] mCounts = new int[16];
+    // Entries ever recorded, so that an evicted first entry is not mistaken for no change
+    private long[] mRecorded = new long[16];
+
+    /**
+     * @param capacity number of changes kept per device
+     */
+    public StateHistory(int capacity) {
+        mCapacity = capacity;
+        mTimestamps = new long[16 * capacity];
+        mStates = new byte[16 * capacity];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Maps a state as received in the data of a message (Boolean, number or string)
+     * to ON, OFF or UNKNOWN.
+     */
+    public static byte toState(Object state) {
+        if (state instanceof Boolean) {
+            return (Boolean) state ? ON : OFF;
+        }
+        if (state instanceof Number) {
+            return ((Number) state).doubleValue() != 0 ? ON : OFF;
+        }
+        if (state instanceof String) {
+            String text = (String) state;
+            if ("true".equalsIgnoreCase(text) || "on".equalsIgnoreCase(text) || "1".equals(text)) {
+                return ON;
+            }
+            if ("false".equalsIgnoreCase(text) || "off".equalsIgnoreCase(text) || "0".equals(text)) {
+                return OFF;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Records the state of a device from a message, if it changed.
+     */
+    public void record(int index, Object state, long ts) {
+        byte value = toState(state);
+        if (value != UNKNOWN) {
+            record(index, value, ts);
+        }
+    }
+
+    public synchronized void record(int index, byte state, long ts) {
+        ensureCapacity(index);
+        int count = mCounts[index];
+        if (count > 0) {
+            int newest = slot(index, count - 1);
+            if (ts < mTimestamps[newest] || mStates[newest] == state) {
+                return;
+            }
+        }
+        if (count == mCapacity) {
+            // Full: the new entry replaces the oldest
+            mStarts[index] = (mStarts[index] + 1) % mCapacity;
+            count--;
+        }
+        int slot = slot(index, count);
+        mTimestamps[slot] = ts;
+        mStates[slot] = state;
+        mCounts[index] = count + 1;
+        mRecorded[index]++;
+    }
+
+    /**
+     * @return the current state of a device, UNKNOWN if it has no history
+     */
+    public synchronized byte getLastState(int index) {
+        int count = count(index);
+        return count == 0 ? UNKNOWN : mStates[slot(index, count - 1)];
+    }
+
+    /**
+     * @return the ts at which the device entered its current state, 0 if it has no history
+     */
+    public synchronized long getLastChange(int index) {
+        int count = count(index);
+        return count == 0 ? 0 : mTimestamps[slot(index, count - 1)];
+    }
+
+    /**
+     * @return the time the device was on within [from, to). Before its oldest entry
+     * the state of the device is unknown and not counted.
+     */
+    public synchronized long getOnDuration(int index, long from, long to) {
+        int count = count(index);
+        if (count == 0 || to <= from) {
+            return 0;
+        }
+        // The entry in effect at from, or the first one after it
+        int i = Math.max(0, lastAtOrBefore(index, count, from));
+        long onDuration = 0;
+        for (; i < count; i++) {
+            int slot = slot(index, i);
+            long start = Math.max(from, mTimestamps[slot]);
+            if (start >= to) {
+                break;
+            }
+            long end = i + 1 < count ? Math.min(to, mTimestamps[slot(index, i + 1)]) : to;
+            if (mStates[slot] == ON && end > start) {
+                onDuration += end - start;
+            }
+        }
+        return onDuration;
+    }
+
+    /**
+     * @return the number of state changes within [from, to)
+     */
+    public synchronized int getToggleCount(int index, long from, long to) {
+        int count = count(index);
+        if (count == 0 || to <= from) {
+            return 0;
+        }
+        int first = lastAtOrBefore(index, count, from - 1) + 1;
+        int end = lastAtOrBefore(index, count, to - 1) + 1;
+        int toggles = end - first;
+        // The first entry ever recorded is the initial state, not a change
+        if (first == 0 && toggles > 0 && mRecorded[index] == count) {
+            toggles--;
+        }
+        return toggles;
+    }
+
+    /**
+     * Drops the history of a device, e.g. once its clock stepped back: the entries
+     * are sorted by ts, and every later message would be older than them.
+     */
+    public synchronized void clear(int index) {
+        if (index < mCounts.length) {
+            mStarts[index] = 0;
+            mCounts[index] = 0;
+            mRecorded[index] = 0;
+        }
+    }
+
+    /**
+     * Drops the history of every device.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mStarts[i] = 0;
+            mCounts[i] = 0;
+            mRecorded[i] = 0;
+        }
+    }
+
+    // Position, in age order, of the last entry with a ts at or before the given one,
+    // -1 if every entry is newer; entries are sorted by ts, so a binary search
+    private int lastAtOrBefore(int index, int count, long ts) {
+        int low = 0;
+        int high = count - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (mTimestamps[slot(index, middle)] <= ts) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private int count(int index) {
+        return index >= 0 && index < mCounts.length ? mCounts[index] : 0;
+    }
+
+    // Array slot of the i-th oldest entry of a device
+    private int slot(int index, int i) {
+        return index * mCapacity + (mStarts[index] + i) % mCapacity;
+    }
+
+    private void ensureCapacity(int index) {
+        if (index < mCounts.length) {
+            return;
+        }
+        int devices = Math.max(index + 1, mCounts.length * 2);
+        long[] timestamps = new long[devices * mCapacity];
+        System.arraycopy(mTimestamps, 0, timestamps, 0, mTimestamps.length);
+        mTimestamps = timestamps;
+        byte[] states = new byte[devices * mCapacity];
+        System.arraycopy(mStates, 0, states, 0, mStates.length);
+        mStates = states;
+        int[] starts = new int[devices];
+        System.arraycopy(mStarts, 0, starts, 0, mStarts.length);
+        mStarts = starts;
+        int[] counts = new int[devices];
+        System.arraycopy(mCounts, 0, counts, 0, mCounts.length);
+        mCounts = counts;
+        long[] recorded = new long[devices];
+        System.arraycopy(mRecorded, 0, recorded, 0, mRecorded.length);
+        mRecorded = recorded;
+    }
+}
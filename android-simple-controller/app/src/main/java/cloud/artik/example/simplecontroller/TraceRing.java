@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Trace of the message, send and ack paths, kept as fixed-size binary events in a
+ * ring that overwrites the oldest ones, and exported as CSV on demand.
+ *
+ * An event is its type, the fleet index of its device (-1 if none), a cid, and one
+ * argument whose meaning depends on the type, stamped with System.nanoTime(). A
+ * disabled trace costs one volatile read per event and allocates nothing; the ring
+ * is only allocated when the trace is first enabled. Recording is lock free: every
+ * event claims a sequence number, writes its slot, and publishes it by stamping the
+ * slot with the sequence, so an export never sees an event half written or one
+ * overwritten while it was read.
+ */
+public class TraceRing {
+    /** A state message of /live was applied; cid is the hash of its mid, arg its ts */
+    public static final int MESSAGE = 0;
+    /** A message older than the latest one of its device was dropped; arg is its ts */
+    public static final int STALE = 1;
+    /** A message delivered twice was dropped; arg is its ts */
+    public static final int DUPLICATE = 2;
+    /** An action frame was written; arg is the shard of its connection */
+    public static final int SENT = 3;
+    /** An action frame was acked; arg is the send to ack latency in ns */
+    public static final int ACKED = 4;
+    /** An action frame was rejected by the rate limit and will be sent again */
+    public static final int THROTTLED = 5;
+    /** The commands of a frame are held for a replay */
+    public static final int HELD = 6;
+    /** A device was registered on /websocket; arg is 1, or 0 if the register failed */
+    public static final int REGISTERED = 7;
+    /** A message was received on /websocket; arg is its ts */
+    public static final int CHANNEL_MESSAGE = 8;
+    private static final String[] EVENT_NAMES = {"message", "stale", "duplicate", "sent", "acked", "throttled",
+            "held", "registered", "channel_message"};
+
+    public static final int NO_DEVICE = -1;
+    public static final long NO_CID = 0;
+
+    // Stamp, nanos, event and device, cid, arg
+    private static final int SLOT_LONGS = 5;
+    // Stamp of a slot never written, or being written
+    private static final long BUSY = 0;
+
+    private final int mCapacity;
+    private final AtomicLong mNext = new AtomicLong();
+    private volatile boolean mEnabled = false;
+    private AtomicLongArray mSlots;
+
+    /**
+     * @param capacity number of events kept, a power of 2
+     */
+    public TraceRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+        }
+        mCapacity = capacity;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled && mSlots == null) {
+            mSlots = new AtomicLongArray(mCapacity * SLOT_LONGS);
+        }
+        // Publishes mSlots to the recording threads
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of events recorded since the creation, the overwritten ones included
+     */
+    public long getRecordedCount() {
+        return mNext.get();
+    }
+
+    public void record(int event, int device, long cid, long arg) {
+        if (!mEnabled) {
+            return;
+        }
+        AtomicLongArray slots = mSlots;
+        long sequence = mNext.getAndIncrement();
+        int base = ((int) sequence & (mCapacity - 1)) * SLOT_LONGS;
+        // The volatile write keeps the fields below from being seen before the slot is busy
+        slots.set(base, BUSY);
+        slots.lazySet(base + 1, System.nanoTime());
+        slots.lazySet(base + 2, ((long) event << 32) | (device & 0xffffffffL));
+        slots.lazySet(base + 3, cid);
+        slots.lazySet(base + 4, arg);
+        slots.lazySet(base, sequence + 1);
+    }
+
+    /**
+     * @return the events still in the ring, oldest first, as CSV: nanos, event, device, cid, arg
+     */
+    public String export(DeviceFleet fleet) {
+        StringBuilder out = new StringBuilder("nanos,event,device,cid,arg\n");
+        AtomicLongArray slots;
+        synchronized (this) {
+            slots = mSlots;
+        }
+        if (slots == null) {
+            return out.toString();
+        }
+        long end = mNext.get();
+        // A slot stamped by a writer lapped by the others is older than the window, and skipped
+        for (long sequence = Math.max(0, end - mCapacity); sequence < end; sequence++) {
+            int base = ((int) sequence & (mCapacity - 1)) * SLOT_LONGS;
+            if (slots.get(base) != sequence + 1) {
+                // Still being written, or overwritten already
+                continue;
+            }
+            long nanos = slots.get(base + 1);
+            long eventAndDevice = slots.get(base + 2);
+            long cid = slots.get(base + 3);
+            long arg = slots.get(base + 4);
+            if (slots.get(base) != sequence + 1) {
+                continue;
+            }
+            int event = (int) (eventAndDevice >>> 32);
+            int device = (int) eventAndDevice;
+            out.append(nanos).append(',')
+                    .append(event >= 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : Integer.toString(event))
+                    .append(',');
+            if (device >= 0 && device < fleet.size()) {
+                out.append(fleet.getDeviceId(device));
+            }
+            out.append(',').append(cid).append(',').append(arg).append('\n');
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "trace " + (mEnabled ? "on" : "off") + ", " + mNext.get() + " events recorded, last "
+                + mCapacity + " kept";
+    }
+}
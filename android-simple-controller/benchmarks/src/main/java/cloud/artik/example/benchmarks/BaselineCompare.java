@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files, the stored baseline and a new run, benchmark
+ * by benchmark: the score and the normalized allocation rate of the gc profiler.
+ * Exits with status 1 when a score got worse, or the allocations grew, by more than
+ * the allowed percentage.
+ *
+ * Usage: BaselineCompare baseline.json results.json [maxRegressionPercent, default 10]
+ */
+public class BaselineCompare {
+    private static final String ALLOC_RATE_NORM = "\u00b7gc.alloc.rate.norm";
+    // Allocation differences below this many bytes per operation are noise
+    private static final double ALLOC_NOISE_BYTES = 16;
+
+    private static class Result {
+        double score;
+        String unit;
+        double allocBytesPerOp = Double.NaN;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BaselineCompare baseline.json results.json [maxRegressionPercent]");
+            System.exit(2);
+        }
+        File baselineFile = new File(args[0]);
+        if (!baselineFile.exists()) {
+            System.err.println("no baseline at " + baselineFile + ", store one with jmhSaveBaseline");
+            System.exit(2);
+        }
+        double maxRegression = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        Map<String, Result> baseline = read(baselineFile);
+        Map<String, Result> current = read(new File(args[1]));
+
+        int regressions = 0;
+        System.out.println(String.format("%-70s %14s %14s %8s %10s %10s",
+                "benchmark", "baseline", "current", "delta", "B/op base", "B/op now"));
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.println(String.format("%-70s %14s %14.3f %8s", entry.getKey(), "-", now.score, "new"));
+                continue;
+            }
+            // Throughput is better when higher, average and sample times when lower
+            boolean higherIsBetter = now.unit.startsWith("ops/");
+            double delta = 100 * (now.score - base.score) / base.score;
+            boolean slower = higherIsBetter ? -delta > maxRegression : delta > maxRegression;
+            boolean allocates = !Double.isNaN(base.allocBytesPerOp) && !Double.isNaN(now.allocBytesPerOp)
+                    && now.allocBytesPerOp - base.allocBytesPerOp > ALLOC_NOISE_BYTES
+                    && now.allocBytesPerOp > base.allocBytesPerOp * (1 + maxRegression / 100);
+            System.out.println(String.format("%-70s %14.3f %14.3f %+7.1f%% %10.1f %10.1f%s",
+                    entry.getKey(), base.score, now.score, delta, base.allocBytesPerOp, now.allocBytesPerOp,
+                    slower || allocates ? "  REGRESSION" : ""));
+            if (slower || allocates) {
+                regressions++;
+            }
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " regression(s) beyond " + maxRegression + "%");
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Result> read(File file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            JsonArray runs = new JsonParser().parse(reader).getAsJsonArray();
+            for (JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                JsonObject primary = run.getAsJsonObject("primaryMetric");
+                Result result = new Result();
+                result.score = primary.get("score").getAsDouble();
+                result.unit = primary.get("scoreUnit").getAsString();
+                JsonObject secondary = run.getAsJsonObject("secondaryMetrics");
+                if (secondary != null && secondary.has(ALLOC_RATE_NORM)) {
+                    result.allocBytesPerOp = secondary.getAsJsonObject(ALLOC_RATE_NORM).get("score").getAsDouble();
+                }
+                results.put(key(run), result);
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    // benchmark method, mode and sorted parameters, e.g. ...sendAction thrpt actionsPerFrame=8
+    private static String key(JsonObject run) {
+        StringBuilder key = new StringBuilder(run.get("benchmark").getAsString())
+                .append(' ').append(run.get("mode").getAsString());
+        JsonObject params = run.getAsJsonObject("params");
+        if (params != null) {
+            Map<String, String> sorted = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> param : params.entrySet()) {
+                sorted.put(param.getKey(), param.getValue().getAsString());
+            }
+            for (Map.Entry<String, String> param : sorted.entrySet()) {
+                key.append(' ').append(param.getKey()).append('=').append(param.getValue());
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * The send path of one action frame in sendActionInDeviceChannelWS(): building the
+ * ActionIn and serializing it to JSON, as with the SDK websockets, or patching it
+ * from pre-encoded templates, as with a TextFrameChannel.
+ */
+@State(Scope.Thread)
+public class ActionSendBenchmark {
+    private static final String DEVICE_ID = "benchmark-light";
+
+    @Param({"1", "8"})
+    public int actionsPerFrame;
+
+    @Param({"true", "false"})
+    public boolean textFrames;
+
+    private ArtikCloudSession mSession;
+    private InMemorySockets mSockets;
+    private ActionBatch mBatch;
+    private long mCid = 0;
+
+    @Setup
+    public void setUp() {
+        mSession = ArtikCloudSession.getInstance();
+        mSession.addDevice(DEVICE_ID, DEVICE_ID);
+        mSockets = InMemorySockets.connect(mSession, textFrames);
+        mBatch = new ActionBatch(DEVICE_ID);
+        for (int i = 0; i < actionsPerFrame; i++) {
+            mBatch.add(new Command(i, DEVICE_ID, i % 2 == 0 ? "setOn" : "setOff"));
+        }
+    }
+
+    @Benchmark
+    public int sendAction() throws IOException {
+        mBatch.markSent(++mCid, System.nanoTime());
+        mSession.sendActionInDeviceChannelWS(mBatch);
+        return mSockets.getLastFrameLength();
+    }
+}
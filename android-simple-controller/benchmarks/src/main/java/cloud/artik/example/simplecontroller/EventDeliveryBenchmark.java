@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayDeque;
+
+import cloud.artik.model.Acknowledgement;
+
+/**
+ * The delivery of session events into ControlActivity, without the Android main
+ * thread: acks go through the EventBus to subscribers that hop to the UI thread with
+ * a Runnable, like runOnUiThread() does; states go through the DeviceStateStore,
+ * whose dirty listener schedules the frame that reads them back.
+ */
+@State(Scope.Thread)
+public class EventDeliveryBenchmark {
+    @Param({"1", "4"})
+    public int subscribers;
+
+    private final EventBus mEventBus = new EventBus();
+    private final DeviceStateStore mStateStore = new DeviceStateStore();
+    private final DeviceStateStore.Entry mDisplayed = new DeviceStateStore.Entry();
+    // Stands in for the main thread looper
+    private final ArrayDeque<Runnable> mUiQueue = new ArrayDeque<>();
+    private final Acknowledgement mAck = new Acknowledgement();
+    private boolean mFramePosted = false;
+    private int mAcksShown = 0;
+    private long mTs = 0;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < subscribers; i++) {
+            mEventBus.subscribe(Acknowledgement.class, new EventBus.Subscriber<Acknowledgement>() {
+                @Override
+                public void onEvent(final Acknowledgement acknowledgement) {
+                    mUiQueue.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            mAcksShown++;
+                        }
+                    });
+                }
+            });
+        }
+        mStateStore.setListener(new DeviceStateStore.Listener() {
+            @Override
+            public void onDirty() {
+                mFramePosted = true;
+            }
+        });
+        mAck.setCid("1");
+        mAck.setMessage("OK");
+    }
+
+    @Benchmark
+    public int deliverAck() {
+        mEventBus.post(mAck);
+        Runnable runnable;
+        while ((runnable = mUiQueue.poll()) != null) {
+            runnable.run();
+        }
+        return mAcksShown;
+    }
+
+    @Benchmark
+    public long deliverState() {
+        mStateStore.update(0, Boolean.TRUE, ++mTs);
+        if (mFramePosted) {
+            mFramePosted = false;
+            mStateStore.takeDirty();
+            mStateStore.read(0, mDisplayed);
+        }
+        return mDisplayed.version;
+    }
+}
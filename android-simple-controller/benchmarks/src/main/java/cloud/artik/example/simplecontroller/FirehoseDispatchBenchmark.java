@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import cloud.artik.model.MessageOut;
+
+/**
+ * The receive path of one /live state message: decoding the frame and dispatching
+ * it through the firehose callback of the session (fleet lookup, latency stats,
+ * state store, event bus). Without MessageOut subscribers, the frame is read by the
+ * streaming MessageFieldReader; with one, it is decoded into a MessageOut.
+ *
+ * Every fresh message has a new ts and mid, like the frames of a light, and is
+ * written into a new String like a socket hands it over; a duplicate message is
+ * the same frame again, dropped by the mid check of the session.
+ */
+@State(Scope.Thread)
+public class FirehoseDispatchBenchmark {
+    private static final String DEVICE_ID = "benchmark-light";
+    private static final String DUPLICATE_DEVICE_ID = "benchmark-light-2";
+    private static final String MID = "9f4c1d2e7a6b4c0d8e1f2a3b4c5d6e7f";
+    private static final long TS = 1451606965889L;
+    private static final String TS_KEY = "\"ts\":";
+
+    @Param({"false", "true"})
+    public boolean messageSubscriber;
+
+    private FrameDispatcher mDispatcher;
+    private char[] mFrame;
+    private int mMidEnd;
+    private int mTsEnd;
+    private long mSerial = 0;
+    private String mDuplicateFrame;
+
+    private static String frame(String deviceId) {
+        return "{\"mid\":\"" + MID + "\",\"data\":{\"state\":true},"
+                + TS_KEY + TS + ",\"cts\":1451606965901,\"sdid\":\"" + deviceId + "\","
+                + "\"sdtid\":\"dtf3cdb9880d2e418f915fb9252e267051\",\"uid\":\"650b1d2a\",\"mv\":1}";
+    }
+
+    @Setup
+    public void setUp() {
+        ArtikCloudSession session = ArtikCloudSession.getInstance();
+        session.addDevice(DEVICE_ID, DEVICE_ID);
+        session.addDevice(DUPLICATE_DEVICE_ID, DUPLICATE_DEVICE_ID);
+        String frame = frame(DEVICE_ID);
+        mFrame = frame.toCharArray();
+        mMidEnd = frame.indexOf(MID) + MID.length();
+        mTsEnd = frame.indexOf(TS_KEY) + TS_KEY.length() + Long.toString(TS).length();
+        mDuplicateFrame = frame(DUPLICATE_DEVICE_ID);
+        if (messageSubscriber) {
+            session.getEventBus().subscribe(MessageOut.class, new EventBus.Subscriber<MessageOut>() {
+                @Override
+                public void onEvent(MessageOut messageOut) {
+                }
+            });
+        }
+        InMemorySockets sockets = InMemorySockets.connect(session, true);
+        mDispatcher = new FrameDispatcher(new Gson(), sockets.getFirehoseCallback());
+    }
+
+    @Benchmark
+    public void dispatchStateMessage() {
+        long serial = ++mSerial;
+        // The serial replaces the last hex digits of the mid and is added to the ts
+        writeDigits(mMidEnd, serial, 16);
+        writeDigits(mTsEnd, TS + serial, 10);
+        mDispatcher.onText(new String(mFrame));
+    }
+
+    @Benchmark
+    public void dispatchDuplicateMessage() {
+        mDispatcher.onText(mDuplicateFrame);
+    }
+
+    private void writeDigits(int end, long value, int radix) {
+        for (int i = end - 1; value != 0; i--) {
+            mFrame[i] = Character.forDigit((int) (value % radix), radix);
+            value /= radix;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import cloud.artik.model.Acknowledgement;
+import cloud.artik.model.ActionIn;
+import cloud.artik.model.RegisterMessage;
+import cloud.artik.websocket.ArtikCloudWebSocketCallback;
+
+/**
+ * Socket factory without sockets: connections open synchronously, registrations are
+ * acked right away, and actions are serialized with Gson like the SDK websockets do,
+ * or taken as pre-encoded frames like the LiteWebSocket channel does, then dropped.
+ * It keeps the callbacks of the session so benchmarks can feed frames into the real
+ * decode and dispatch code.
+ */
+class InMemorySockets implements CloudSocketFactory {
+    private final Gson mGson = new Gson();
+    private final boolean mTextFrames;
+    private ArtikCloudWebSocketCallback mFirehoseCallback;
+    private ArtikCloudWebSocketCallback mDeviceChannelCallback;
+    private String mLastFrame;
+    private int mLastFrameLength;
+
+    private InMemorySockets(boolean textFrames) {
+        mTextFrames = textFrames;
+    }
+
+    /**
+     * Connects the session to in-memory sockets, which registers its devices.
+     *
+     * @param textFrames true for a TextFrameChannel, false for a model based DeviceChannel
+     */
+    static InMemorySockets connect(ArtikCloudSession session, boolean textFrames) {
+        InMemorySockets sockets = new InMemorySockets(textFrames);
+        session.setSocketFactory(sockets);
+        session.setAccessToken("benchmark");
+        session.connectFirehoseWS();
+        session.connectDeviceChannelWS();
+        return sockets;
+    }
+
+    ArtikCloudWebSocketCallback getFirehoseCallback() {
+        return mFirehoseCallback;
+    }
+
+    ArtikCloudWebSocketCallback getDeviceChannelCallback() {
+        return mDeviceChannelCallback;
+    }
+
+    /**
+     * @return the last action frame serialized from the models, null with text frames
+     */
+    String getLastFrame() {
+        return mLastFrame;
+    }
+
+    int getLastFrameLength() {
+        return mLastFrameLength;
+    }
+
+    @Override
+    public CloudSocket createFirehose(String accessToken, String sdid, String sdids, String sdtid, String uid,
+                                      final ArtikCloudWebSocketCallback callback)
+            throws URISyntaxException, IOException {
+        mFirehoseCallback = callback;
+        return new CloudSocket() {
+            @Override
+            public void connect() throws IOException {
+                callback.onOpen(101, "Switching Protocols");
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+        };
+    }
+
+    @Override
+    public DeviceChannel createDeviceChannel(boolean ack, final ArtikCloudWebSocketCallback callback)
+            throws URISyntaxException, IOException {
+        mDeviceChannelCallback = callback;
+        if (!mTextFrames) {
+            return new ModelChannel(callback);
+        }
+        return new TextFrameChannel() {
+            private final ModelChannel mChannel = new ModelChannel(callback);
+
+            @Override
+            public void connect() throws IOException {
+                mChannel.connect();
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+
+            @Override
+            public void registerChannel(RegisterMessage registerMessage) throws IOException {
+                mChannel.registerChannel(registerMessage);
+            }
+
+            @Override
+            public void sendAction(ActionIn actionIn) throws IOException {
+                mChannel.sendAction(actionIn);
+            }
+
+            @Override
+            public void sendText(byte[] utf8, int length) throws IOException {
+                mLastFrameLength = length;
+            }
+        };
+    }
+
+    private class ModelChannel implements DeviceChannel {
+        private final ArtikCloudWebSocketCallback mCallback;
+
+        ModelChannel(ArtikCloudWebSocketCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mCallback.onOpen(101, "Switching Protocols");
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public void registerChannel(RegisterMessage registerMessage) throws IOException {
+            mGson.toJson(registerMessage);
+            Acknowledgement acknowledgement = new Acknowledgement();
+            acknowledgement.setCid(registerMessage.getCid());
+            acknowledgement.setMessage("OK");
+            mCallback.onAck(acknowledgement);
+        }
+
+        @Override
+        public void sendAction(ActionIn actionIn) throws IOException {
+            mLastFrame = mGson.toJson(actionIn);
+            mLastFrameLength = mLastFrame.length();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Recording state messages into the StateHistory of a large fleet, and the window
+ * queries of a dashboard over full histories.
+ */
+@State(Scope.Thread)
+public class StateHistoryBenchmark {
+    private static final int CAPACITY = 128;
+
+    @Param({"1000"})
+    public int devices;
+
+    private StateHistory mHistory;
+    private int mDevice = 0;
+    private long mTs = 0;
+
+    @Setup
+    public void setUp() {
+        mHistory = new StateHistory(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            mTs += 1000;
+            for (int device = 0; device < devices; device++) {
+                mHistory.record(device, i % 2 == 0 ? StateHistory.ON : StateHistory.OFF, mTs);
+            }
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        mDevice = mDevice + 1 == devices ? 0 : mDevice + 1;
+        if (mDevice == 0) {
+            mTs += 1000;
+        }
+        mHistory.record(mDevice, (mTs / 1000) % 2 == 0 ? Boolean.TRUE : Boolean.FALSE, mTs);
+    }
+
+    @Benchmark
+    public long onDurationOfHalfTheHistory() {
+        mDevice = mDevice + 1 == devices ? 0 : mDevice + 1;
+        return mHistory.getOnDuration(mDevice, mTs - CAPACITY * 500, mTs);
+    }
+
+    @Benchmark
+    public int toggleCountOfHalfTheHistory() {
+        mDevice = mDevice + 1 == devices ? 0 : mDevice + 1;
+        return mHistory.getToggleCount(mDevice, mTs - CAPACITY * 500, mTs);
+    }
+}
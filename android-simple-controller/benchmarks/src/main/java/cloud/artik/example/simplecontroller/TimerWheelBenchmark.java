@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Arming and cancelling a schedule on the HashedTimerWheel while many other
+ * schedules are pending, up to a day ahead.
+ */
+@State(Scope.Thread)
+public class TimerWheelBenchmark {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    @Param({"10000"})
+    public int pendingSchedules;
+
+    private ScheduledExecutorService mScheduler;
+    private HashedTimerWheel mWheel;
+    private long mDelay = 0;
+
+    private final Runnable mTask = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mWheel = new HashedTimerWheel(mScheduler, 100, 512);
+        for (int i = 0; i < pendingSchedules; i++) {
+            mWheel.schedule(mTask, DAY_MS / 2 + i * (DAY_MS / 2 / pendingSchedules));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean scheduleAndCancel() {
+        mDelay = mDelay >= DAY_MS / 2 ? 60 * 1000 : mDelay + 997;
+        return mWheel.schedule(mTask, mDelay).cancel();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Recording one event in the TraceRing of the session, disabled as in production
+ * by default, and enabled.
+ */
+@State(Scope.Thread)
+public class TraceRingBenchmark {
+    @Param({"false", "true"})
+    public boolean enabled;
+
+    private TraceRing mTrace;
+    private long mCid = 0;
+
+    @Setup
+    public void setUp() {
+        mTrace = new TraceRing(4096);
+        mTrace.setEnabled(enabled);
+    }
+
+    @Benchmark
+    public void record() {
+        mTrace.record(TraceRing.SENT, 17, ++mCid, 0);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.standin;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The last messages of every device, served by the REST messages API of the stand-in.
+ */
+public class MessageHistory {
+    private final int mCapacity;
+    private final ConcurrentHashMap<String, ArrayDeque<JsonObject>> mMessages = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity number of messages kept per device
+     */
+    public MessageHistory(int capacity) {
+        mCapacity = capacity;
+    }
+
+    public void add(String sdid, JsonObject message) {
+        ArrayDeque<JsonObject> messages = mMessages.get(sdid);
+        if (messages == null) {
+            ArrayDeque<JsonObject> created = new ArrayDeque<>();
+            messages = mMessages.putIfAbsent(sdid, created);
+            if (messages == null) {
+                messages = created;
+            }
+        }
+        synchronized (messages) {
+            if (messages.size() == mCapacity) {
+                messages.removeFirst();
+            }
+            messages.addLast(message);
+        }
+    }
+
+    /**
+     * @return up to count most recent messages of each device, newest first, skipping
+     * the messages without the field when fieldPresence is set
+     */
+    public JsonArray last(String[] sdids, int count, String fieldPresence) {
+        JsonArray result = new JsonArray();
+        for (String sdid : sdids) {
+            ArrayDeque<JsonObject> messages = mMessages.get(sdid);
+            if (messages == null) {
+                continue;
+            }
+            synchronized (messages) {
+                int added = 0;
+                Iterator<JsonObject> newestFirst = messages.descendingIterator();
+                while (added < count && newestFirst.hasNext()) {
+                    JsonObject message = newestFirst.next();
+                    JsonElement data = message.get("data");
+                    if (fieldPresence != null
+                            && (data == null || !data.isJsonObject() || !data.getAsJsonObject().has(fieldPresence))) {
+                        continue;
+                    }
+                    result.add(message);
+                    added++;
+                }
+            }
+        }
+        return result;
+    }
+}
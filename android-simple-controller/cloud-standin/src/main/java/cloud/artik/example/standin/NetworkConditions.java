@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.standin;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The simulated network and service limits of the stand-in.
+ *
+ * latency and jitter delay every frame the server writes, so a request/ack round
+ * trip gains latency + [0, jitter). loss is the probability that an incoming action
+ * or device message is silently dropped (no ack, no delivery), and that a /live
+ * delivery is dropped. rate is the number of actions and messages accepted per second
+ * on one /websocket connection, with bursts up to burst; more are answered with a
+ * 429 error like ARTIK Cloud does. A rate of 0 means unlimited.
+ */
+public class NetworkConditions {
+    private final long mLatencyNanos;
+    private final long mJitterNanos;
+    private final double mLoss;
+    private final double mRate;
+    private final int mBurst;
+    // Seeded so that runs with the same settings drop the same frames
+    private final Random mRandom;
+
+    public NetworkConditions(long latencyMs, long jitterMs, double loss, double rate, int burst, long seed) {
+        if (latencyMs < 0 || jitterMs < 0 || loss < 0 || loss > 1 || rate < 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid network conditions");
+        }
+        mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+        mJitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMs);
+        mLoss = loss;
+        mRate = rate;
+        mBurst = burst;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * @return how long to hold the next outgoing frame
+     */
+    public long nextDelayNanos() {
+        if (mJitterNanos == 0) {
+            return mLatencyNanos;
+        }
+        synchronized (mRandom) {
+            return mLatencyNanos + (long) (mRandom.nextDouble() * mJitterNanos);
+        }
+    }
+
+    /**
+     * @return true if the next frame is lost
+     */
+    public boolean shouldDrop() {
+        if (mLoss == 0) {
+            return false;
+        }
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < mLoss;
+        }
+    }
+
+    /**
+     * @return the rate limiter of a new connection, or null if the rate is unlimited
+     */
+    public RateLimiter newRateLimiter() {
+        return mRate == 0 ? null : new RateLimiter(mRate, mBurst);
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + TimeUnit.NANOSECONDS.toMillis(mLatencyNanos) + "ms"
+                + " jitter=" + TimeUnit.NANOSECONDS.toMillis(mJitterNanos) + "ms"
+                + " loss=" + mLoss
+                + " rate=" + (mRate == 0 ? "unlimited" : mRate + "/s burst " + mBurst);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.standin;
+
+/**
+ * Token bucket refilled at a fixed rate, holding at most burst tokens.
+ */
+public class RateLimiter {
+    private final double mTokensPerNano;
+    private final double mBurst;
+    private double mTokens;
+    private long mLastRefillNanos;
+
+    public RateLimiter(double perSecond, int burst) {
+        mTokensPerNano = perSecond / 1e9;
+        mBurst = burst;
+        mTokens = burst;
+        mLastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * @return true if a token was available and taken
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        mTokens = Math.min(mBurst, mTokens + (now - mLastRefillNanos) * mTokensPerNano);
+        mLastRefillNanos = now;
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens -= 1;
+        return true;
+    }
+}
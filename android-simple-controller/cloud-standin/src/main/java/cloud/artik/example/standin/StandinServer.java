@@ -0,0 +1,615 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.standin;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback stand-in for the ARTIK Cloud websocket API, for load and latency tests
+ * that must not depend on api.artik.cloud.
+ *
+ * It serves the /websocket device channel (register, action, message, acks and
+ * errors) and the /live firehose (filtered by sdid, sdids, sdtid or uid) under the
+ * /v1.1 base path, and pings every connection like ARTIK Cloud does. Any bearer
+ * token is accepted; a token of the form name:expiresAtMillis expires at that time,
+ * and a device channel using an expired token is answered with a 401 error and
+ * closed on its next action or message, like ARTIK Cloud does. Actions are routed to the other connections that registered
+ * the destination device; with --echo, actions to a device that nobody else
+ * registered are answered with a state message like raspberrypi/smart_light.js does.
+ * The last messages of every device are also served over HTTP, by the
+ * GET /v1.1/messages/last endpoint of the REST messages API.
+ *
+ * Usage: StandinServer [--port 8888] [--latency-ms 0] [--jitter-ms 0] [--loss 0]
+ *                      [--rate 0] [--burst 10] [--ping-interval-ms 30000] [--seed 1]
+ *                      [--device-type standin-light] [--uid standin-user] [--echo]
+ */
+public class StandinServer {
+    public static final String BASE_PATH = "/v1.1";
+    public static final String DEVICE_CHANNEL_PATH = BASE_PATH + "/websocket";
+    public static final String FIREHOSE_PATH = BASE_PATH + "/live";
+    public static final String LAST_MESSAGES_PATH = BASE_PATH + "/messages/last";
+
+    private static final long STATS_INTERVAL_MS = 10 * 1000;
+    private static final int HISTORY_PER_DEVICE = 100;
+
+    private final int mPort;
+    private final NetworkConditions mConditions;
+    private final long mPingIntervalMs;
+    private final String mDeviceType;
+    private final String mUserId;
+    private final boolean mEcho;
+
+    // sdid -> device channels that registered it
+    private final ConcurrentHashMap<String, Set<DeviceChannel>> mRegistrations = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Firehose> mFirehoses = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArraySet<WebSocketConnection> mConnections = new CopyOnWriteArraySet<>();
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private final MessageHistory mHistory = new MessageHistory(HISTORY_PER_DEVICE);
+    private ServerSocket mServerSocket;
+
+    private final AtomicLong mActions = new AtomicLong();
+    private final AtomicLong mMessages = new AtomicLong();
+    private final AtomicLong mDeliveries = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mThrottled = new AtomicLong();
+    private final AtomicLong mRestRequests = new AtomicLong();
+    private final AtomicLong mExpired = new AtomicLong();
+
+    public StandinServer(int port, NetworkConditions conditions, long pingIntervalMs,
+                         String deviceType, String userId, boolean echo) {
+        mPort = port;
+        mConditions = conditions;
+        mPingIntervalMs = pingIntervalMs;
+        mDeviceType = deviceType;
+        mUserId = userId;
+        mEcho = echo;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8888;
+        long latencyMs = 0;
+        long jitterMs = 0;
+        double loss = 0;
+        double rate = 0;
+        int burst = 10;
+        long pingIntervalMs = 30 * 1000;
+        long seed = 1;
+        String deviceType = "standin-light";
+        String userId = "standin-user";
+        boolean echo = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--echo".equals(arg)) {
+                echo = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                usage("missing value of " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--port": port = Integer.parseInt(value); break;
+                case "--latency-ms": latencyMs = Long.parseLong(value); break;
+                case "--jitter-ms": jitterMs = Long.parseLong(value); break;
+                case "--loss": loss = Double.parseDouble(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--burst": burst = Integer.parseInt(value); break;
+                case "--ping-interval-ms": pingIntervalMs = Long.parseLong(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--device-type": deviceType = value; break;
+                case "--uid": userId = value; break;
+                default: usage("unknown option " + arg);
+            }
+        }
+        NetworkConditions conditions = new NetworkConditions(latencyMs, jitterMs, loss, rate, burst, seed);
+        new StandinServer(port, conditions, pingIntervalMs, deviceType, userId, echo).serve();
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: StandinServer [--port n] [--latency-ms n] [--jitter-ms n] [--loss p] "
+                + "[--rate n] [--burst n] [--ping-interval-ms n] [--seed n] [--device-type id] [--uid id] [--echo]");
+        System.exit(2);
+    }
+
+    /**
+     * Serves connections until stop() is called, binding the port first unless
+     * start() was called already.
+     */
+    public void serve() throws IOException {
+        if (mServerSocket == null) {
+            start();
+        }
+        System.out.println("ARTIK Cloud stand-in on ws://localhost:" + mServerSocket.getLocalPort() + BASE_PATH
+                + " (" + mConditions + (mEcho ? ", echo" : "") + ")");
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                if (mServerSocket.isClosed()) {
+                    break;
+                }
+                throw e;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            }, "standin-" + socket.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Binds the port and starts the timers, without accepting connections yet.
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(mPort, 512, InetAddress.getByName("0.0.0.0"));
+        mTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                String ping = "{\"type\":\"ping\",\"ts\":" + System.currentTimeMillis() + "}";
+                for (WebSocketConnection connection : mConnections) {
+                    connection.sendText(ping);
+                }
+            }
+        }, mPingIntervalMs, mPingIntervalMs, TimeUnit.MILLISECONDS);
+        mTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                printStats();
+            }
+        }, STATS_INTERVAL_MS, STATS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the bound port, useful when the server was created with port 0
+     */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    public void stop() throws IOException {
+        mTimer.shutdownNow();
+        mServerSocket.close();
+        for (WebSocketConnection connection : mConnections) {
+            connection.close(WebSocketConnection.CLOSE_NORMAL, "server stopped");
+        }
+    }
+
+    private void handle(Socket socket) {
+        WebSocketConnection connection;
+        try {
+            connection = new WebSocketConnection(socket, mConditions);
+            connection.readRequest();
+            if (!connection.isUpgradeRequest()) {
+                handleRest(connection);
+                return;
+            }
+            connection.acceptUpgrade();
+        } catch (IOException e) {
+            System.err.println("handshake failed: " + e.getMessage());
+            return;
+        }
+        WebSocketConnection.Handler handler;
+        if (DEVICE_CHANNEL_PATH.equals(connection.getPath())) {
+            handler = new DeviceChannel(connection);
+        } else if (FIREHOSE_PATH.equals(connection.getPath())) {
+            Firehose firehose = new Firehose(connection);
+            if (!firehose.isAuthorized()) {
+                connection.reject(WebSocketConnection.CLOSE_POLICY_VIOLATION, "Please provide a valid authorization");
+                return;
+            }
+            mFirehoses.add(firehose);
+            handler = firehose;
+        } else {
+            connection.reject(WebSocketConnection.CLOSE_POLICY_VIOLATION, "unknown path " + connection.getPath());
+            return;
+        }
+        mConnections.add(connection);
+        connection.run(handler);
+        mConnections.remove(connection);
+    }
+
+    /**
+     * Answers a REST request: GET /v1.1/messages/last?sdids=...&count=...&fieldPresence=...
+     */
+    private void handleRest(WebSocketConnection connection) throws IOException {
+        mRestRequests.incrementAndGet();
+        String authorization = connection.getHeader("Authorization");
+        if (authorization == null || !authorization.toLowerCase(Locale.US).startsWith("bearer ")) {
+            connection.respond(401, "Unauthorized", error(401, "Please provide a valid authorization header", null));
+            return;
+        }
+        if (!"GET".equals(connection.getMethod()) || !LAST_MESSAGES_PATH.equals(connection.getPath())) {
+            connection.respond(404, "Not Found", error(404, "Not found: " + connection.getPath(), null));
+            return;
+        }
+        String sdids = connection.getQueryParameter("sdids");
+        if (sdids == null || sdids.isEmpty()) {
+            connection.respond(400, "Bad Request", error(400, "sdids is required", null));
+            return;
+        }
+        int count;
+        try {
+            String countParameter = connection.getQueryParameter("count");
+            count = countParameter == null ? 1 : Math.min(100, Integer.parseInt(countParameter));
+        } catch (NumberFormatException e) {
+            connection.respond(400, "Bad Request", error(400, "count must be a number", null));
+            return;
+        }
+        String fieldPresence = connection.getQueryParameter("fieldPresence");
+        JsonArray data = mHistory.last(sdids.split(","), count, fieldPresence);
+        JsonObject envelope = new JsonObject();
+        envelope.addProperty("sdids", sdids);
+        if (fieldPresence != null) {
+            envelope.addProperty("fieldPresence", fieldPresence);
+        }
+        envelope.addProperty("size", data.size());
+        envelope.addProperty("count", count);
+        envelope.add("data", data);
+        connection.respond(200, "OK", envelope.toString());
+    }
+
+    /**
+     * Sends a device message to the /live subscribers that match it.
+     */
+    private void publish(String sdid, JsonElement data, long ts) {
+        JsonObject message = new JsonObject();
+        message.addProperty("mid", UUID.randomUUID().toString());
+        message.add("data", data);
+        message.addProperty("ts", ts);
+        message.addProperty("cts", System.currentTimeMillis());
+        message.addProperty("sdid", sdid);
+        message.addProperty("sdtid", mDeviceType);
+        message.addProperty("uid", mUserId);
+        message.addProperty("mv", 1);
+        mHistory.add(sdid, message);
+        String text = message.toString();
+        for (Firehose firehose : mFirehoses) {
+            if (firehose.matches(sdid)) {
+                if (mConditions.shouldDrop()) {
+                    mDropped.incrementAndGet();
+                    continue;
+                }
+                firehose.mConnection.sendText(text);
+                mDeliveries.incrementAndGet();
+            }
+        }
+    }
+
+    private void printStats() {
+        System.out.println("connections=" + mConnections.size()
+                + " registered=" + mRegistrations.size()
+                + " firehoses=" + mFirehoses.size()
+                + " actions=" + mActions.get()
+                + " messages=" + mMessages.get()
+                + " deliveries=" + mDeliveries.get()
+                + " dropped=" + mDropped.get()
+                + " throttled=" + mThrottled.get()
+                + " rest=" + mRestRequests.get()
+                + " expired=" + mExpired.get());
+    }
+
+    private static String getString(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    private static String ack(String cid, String mid) {
+        JsonObject data = new JsonObject();
+        if (mid != null) {
+            data.addProperty("mid", mid);
+        } else {
+            data.addProperty("code", "200");
+            data.addProperty("message", "OK");
+        }
+        data.addProperty("cid", cid);
+        JsonObject ack = new JsonObject();
+        ack.add("data", data);
+        return ack.toString();
+    }
+
+    /**
+     * @return when the token of a bearer authorization expires, Long.MAX_VALUE for
+     * tokens without an expiry
+     */
+    private static long tokenExpiresAt(String authorization) {
+        int colon = authorization.lastIndexOf(':');
+        if (colon < 0) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return Long.parseLong(authorization.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static String error(int code, String message, String cid) {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", code);
+        error.addProperty("message", message);
+        if (cid != null) {
+            error.addProperty("cid", cid);
+        }
+        JsonObject wrapper = new JsonObject();
+        wrapper.add("error", error);
+        return wrapper.toString();
+    }
+
+    /**
+     * One /websocket connection. It may register any number of devices.
+     */
+    private class DeviceChannel implements WebSocketConnection.Handler {
+        final WebSocketConnection mConnection;
+        final boolean mAck;
+        final RateLimiter mRateLimiter;
+        final Set<String> mRegistered = new CopyOnWriteArraySet<>();
+        final JsonParser mParser = new JsonParser();
+        // Expiry of the token of the latest registration
+        volatile long mTokenExpiresAt = Long.MAX_VALUE;
+
+        DeviceChannel(WebSocketConnection connection) {
+            mConnection = connection;
+            mAck = "true".equals(connection.getQueryParameter("ack"));
+            mRateLimiter = mConditions.newRateLimiter();
+        }
+
+        @Override
+        public void onText(WebSocketConnection connection, String text) {
+            JsonObject frame;
+            try {
+                frame = mParser.parse(text).getAsJsonObject();
+            } catch (RuntimeException e) {
+                connection.sendText(error(400, "Invalid JSON", null));
+                return;
+            }
+            String type = getString(frame, "type");
+            String cid = getString(frame, "cid");
+            if ("register".equals(type)) {
+                onRegister(frame, cid);
+            } else if ("action".equals(type) || frame.has("ddid")) {
+                onAction(frame, cid);
+            } else if ("message".equals(type) || frame.has("sdid")) {
+                onMessage(frame, cid);
+            } else {
+                connection.sendText(error(400, "Unknown message type " + type, cid));
+            }
+        }
+
+        private void onRegister(JsonObject frame, String cid) {
+            String sdid = getString(frame, "sdid");
+            String authorization = getString(frame, "Authorization");
+            if (authorization == null || !authorization.toLowerCase(Locale.US).startsWith("bearer ")
+                    || authorization.length() <= "bearer ".length()) {
+                mConnection.sendText(error(401, "Please provide a valid authorization header", cid));
+                return;
+            }
+            if (sdid == null) {
+                mConnection.sendText(error(400, "Missing sdid", cid));
+                return;
+            }
+            long expiresAt = tokenExpiresAt(authorization);
+            if (System.currentTimeMillis() >= expiresAt) {
+                mConnection.sendText(error(401, "Token expired", cid));
+                return;
+            }
+            mTokenExpiresAt = expiresAt;
+            Set<DeviceChannel> channels = mRegistrations.get(sdid);
+            if (channels == null) {
+                Set<DeviceChannel> created = new CopyOnWriteArraySet<>();
+                channels = mRegistrations.putIfAbsent(sdid, created);
+                if (channels == null) {
+                    channels = created;
+                }
+            }
+            channels.add(this);
+            mRegistered.add(sdid);
+            mConnection.sendText(ack(cid, null));
+        }
+
+        // Common checks of actions and messages; false if the frame must not be processed
+        private boolean admit(String cid) {
+            if (mRegistered.isEmpty()) {
+                mConnection.sendText(error(403, "Channel is not registered", cid));
+                return false;
+            }
+            if (System.currentTimeMillis() >= mTokenExpiresAt) {
+                mExpired.incrementAndGet();
+                mConnection.sendText(error(401, "Token expired", cid));
+                mConnection.close(WebSocketConnection.CLOSE_POLICY_VIOLATION, "Token expired");
+                return false;
+            }
+            if (mRateLimiter != null && !mRateLimiter.tryAcquire()) {
+                mThrottled.incrementAndGet();
+                mConnection.sendText(error(429, "Exceeds rate limit", cid));
+                return false;
+            }
+            if (mConditions.shouldDrop()) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        private void onAction(JsonObject frame, String cid) {
+            if (!admit(cid)) {
+                return;
+            }
+            String ddid = getString(frame, "ddid");
+            if (ddid == null) {
+                mConnection.sendText(error(400, "Missing ddid", cid));
+                return;
+            }
+            mActions.incrementAndGet();
+            String mid = UUID.randomUUID().toString();
+            if (mAck && cid != null) {
+                mConnection.sendText(ack(cid, mid));
+            }
+            JsonObject action = new JsonObject();
+            action.addProperty("type", "action");
+            action.addProperty("mid", mid);
+            action.addProperty("ddid", ddid);
+            action.addProperty("ddtid", mDeviceType);
+            action.addProperty("uid", mUserId);
+            action.addProperty("ts", frame.has("ts") ? frame.get("ts").getAsLong() : System.currentTimeMillis());
+            action.addProperty("cts", System.currentTimeMillis());
+            action.addProperty("mv", 1);
+            action.add("data", frame.get("data"));
+            String text = action.toString();
+            boolean delivered = false;
+            Set<DeviceChannel> channels = mRegistrations.get(ddid);
+            if (channels != null) {
+                for (DeviceChannel channel : channels) {
+                    if (channel != this) {
+                        channel.mConnection.sendText(text);
+                        delivered = true;
+                    }
+                }
+            }
+            if (!delivered && mEcho) {
+                echo(ddid, frame.get("data"));
+            }
+        }
+
+        // Acts like smart_light.js: the last setOn/setOff of the frame sets the state
+        private void echo(String ddid, JsonElement data) {
+            if (data == null || !data.isJsonObject() || !data.getAsJsonObject().has("actions")) {
+                return;
+            }
+            JsonArray actions = data.getAsJsonObject().getAsJsonArray("actions");
+            Boolean state = null;
+            for (JsonElement action : actions) {
+                String name = action.isJsonObject() ? getString(action.getAsJsonObject(), "name") : null;
+                if ("setOn".equals(name)) {
+                    state = true;
+                } else if ("setOff".equals(name)) {
+                    state = false;
+                }
+            }
+            if (state != null) {
+                JsonObject payload = new JsonObject();
+                payload.addProperty("state", state);
+                mMessages.incrementAndGet();
+                publish(ddid, payload, System.currentTimeMillis());
+            }
+        }
+
+        private void onMessage(JsonObject frame, String cid) {
+            if (!admit(cid)) {
+                return;
+            }
+            String sdid = getString(frame, "sdid");
+            if (sdid == null || !mRegistered.contains(sdid)) {
+                mConnection.sendText(error(403, "Device " + sdid + " is not registered on this channel", cid));
+                return;
+            }
+            mMessages.incrementAndGet();
+            String mid = UUID.randomUUID().toString();
+            if (mAck && cid != null) {
+                mConnection.sendText(ack(cid, mid));
+            }
+            long ts = frame.has("ts") ? frame.get("ts").getAsLong() : System.currentTimeMillis();
+            publish(sdid, frame.get("data"), ts);
+        }
+
+        @Override
+        public void onClose(WebSocketConnection connection) {
+            for (String sdid : mRegistered) {
+                Set<DeviceChannel> channels = mRegistrations.get(sdid);
+                if (channels != null) {
+                    channels.remove(this);
+                    if (channels.isEmpty()) {
+                        mRegistrations.remove(sdid, channels);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One /live subscription.
+     */
+    private class Firehose implements WebSocketConnection.Handler {
+        final WebSocketConnection mConnection;
+        final String mSdid;
+        final Set<String> mSdids = new HashSet<>();
+        final String mSdtid;
+        final String mUid;
+        final String mAuthorization;
+
+        Firehose(WebSocketConnection connection) {
+            mConnection = connection;
+            mSdid = connection.getQueryParameter("sdid");
+            String sdids = connection.getQueryParameter("sdids");
+            if (sdids != null) {
+                for (String sdid : sdids.split(",")) {
+                    mSdids.add(sdid);
+                }
+            }
+            mSdtid = connection.getQueryParameter("sdtid");
+            mUid = connection.getQueryParameter("uid");
+            mAuthorization = connection.getQueryParameter("Authorization");
+        }
+
+        boolean isAuthorized() {
+            return mAuthorization != null && mAuthorization.toLowerCase(Locale.US).startsWith("bearer ")
+                    && mAuthorization.length() > "bearer ".length();
+        }
+
+        boolean matches(String sdid) {
+            if (mSdid == null && mSdids.isEmpty() && mSdtid == null && mUid == null) {
+                return true;
+            }
+            return sdid.equals(mSdid) || mSdids.contains(sdid)
+                    || mDeviceType.equals(mSdtid) || mUserId.equals(mUid);
+        }
+
+        @Override
+        public void onText(WebSocketConnection connection, String text) {
+            // /live is receive only
+        }
+
+        @Override
+        public void onClose(WebSocketConnection connection) {
+            mFirehoses.remove(this);
+        }
+    }
+}
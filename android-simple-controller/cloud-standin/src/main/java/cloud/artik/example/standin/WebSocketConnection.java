@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.standin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side of one RFC 6455 websocket: the upgrade handshake, frame decoding and a
+ * writer thread that delays every outgoing frame by the configured network latency.
+ * Plain HTTP requests on the same port get a single response instead.
+ *
+ * Frames keep their order even with jitter: a frame is never written before the
+ * frame queued ahead of it.
+ */
+public class WebSocketConnection {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_POLICY_VIOLATION = 1008;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    public interface Handler {
+        void onText(WebSocketConnection connection, String text);
+
+        void onClose(WebSocketConnection connection);
+    }
+
+    private static class OutgoingFrame {
+        final int opcode;
+        final byte[] payload;
+        final long writeAtNanos;
+
+        OutgoingFrame(int opcode, byte[] payload, long writeAtNanos) {
+            this.opcode = opcode;
+            this.payload = payload;
+            this.writeAtNanos = writeAtNanos;
+        }
+    }
+
+    // Queued by close() so the writer thread stops once the frames ahead are written
+    private static final OutgoingFrame END_OF_STREAM = new OutgoingFrame(-1, null, 0);
+
+    private final Socket mSocket;
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final NetworkConditions mConditions;
+    private final LinkedBlockingQueue<OutgoingFrame> mOutgoing = new LinkedBlockingQueue<>();
+    private String mMethod;
+    private String mPath;
+    private final Map<String, String> mHeaders = new HashMap<>();
+    private final Map<String, String> mQuery = new HashMap<>();
+    private long mLastWriteAtNanos = 0;
+    private volatile boolean mClosed = false;
+
+    public WebSocketConnection(Socket socket, NetworkConditions conditions) throws IOException {
+        mSocket = socket;
+        mSocket.setTcpNoDelay(true);
+        mIn = new BufferedInputStream(socket.getInputStream());
+        mOut = new BufferedOutputStream(socket.getOutputStream());
+        mConditions = conditions;
+    }
+
+    /**
+     * Reads the request line and the headers of the HTTP request opening the connection.
+     */
+    public void readRequest() throws IOException {
+        String requestLine = readLine();
+        String[] parts = requestLine.split(" ");
+        String line;
+        while ((line = readLine()).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                mHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        if (parts.length < 2) {
+            throw new IOException("malformed request line: " + requestLine);
+        }
+        mMethod = parts[0];
+        parseTarget(parts[1]);
+    }
+
+    /**
+     * @return true if the request is a websocket upgrade, false for a plain HTTP request
+     */
+    public boolean isUpgradeRequest() {
+        return "GET".equals(mMethod) && mHeaders.containsKey("sec-websocket-key");
+    }
+
+    /**
+     * Answers the upgrade request; frames can be exchanged from then on.
+     */
+    public void acceptUpgrade() throws IOException {
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(mHeaders.get("sec-websocket-key")) + "\r\n\r\n";
+        mOut.write(response.getBytes(UTF_8));
+        mOut.flush();
+    }
+
+    /**
+     * Answers a plain HTTP request with a JSON body, after the network latency, and
+     * closes the socket.
+     */
+    public void respond(int status, String reason, String json) throws IOException {
+        long delayNanos = mConditions.nextDelayNanos();
+        if (delayNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] body = json.getBytes(UTF_8);
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        try {
+            mOut.write(head.getBytes(UTF_8));
+            mOut.write(body);
+            mOut.flush();
+        } finally {
+            mSocket.close();
+        }
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * @return a header of the request, by case insensitive name, or null
+     */
+    public String getHeader(String name) {
+        return mHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return a query parameter of the request, or null
+     */
+    public String getQueryParameter(String name) {
+        return mQuery.get(name);
+    }
+
+    public String getRemoteAddress() {
+        return String.valueOf(mSocket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Starts the writer thread and reads frames until the connection closes. Runs on
+     * the calling thread.
+     */
+    public void run(Handler handler) {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "standin-writer-" + mSocket.getPort());
+        writer.setDaemon(true);
+        writer.start();
+        try {
+            readLoop(handler);
+        } catch (EOFException e) {
+            // The client went away without a close frame
+        } catch (IOException e) {
+            if (!mClosed) {
+                System.err.println(getRemoteAddress() + ": " + e.getMessage());
+            }
+        } finally {
+            close(CLOSE_NORMAL, null);
+            handler.onClose(this);
+        }
+    }
+
+    /**
+     * Queues a text frame, written after the configured latency. Frames sent after
+     * close() are dropped.
+     */
+    public void sendText(String text) {
+        enqueue(OP_TEXT, text.getBytes(UTF_8));
+    }
+
+    /**
+     * Sends a close frame after the frames already queued, then closes the socket.
+     */
+    public synchronized void close(int code, String reason) {
+        if (mClosed) {
+            return;
+        }
+        enqueue(OP_CLOSE, closePayload(code, reason));
+        mClosed = true;
+        mOutgoing.offer(END_OF_STREAM);
+    }
+
+    /**
+     * Closes a connection right after the handshake, before run() was called.
+     */
+    public synchronized void reject(int code, String reason) {
+        mClosed = true;
+        try {
+            writeFrame(OP_CLOSE, closePayload(code, reason));
+            mOut.flush();
+        } catch (IOException e) {
+            // Closing anyway
+        } finally {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    private synchronized void enqueue(int opcode, byte[] payload) {
+        if (mClosed) {
+            return;
+        }
+        long writeAt = Math.max(mLastWriteAtNanos, System.nanoTime() + mConditions.nextDelayNanos());
+        mLastWriteAtNanos = writeAt;
+        mOutgoing.offer(new OutgoingFrame(opcode, payload, writeAt));
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                OutgoingFrame frame = mOutgoing.take();
+                if (frame == END_OF_STREAM) {
+                    break;
+                }
+                long waitNanos = frame.writeAtNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                writeFrame(frame.opcode, frame.payload);
+                // Batch the frames that are already due into one flush
+                if (mOutgoing.isEmpty() || mOutgoing.peek().writeAtNanos > System.nanoTime()) {
+                    mOut.flush();
+                }
+            }
+            mOut.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The reader notices the broken socket as well
+        } finally {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeFrame(int opcode, byte[] payload) throws IOException {
+        mOut.write(0x80 | opcode);
+        int length = payload.length;
+        if (length < 126) {
+            mOut.write(length);
+        } else if (length <= 0xFFFF) {
+            mOut.write(126);
+            mOut.write(length >> 8);
+            mOut.write(length);
+        } else {
+            mOut.write(127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mOut.write((int) ((long) length >> shift));
+            }
+        }
+        mOut.write(payload);
+    }
+
+    private void readLoop(Handler handler) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        int messageOpcode = -1;
+        while (!mClosed) {
+            int b0 = readByte();
+            int b1 = readByte();
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte() << 8) | readByte();
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte();
+                }
+            }
+            if (!masked) {
+                close(CLOSE_PROTOCOL_ERROR, "client frames must be masked");
+                return;
+            }
+            if (length > MAX_PAYLOAD_BYTES || message.size() + length > MAX_PAYLOAD_BYTES) {
+                close(CLOSE_TOO_BIG, "message too big");
+                return;
+            }
+            byte[] mask = new byte[4];
+            readFully(mask);
+            byte[] payload = new byte[(int) length];
+            readFully(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+
+            switch (opcode) {
+                case OP_PING:
+                    enqueue(OP_PONG, payload);
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_CLOSE:
+                    int code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : CLOSE_NORMAL;
+                    close(code, null);
+                    return;
+                case OP_TEXT:
+                case OP_BINARY:
+                case OP_CONTINUATION:
+                    if (opcode != OP_CONTINUATION) {
+                        messageOpcode = opcode;
+                        message.reset();
+                    }
+                    message.write(payload);
+                    if (fin) {
+                        if (messageOpcode == OP_TEXT) {
+                            handler.onText(this, new String(message.toByteArray(), UTF_8));
+                        }
+                        message.reset();
+                    }
+                    break;
+                default:
+                    close(CLOSE_PROTOCOL_ERROR, "unknown opcode " + opcode);
+                    return;
+            }
+        }
+    }
+
+    private int readByte() throws IOException {
+        int b = mIn.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = mIn.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = readByte()) != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private void parseTarget(String target) throws IOException {
+        int question = target.indexOf('?');
+        mPath = question < 0 ? target : target.substring(0, question);
+        if (question < 0) {
+            return;
+        }
+        for (String pair : target.substring(question + 1).split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                mQuery.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+    }
+
+    private static byte[] closePayload(int code, String reason) {
+        byte[] reasonBytes = reason == null ? new byte[0] : reason.getBytes(UTF_8);
+        byte[] payload = new byte[2 + reasonBytes.length];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, reasonBytes.length);
+        return payload;
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+/**
+ * JVM stand-in for the generated BuildConfig. The harness sets the server with
+ * ArtikCloudSession.setWebSocketBaseUrl() and setApiBaseUrl().
+ */
+public final class BuildConfig {
+    public static final String WEBSOCKET_BASE_URL = null;
+    public static final String API_BASE_URL = null;
+    public static final String OFFLINE_ACCESS_TOKEN = null;
+
+    private BuildConfig() {
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simulator;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cloud.artik.example.simplecontroller.LiteWebSocket;
+
+/**
+ * A fleet of virtual smart lights behaving like raspberrypi/smart_light.js.
+ *
+ * Every light registers on a /websocket connection, applies the setOn/setOff
+ * actions it receives (the last recognized action of a frame wins), and publishes
+ * its state after the actuation delay, the time the GPIO write takes on the Pi.
+ * The lights are spread over a few connections, so thousands of them need neither
+ * thousands of sockets nor thousands of threads.
+ *
+ * Usage: DeviceSimulator [--server ws://localhost:8888/v1.1] [--devices 1000]
+ *                        [--connections 4] [--actuation-ms 5] [--prefix light-]
+ */
+public class DeviceSimulator {
+    private static final String REGISTER_CID_PREFIX = "reg:";
+
+    private final String mBaseUrl;
+    private final String mAccessToken;
+    private final List<String> mDeviceIds;
+    private final Map<String, Integer> mIndexByDeviceId = new HashMap<>();
+    private final long mActuationDelayMs;
+    // Light state per device index, 0 or 1 like the LED pin
+    private final byte[] mStates;
+    private final List<Connection> mConnections = new ArrayList<>();
+    private final ScheduledExecutorService mActuator;
+
+    private final AtomicInteger mRegistered = new AtomicInteger();
+    private final AtomicLong mActionsReceived = new AtomicLong();
+    private final AtomicLong mStatesPublished = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    public DeviceSimulator(String baseUrl, String accessToken, List<String> deviceIds, int connections,
+                           long actuationDelayMs) {
+        mBaseUrl = baseUrl;
+        mAccessToken = accessToken;
+        mDeviceIds = new ArrayList<>(deviceIds);
+        for (int i = 0; i < mDeviceIds.size(); i++) {
+            mIndexByDeviceId.put(mDeviceIds.get(i), i);
+        }
+        mStates = new byte[mDeviceIds.size()];
+        mActuationDelayMs = actuationDelayMs;
+        mActuator = Executors.newScheduledThreadPool(Math.max(1, connections), new DaemonThreadFactory("actuator"));
+        for (int i = 0; i < Math.max(1, connections); i++) {
+            mConnections.add(new Connection());
+        }
+        // Lights are assigned to connections round robin
+        for (int i = 0; i < mDeviceIds.size(); i++) {
+            mConnections.get(i % mConnections.size()).mDeviceIndexes.add(i);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String server = "ws://localhost:8888/v1.1";
+        int devices = 1000;
+        int connections = 4;
+        long actuationMs = 5;
+        String prefix = "light-";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--server": server = args[i + 1]; break;
+                case "--devices": devices = Integer.parseInt(args[i + 1]); break;
+                case "--connections": connections = Integer.parseInt(args[i + 1]); break;
+                case "--actuation-ms": actuationMs = Long.parseLong(args[i + 1]); break;
+                case "--prefix": prefix = args[i + 1]; break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        DeviceSimulator simulator = new DeviceSimulator(server, "simulator", deviceIds(prefix, devices),
+                connections, actuationMs);
+        simulator.start();
+        if (!simulator.awaitRegistered(30 * 1000)) {
+            System.err.println("only " + simulator.getRegisteredCount() + " of " + devices + " lights registered");
+        }
+        while (true) {
+            Thread.sleep(10 * 1000);
+            System.out.println(simulator);
+        }
+    }
+
+    /**
+     * @return prefix00000, prefix00001, ...
+     */
+    public static List<String> deviceIds(String prefix, int count) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(String.format("%s%05d", prefix, i));
+        }
+        return ids;
+    }
+
+    /**
+     * Connects every connection; the lights register as soon as their connection opens.
+     */
+    public void start() throws URISyntaxException {
+        for (Connection connection : mConnections) {
+            connection.connect();
+        }
+    }
+
+    public boolean awaitRegistered(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mRegistered.get() < mDeviceIds.size()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    public void stop() {
+        for (Connection connection : mConnections) {
+            connection.close();
+        }
+        mActuator.shutdownNow();
+    }
+
+    public int getRegisteredCount() {
+        return mRegistered.get();
+    }
+
+    public long getActionsReceived() {
+        return mActionsReceived.get();
+    }
+
+    public long getStatesPublished() {
+        return mStatesPublished.get();
+    }
+
+    @Override
+    public String toString() {
+        return "lights=" + mDeviceIds.size() + " registered=" + mRegistered.get()
+                + " actions=" + mActionsReceived.get() + " states=" + mStatesPublished.get()
+                + " errors=" + mErrors.get();
+    }
+
+    /**
+     * One /websocket connection shared by a subset of the lights.
+     */
+    private class Connection implements LiteWebSocket.Listener {
+        final List<Integer> mDeviceIndexes = new ArrayList<>();
+        final JsonParser mParser = new JsonParser();
+        LiteWebSocket mSocket;
+
+        void connect() throws URISyntaxException {
+            mSocket = new LiteWebSocket(new URI(mBaseUrl + "/websocket?ack=true"), this);
+            mSocket.connect();
+        }
+
+        void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void onOpen() {
+            try {
+                for (int index : mDeviceIndexes) {
+                    JsonObject register = new JsonObject();
+                    register.addProperty("type", "register");
+                    register.addProperty("sdid", mDeviceIds.get(index));
+                    register.addProperty("Authorization", "bearer " + mAccessToken);
+                    register.addProperty("cid", REGISTER_CID_PREFIX + index);
+                    mSocket.sendText(register.toString());
+                }
+            } catch (IOException e) {
+                System.err.println("register failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onText(String text) {
+            JsonObject frame = mParser.parse(text).getAsJsonObject();
+            JsonElement type = frame.get("type");
+            if (type != null && "action".equals(type.getAsString())) {
+                onAction(frame);
+            } else if (frame.has("error")) {
+                mErrors.incrementAndGet();
+                System.err.println("simulator: " + frame.get("error"));
+            } else if (frame.has("data")) {
+                JsonElement cid = frame.getAsJsonObject("data").get("cid");
+                if (cid != null && cid.getAsString().startsWith(REGISTER_CID_PREFIX)) {
+                    mRegistered.incrementAndGet();
+                }
+            }
+        }
+
+        private void onAction(JsonObject frame) {
+            mActionsReceived.incrementAndGet();
+            Integer index = mIndexByDeviceId.get(frame.get("ddid").getAsString());
+            if (index == null) {
+                return;
+            }
+            JsonArray actions = frame.getAsJsonObject("data").getAsJsonArray("actions");
+            int newState = -1;
+            for (JsonElement action : actions) {
+                String name = action.getAsJsonObject().get("name").getAsString();
+                if ("setOn".equalsIgnoreCase(name)) {
+                    newState = 1;
+                } else if ("setOff".equalsIgnoreCase(name)) {
+                    newState = 0;
+                }
+            }
+            if (newState < 0) {
+                return;
+            }
+            final int device = index;
+            final byte state = (byte) newState;
+            if (mActuationDelayMs == 0) {
+                publishState(device, state);
+                return;
+            }
+            mActuator.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    publishState(device, state);
+                }
+            }, mActuationDelayMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void publishState(int device, byte state) {
+            mStates[device] = state;
+            long now = System.currentTimeMillis();
+            String message = "{\"sdid\":\"" + mDeviceIds.get(device) + "\",\"ts\":" + now
+                    + ",\"data\":{\"state\":" + state + "},\"cid\":\"" + now + "\"}";
+            try {
+                mSocket.sendText(message);
+                mStatesPublished.incrementAndGet();
+            } catch (IOException e) {
+                mErrors.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            System.err.println("simulator connection closed: " + code + " " + reason);
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            System.err.println("simulator connection failed: " + e.getMessage());
+        }
+    }
+}
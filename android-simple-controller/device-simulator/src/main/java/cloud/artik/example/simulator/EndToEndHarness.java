@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simulator;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cloud.artik.example.simplecontroller.AccessTokenRefresher;
+import cloud.artik.example.simplecontroller.ArtikCloudSession;
+import cloud.artik.example.simplecontroller.CommandFuture;
+import cloud.artik.example.simplecontroller.ConnectionEvent;
+import cloud.artik.example.simplecontroller.DeviceChannelShard;
+import cloud.artik.example.simplecontroller.DeviceFleet;
+import cloud.artik.example.simplecontroller.DeviceMessageHandler;
+import cloud.artik.example.simplecontroller.FirehoseFilter;
+import cloud.artik.example.simplecontroller.LatencyHistogram;
+import cloud.artik.example.simplecontroller.LatencyStats;
+import cloud.artik.example.standin.NetworkConditions;
+import cloud.artik.example.standin.StandinServer;
+
+/**
+ * End-to-end throughput harness: the controller's ArtikCloudSession, running on the
+ * JVM, drives a DeviceSimulator fleet through a stand-in server.
+ *
+ * Every light runs a closed control loop: the controller sends a toggle, waits for
+ * the light to publish its new state on /live, then sends the next toggle. Each
+ * step grows the fleet and reports the completed loops per second and the
+ * command-to-state (control loop) and send-to-ack latencies, so the scaling of the
+ * controller with the number of devices can be compared between runs. With
+ * --token-ttl-s, the controller's access tokens expire on the in-process stand-in
+ * and are renewed ahead of the expiry while the loops run; "failed" counts the
+ * commands answered with an error or not acknowledged in time. With --rate, the
+ * stand-in rejects the frames of each connection above that rate with 429 errors;
+ * "throttled" counts the frames of the controller it rejected, which the controller
+ * sends again. --client-limiter off turns the controller's adaptive rate limiting
+ * off, to compare. --shards splits the controller's device channel into a pool of
+ * /websocket connections; the frames, acks and mean ack latency of every shard are
+ * listed after each step. --trace writes the controller's trace of the message,
+ * send and ack paths, its last events, to a CSV file at the end.
+ *
+ * Usage: EndToEndHarness [--steps 1,10,100,1000] [--duration-s 10] [--connections 4]
+ *                        [--actuation-ms 5] [--latency-ms 0] [--jitter-ms 0] [--loss 0]
+ *                        [--coalescing-ms 50] [--in-flight 16] [--server ws://host:port/v1.1]
+ *                        [--firehose devices|type|user] [--token-ttl-s 0]
+ *                        [--rate 0] [--burst 10] [--client-limiter on|off] [--shards 1]
+ *                        [--trace file.csv]
+ */
+public class EndToEndHarness {
+    private static final String ACCESS_TOKEN = "harness";
+    // The device type and user of every light of the in-process stand-in
+    private static final String DEVICE_TYPE = "standin-light";
+    private static final String USER_ID = "standin-user";
+    private static final long REGISTRATION_TIMEOUT_MS = 60 * 1000;
+    // A loop without a state message for this long is restarted, e.g. after a lost frame
+    private static final long STALL_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(15);
+    private static final long WATCHDOG_INTERVAL_MS = 100;
+
+    private final ArtikCloudSession mSession = ArtikCloudSession.getInstance();
+    private final ScheduledExecutorService mWatchdog =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("watchdog"));
+
+    private List<String> mDeviceIds;
+    private final Map<String, Integer> mIndexByDeviceId = new HashMap<>();
+    private int mActiveDevices = 0;
+    private long mTokenTtlS = 0;
+    private final AtomicInteger mTokensIssued = new AtomicInteger();
+    private final AtomicLong mFailedCommands = new AtomicLong();
+    private long[] mIssuedAtNanos;
+    private boolean[] mNextOn;
+    private boolean[] mNeedsIssue;
+    private boolean mRunning = false;
+    private long mCompletedLoops = 0;
+    private final LatencyHistogram mLoopLatency = new LatencyHistogram(8);
+
+    public static void main(String[] args) throws Exception {
+        String steps = "1,10,100,1000";
+        long durationS = 10;
+        int connections = 4;
+        long actuationMs = 5;
+        long latencyMs = 0;
+        long jitterMs = 0;
+        double loss = 0;
+        long coalescingMs = 50;
+        int inFlight = 16;
+        String server = null;
+        String firehose = "devices";
+        long tokenTtlS = 0;
+        double rate = 0;
+        int burst = 10;
+        boolean clientLimiter = true;
+        int shards = 1;
+        String trace = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--steps": steps = value; break;
+                case "--duration-s": durationS = Long.parseLong(value); break;
+                case "--connections": connections = Integer.parseInt(value); break;
+                case "--actuation-ms": actuationMs = Long.parseLong(value); break;
+                case "--latency-ms": latencyMs = Long.parseLong(value); break;
+                case "--jitter-ms": jitterMs = Long.parseLong(value); break;
+                case "--loss": loss = Double.parseDouble(value); break;
+                case "--coalescing-ms": coalescingMs = Long.parseLong(value); break;
+                case "--in-flight": inFlight = Integer.parseInt(value); break;
+                case "--server": server = value; break;
+                case "--firehose": firehose = value; break;
+                case "--token-ttl-s": tokenTtlS = Long.parseLong(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--burst": burst = Integer.parseInt(value); break;
+                case "--client-limiter": clientLimiter = "on".equals(value); break;
+                case "--shards": shards = Integer.parseInt(value); break;
+                case "--trace": trace = value; break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        String[] stepValues = steps.split(",");
+        int[] deviceCounts = new int[stepValues.length];
+        for (int i = 0; i < stepValues.length; i++) {
+            deviceCounts[i] = Integer.parseInt(stepValues[i].trim());
+        }
+
+        StandinServer standin = null;
+        if (server == null) {
+            standin = new StandinServer(0, new NetworkConditions(latencyMs, jitterMs, loss, rate, burst, 1),
+                    30 * 1000, DEVICE_TYPE, USER_ID, false);
+            startInBackground(standin);
+            server = "ws://127.0.0.1:" + standin.getPort() + StandinServer.BASE_PATH;
+        }
+
+        EndToEndHarness harness = new EndToEndHarness();
+        harness.setUp(server, deviceCounts[deviceCounts.length - 1], coalescingMs, inFlight, firehose, tokenTtlS);
+        harness.mSession.setDeviceChannelShards(shards);
+        if (!clientLimiter) {
+            harness.mSession.getCommandPipeline().setThrottle(null);
+        }
+        harness.mSession.getTrace().setEnabled(trace != null);
+        System.out.println(String.format(Locale.US, "%8s %10s %10s %10s %10s %10s %8s %10s",
+                "devices", "loops/s", "loop p50", "loop p99", "ack p50", "ack p99", "failed", "throttled"));
+        for (int devices : deviceCounts) {
+            harness.runStep(server, devices, connections, actuationMs, durationS);
+        }
+        harness.tearDown();
+        if (tokenTtlS > 0) {
+            System.out.println("access tokens issued: " + harness.mTokensIssued.get());
+        }
+        System.out.println("messages dropped: duplicates=" + harness.mSession.getDuplicateMessageCount()
+                + " stale=" + harness.mSession.getStaleMessageCount());
+        if (trace != null) {
+            Files.write(new File(trace).toPath(), harness.mSession.exportTrace().getBytes("UTF-8"));
+            System.out.println(harness.mSession.getTrace() + ", written to " + trace);
+        }
+        if (standin != null) {
+            standin.stop();
+        }
+        // The session threads live as long as the process, like in the app
+        System.exit(0);
+    }
+
+    private static void startInBackground(final StandinServer standin) throws IOException {
+        standin.start();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    standin.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "standin");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void setUp(String server, int maxDevices, long coalescingMs, int inFlight, String firehose,
+                       long tokenTtlS) throws IOException {
+        final File filesDir = Files.createTempDirectory("harness").toFile();
+        mSession.setContext(new Context() {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        });
+        mSession.setWebSocketBaseUrl(server);
+        // The stand-in serves the REST API of the history backfill on the same port
+        mSession.setApiBaseUrl(server.replaceFirst("^ws", "http"));
+        mTokenTtlS = tokenTtlS;
+        if (tokenTtlS > 0) {
+            mSession.setAccessTokenRefresher(new AccessTokenRefresher() {
+                @Override
+                public void onAccessTokenExpiring(long expiresAt) {
+                    mSession.setAccessToken(newAccessToken(), mTokenTtlS);
+                }
+            });
+        }
+        mSession.setAccessToken(newAccessToken(), tokenTtlS);
+        mSession.setCoalescingWindow(coalescingMs);
+        switch (firehose) {
+            case "devices": mSession.setFirehoseFilter(FirehoseFilter.devices()); break;
+            case "type": mSession.setFirehoseFilter(FirehoseFilter.deviceType(DEVICE_TYPE)); break;
+            case "user": mSession.setFirehoseFilter(FirehoseFilter.user(USER_ID)); break;
+            default: throw new IllegalArgumentException("unknown firehose filter " + firehose);
+        }
+        mSession.setMaxActionsInFlight(inFlight);
+
+        mDeviceIds = DeviceSimulator.deviceIds("light-", maxDevices);
+        for (int i = 0; i < mDeviceIds.size(); i++) {
+            mIndexByDeviceId.put(mDeviceIds.get(i), i);
+        }
+        mIssuedAtNanos = new long[maxDevices];
+        mNextOn = new boolean[maxDevices];
+        mNeedsIssue = new boolean[maxDevices];
+
+        mWatchdog.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                restartStalledLoops();
+            }
+        }, WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // The stand-in expires the tokens of the form name:expiresAtMillis
+    private String newAccessToken() {
+        int serial = mTokensIssued.incrementAndGet();
+        if (mTokenTtlS <= 0) {
+            return ACCESS_TOKEN;
+        }
+        return ACCESS_TOKEN + "-" + serial + ":"
+                + (System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(mTokenTtlS));
+    }
+
+    private void tearDown() {
+        mWatchdog.shutdownNow();
+        mSession.disconnectFirehoseWS();
+        mSession.disconnectDeviceChannelWS();
+    }
+
+    /**
+     * Grows the fleet to the given size, reconnects the controller, and runs the
+     * control loops of all lights for the duration.
+     */
+    private void runStep(String server, int devices, int connections, long actuationMs, long durationS)
+            throws Exception {
+        DeviceSimulator simulator = new DeviceSimulator(server, ACCESS_TOKEN, mDeviceIds.subList(0, devices),
+                connections, actuationMs);
+        simulator.start();
+        if (!simulator.awaitRegistered(REGISTRATION_TIMEOUT_MS)) {
+            throw new IllegalStateException("simulator registered " + simulator.getRegisteredCount()
+                    + " of " + devices + " lights");
+        }
+
+        // The subscriptions and registrations of the controller are made on connect
+        mSession.disconnectFirehoseWS();
+        mSession.disconnectDeviceChannelWS();
+        for (int i = 0; i < devices; i++) {
+            mSession.addDevice(mDeviceIds.get(i), mDeviceIds.get(i));
+            mSession.setDeviceMessageHandler(mDeviceIds.get(i), mMessageHandler);
+        }
+        mSession.connectFirehoseWS();
+        mSession.connectDeviceChannelWS();
+        awaitControllerReady(devices);
+
+        mSession.getLatencyStats().reset();
+        mFailedCommands.set(0);
+        int throttledBefore = mSession.getCommandPipeline().getThrottledCount();
+        synchronized (this) {
+            mLoopLatency.reset();
+            mCompletedLoops = 0;
+            mActiveDevices = devices;
+            mRunning = true;
+            for (int i = 0; i < devices; i++) {
+                issue(i);
+            }
+        }
+        long startNanos = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationS));
+        long completed;
+        synchronized (this) {
+            mRunning = false;
+            completed = mCompletedLoops;
+        }
+        double elapsedS = (System.nanoTime() - startNanos) / 1e9;
+        LatencyHistogram ack = mSession.getLatencyStats().getHistogram(LatencyStats.SEND_TO_ACK);
+        synchronized (this) {
+            System.out.println(String.format(Locale.US, "%8d %10.1f %10.1f %10.1f %10.1f %10.1f %8d %10d",
+                    devices, completed / elapsedS,
+                    mLoopLatency.getValueAtPercentile(50) / 1000.0,
+                    mLoopLatency.getValueAtPercentile(99) / 1000.0,
+                    ack.getValueAtPercentile(50) / 1000.0,
+                    ack.getValueAtPercentile(99) / 1000.0,
+                    mFailedCommands.get(),
+                    mSession.getCommandPipeline().getThrottledCount() - throttledBefore));
+        }
+        List<DeviceChannelShard> shards = mSession.getDeviceChannelShards();
+        if (shards.size() > 1) {
+            for (DeviceChannelShard shard : shards) {
+                System.out.println("    " + shard + " in-flight=" + mSession.getActionsInFlight(shard.getIndex()));
+            }
+        }
+        // Let the last commands drain before the fleet changes
+        Thread.sleep(500);
+        simulator.stop();
+    }
+
+    private void awaitControllerReady(int devices) throws InterruptedException {
+        DeviceFleet fleet = mSession.getFleet();
+        long deadline = System.currentTimeMillis() + REGISTRATION_TIMEOUT_MS;
+        while (true) {
+            boolean ready = mSession.getConnectionMonitors(ConnectionEvent.Endpoint.LIVE).get(0).isConnected();
+            for (int i = 0; ready && i < devices; i++) {
+                ready = fleet.isRegistered(fleet.indexOf(mDeviceIds.get(i)));
+            }
+            if (ready) {
+                return;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                throw new IllegalStateException("controller not ready after " + REGISTRATION_TIMEOUT_MS + " ms");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    // Sends the next toggle of a light; called with the lock held
+    private void issue(final int device) {
+        mNeedsIssue[device] = false;
+        mIssuedAtNanos[device] = System.nanoTime();
+        mNextOn[device] = !mNextOn[device];
+        CommandFuture future = mSession.sendAction(mDeviceIds.get(device), mNextOn[device] ? "setOn" : "setOff");
+        future.addListener(new CommandFuture.Listener() {
+            @Override
+            public void onComplete(CommandFuture future) {
+                CommandFuture.Status status = future.getStatus();
+                if (status == CommandFuture.Status.FAILED || status == CommandFuture.Status.TIMED_OUT) {
+                    mFailedCommands.incrementAndGet();
+                }
+                if (status != CommandFuture.Status.ACKED) {
+                    // Dropped before reaching the light; the watchdog sends it again
+                    synchronized (EndToEndHarness.this) {
+                        mNeedsIssue[device] = true;
+                    }
+                }
+            }
+        });
+    }
+
+    private final DeviceMessageHandler mMessageHandler = new DeviceMessageHandler() {
+        @Override
+        public void onDeviceMessage(String sdid, boolean hasState, Object state, long ts) {
+            onStateMessage(sdid, System.nanoTime());
+        }
+    };
+
+    private synchronized void onStateMessage(String deviceId, long receivedAtNanos) {
+        Integer device = mIndexByDeviceId.get(deviceId);
+        if (device == null || device >= mActiveDevices || mIssuedAtNanos[device] == 0) {
+            return;
+        }
+        mLoopLatency.recordValue((receivedAtNanos - mIssuedAtNanos[device]) / 1000);
+        mIssuedAtNanos[device] = 0;
+        if (mRunning) {
+            mCompletedLoops++;
+            issue(device);
+        }
+    }
+
+    private synchronized void restartStalledLoops() {
+        if (!mRunning) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < mActiveDevices; i++) {
+            if (mNeedsIssue[i] || (mIssuedAtNanos[i] != 0 && now - mIssuedAtNanos[i] > STALL_TIMEOUT_NANOS)) {
+                issue(i);
+            }
+        }
+    }
+}
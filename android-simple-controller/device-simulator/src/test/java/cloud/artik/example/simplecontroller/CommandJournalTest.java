@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandJournalTest {
+    // Type, id, device id, action name of 1 and 5 chars, acceptance time
+    private static final long ACCEPTED_BYTES = 1 + 8 + (2 + 1) + (2 + 5) + 8;
+    // Type, id
+    private static final long DONE_BYTES = 1 + 8;
+
+    private ScheduledExecutorService mScheduler;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mFile = File.createTempFile("journal", ".bin");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    // Syncs on the scheduler, like the journal does, and waits for it
+    private void sync(final CommandJournal journal) throws Exception {
+        mScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                journal.sync();
+            }
+        }).get();
+    }
+
+    private CommandJournal reopen() {
+        CommandJournal journal = new CommandJournal(mScheduler);
+        journal.open(mFile);
+        return journal;
+    }
+
+    private static List<Long> ids(List<Command> commands) {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < commands.size(); i++) {
+            ids.add(commands.get(i).getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void replaysThePendingCommandsOfThePreviousRunInOrder() throws Exception {
+        CommandJournal journal = reopen();
+        Command first = new Command(1, "a", "setOn");
+        Command other = new Command(2, "b", "setOn");
+        Command done = new Command(3, "a", "setOff");
+        Command last = new Command(4, "a", "setOff");
+        journal.append(first);
+        journal.append(other);
+        journal.append(done);
+        journal.append(last);
+        done.getFuture().complete(CommandFuture.Status.ACKED, null);
+        sync(journal);
+
+        CommandJournal restored = reopen();
+        assertEquals(3, restored.getPendingCount());
+        assertEquals(3, restored.getHeldCount());
+        List<Command> replayed = restored.takeHeld("a");
+        assertEquals("[1, 4]", ids(replayed).toString());
+        assertEquals("setOff", replayed.get(1).getActionName());
+        assertEquals(last.getAcceptedAtMillis(), replayed.get(1).getAcceptedAtMillis());
+        assertTrue(restored.takeHeld("a").isEmpty());
+        assertTrue(restored.nextCommandId() > 4);
+    }
+
+    @Test
+    public void ignoresATornRecordAtTheEnd() throws Exception {
+        CommandJournal journal = reopen();
+        journal.append(new Command(1, "a", "setOn"));
+        journal.append(new Command(2, "a", "setOff"));
+        sync(journal);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        CommandJournal restored = reopen();
+        assertEquals("[1]", ids(restored.takeHeld("a")).toString());
+    }
+
+    @Test
+    public void ignoresEverythingAfterACorruptRecord() throws Exception {
+        CommandJournal journal = reopen();
+        journal.append(new Command(1, "a", "setOn"));
+        sync(journal);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile, true));
+        try {
+            out.writeByte('X');
+            out.writeLong(2);
+            out.writeByte('A');
+            out.writeLong(3);
+            out.writeUTF("a");
+            out.writeUTF("setOff");
+            out.writeLong(System.currentTimeMillis());
+        } finally {
+            out.close();
+        }
+
+        CommandJournal restored = reopen();
+        assertEquals("[1]", ids(restored.takeHeld("a")).toString());
+    }
+
+    @Test
+    public void dropsCommandsOlderThanTheReplayAge() throws Exception {
+        CommandJournal journal = reopen();
+        long now = System.currentTimeMillis();
+        journal.append(new Command(1, "a", "setOn", now - CommandJournal.MAX_REPLAY_AGE_MS - 1000));
+        journal.append(new Command(2, "a", "setOff", now));
+        sync(journal);
+
+        CommandJournal restored = reopen();
+        assertEquals(1, restored.getPendingCount());
+        assertEquals("[2]", ids(restored.takeHeld("a")).toString());
+        // The expired command is gone from the file too
+        assertEquals(1, reopen().getPendingCount());
+    }
+
+    @Test
+    public void compactsTheFileToThePendingCommandsOnOpen() throws Exception {
+        CommandJournal journal = reopen();
+        for (long id = 1; id <= 100; id++) {
+            Command command = new Command(id, "a", "setOn");
+            journal.append(command);
+            if (id != 50) {
+                command.getFuture().complete(CommandFuture.Status.ACKED, null);
+            }
+        }
+        sync(journal);
+
+        CommandJournal restored = reopen();
+        assertEquals(ACCEPTED_BYTES, mFile.length());
+        assertEquals("[50]", ids(restored.takeHeld("a")).toString());
+    }
+
+    @Test
+    public void keepsTheCommandsAcceptedDuringACompaction() throws Exception {
+        // Holds the scheduler, so the only compaction is the one started below
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final CommandJournal journal = reopen();
+        // Past the compaction threshold, with a single pending command
+        for (long id = 1; id <= 2100; id++) {
+            Command command = new Command(id, "a", "setOn");
+            journal.append(command);
+            if (id != 50) {
+                command.getFuture().complete(CommandFuture.Status.ACKED, null);
+            }
+        }
+        Thread compaction = new Thread() {
+            @Override
+            public void run() {
+                journal.sync();
+            }
+        };
+        compaction.start();
+        // Accepts and completes commands until the compaction is over
+        List<Long> expected = new ArrayList<>();
+        long bytes = 2100 * ACCEPTED_BYTES + 2099 * DONE_BYTES;
+        long id = 3000;
+        do {
+            Command command = new Command(id, "b", "setOn");
+            journal.append(command);
+            bytes += ACCEPTED_BYTES;
+            if (id % 2 == 1) {
+                command.getFuture().complete(CommandFuture.Status.ACKED, null);
+                bytes += DONE_BYTES;
+            } else {
+                expected.add(id);
+            }
+            id++;
+        } while (compaction.isAlive());
+        compaction.join();
+        release.countDown();
+        sync(journal);
+
+        // Compacted: shorter than all the records written
+        assertTrue(mFile.length() < bytes);
+        CommandJournal restored = reopen();
+        assertEquals("[50]", ids(restored.takeHeld("a")).toString());
+        assertEquals(expected.toString(), ids(restored.takeHeld("b")).toString());
+    }
+
+    @Test
+    public void holdsAndSubmitsEachCommandOnce() {
+        CommandJournal journal = new CommandJournal(mScheduler);
+        Command command = new Command(1, "a", "setOn");
+        journal.append(command);
+        journal.append(command);
+        assertEquals(1, journal.getPendingCount());
+        assertTrue(journal.isHeld(1));
+        assertTrue(journal.markSubmitted(command));
+        assertFalse(journal.markSubmitted(command));
+        assertTrue(journal.takeHeld("a").isEmpty());
+
+        journal.markHeld(command);
+        assertTrue(journal.unhold(1));
+        assertFalse(journal.unhold(1));
+        journal.markHeld(command);
+        assertEquals("[1]", ids(journal.takeHeld("a")).toString());
+
+        command.getFuture().complete(CommandFuture.Status.ACKED, null);
+        journal.markHeld(command);
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(0, journal.getHeldCount());
+    }
+}
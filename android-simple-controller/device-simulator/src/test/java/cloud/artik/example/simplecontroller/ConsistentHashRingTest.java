@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+    private static final int VIRTUAL_NODES = 256;
+    private static final int KEYS = 10000;
+
+    private static String key(int i) {
+        return "sdid-" + i;
+    }
+
+    private static int[] assign(ConsistentHashRing ring) {
+        int[] shards = new int[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            shards[i] = ring.shardOf(key(i));
+        }
+        return shards;
+    }
+
+    // Same hash as the ring, to find a key past the last node
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Test
+    public void spreadsTheKeysEvenly() {
+        int[] counts = new int[4];
+        for (int shard : assign(new ConsistentHashRing(4, VIRTUAL_NODES))) {
+            counts[shard]++;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            assertTrue("shard " + i + " has " + counts[i] + " keys", Math.abs(counts[i] - KEYS / 4) < KEYS / 4 / 5);
+        }
+    }
+
+    @Test
+    public void wrapsKeysPastTheLastNodeToTheFirst() {
+        long first = hash("shard-0#0");
+        long second = hash("shard-1#0");
+        int lowestOwner = first < second ? 0 : 1;
+        String wrapped = null;
+        for (int i = 0; wrapped == null; i++) {
+            if (hash(key(i)) > Math.max(first, second)) {
+                wrapped = key(i);
+            }
+        }
+        assertEquals(lowestOwner, new ConsistentHashRing(2, 1).shardOf(wrapped));
+    }
+
+    @Test
+    public void movesOnlyTheKeysOfAFailedShardAndBringsThemBack() {
+        ConsistentHashRing ring = new ConsistentHashRing(4, VIRTUAL_NODES);
+        int[] before = assign(ring);
+        assertTrue(ring.setAlive(2, false));
+        assertFalse(ring.setAlive(2, false));
+        assertEquals(3, ring.getAliveCount());
+        int[] failed = assign(ring);
+        Set<Integer> takers = new HashSet<>();
+        for (int i = 0; i < KEYS; i++) {
+            if (before[i] == 2) {
+                assertNotEquals(2, failed[i]);
+                takers.add(failed[i]);
+            } else {
+                assertEquals(before[i], failed[i]);
+            }
+        }
+        // The virtual nodes spread the load of the failed shard over all the others
+        assertEquals(3, takers.size());
+        assertTrue(ring.setAlive(2, true));
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(before[i], ring.shardOf(key(i)));
+        }
+    }
+
+    @Test
+    public void hasNoShardWhileAllAreDown() {
+        ConsistentHashRing ring = new ConsistentHashRing(2, VIRTUAL_NODES);
+        int shard = ring.shardOf("d1");
+        ring.setAlive(0, false);
+        ring.setAlive(1, false);
+        assertEquals(0, ring.getAliveCount());
+        assertEquals(-1, ring.shardOf("d1"));
+        ring.reset();
+        assertEquals(2, ring.getAliveCount());
+        assertEquals(shard, ring.shardOf("d1"));
+    }
+
+    @Test
+    public void growingThePoolMovesKeysOnlyToTheNewShard() {
+        int[] before = assign(new ConsistentHashRing(4, VIRTUAL_NODES));
+        int[] after = assign(new ConsistentHashRing(5, VIRTUAL_NODES));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (after[i] != before[i]) {
+                assertEquals(4, after[i]);
+                moved++;
+            }
+        }
+        assertTrue(moved + " keys moved", Math.abs(moved - KEYS / 5) < KEYS / 5 / 5);
+    }
+
+    @Test
+    public void shrinkingThePoolMovesOnlyTheKeysOfTheRemovedShard() {
+        int[] before = assign(new ConsistentHashRing(5, VIRTUAL_NODES));
+        int[] after = assign(new ConsistentHashRing(4, VIRTUAL_NODES));
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(after[i] < 4);
+            if (before[i] != 4) {
+                assertEquals(before[i], after[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeviceFleetTest {
+    private static final long MAX_REORDER_MS = 30 * 1000;
+    private static final long NOW = 1451606965889L;
+
+    private final DeviceFleet mFleet = new DeviceFleet();
+    private int mDevice;
+
+    @Before
+    public void setUp() {
+        mDevice = mFleet.addDevice("d1", "Light");
+        mFleet.addDevice("d2", "Other");
+    }
+
+    // A message with an unseen mid, received at the given local time
+    private int advance(long ts, long receivedAt) {
+        return mFleet.advanceMessageTs(mDevice, ts, false, receivedAt, MAX_REORDER_MS);
+    }
+
+    @Test
+    public void ordersTheMessagesOfADevice() {
+        assertEquals(DeviceFleet.MESSAGE_NEWER, advance(NOW, NOW));
+        assertEquals(DeviceFleet.MESSAGE_SAME_TS, advance(NOW, NOW));
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(NOW - 1, NOW));
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(NOW - MAX_REORDER_MS, NOW));
+        assertEquals(DeviceFleet.MESSAGE_NEWER, advance(NOW + 1, NOW));
+        assertEquals(DeviceFleet.MESSAGE_NEWER, mFleet.advanceMessageTs(1, 5, false, NOW, MAX_REORDER_MS));
+    }
+
+    @Test
+    public void dropsARedeliveryOfASeenMidOlderThanTheReorderWindow() {
+        advance(NOW, NOW);
+        long old = NOW - 10 * MAX_REORDER_MS;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(DeviceFleet.MESSAGE_STALE,
+                    mFleet.advanceMessageTs(mDevice, old + i * 1000, true, NOW + i * 1000, MAX_REORDER_MS));
+        }
+        // The most recent ts did not roll back
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(NOW - 1, NOW + 5000));
+    }
+
+    @Test
+    public void takesAClockStepOnceASecondMessageConfirmsIt() {
+        advance(NOW, NOW);
+        // A reboot without a real time clock starts from the epoch
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(5000, NOW + 1000));
+        assertEquals(DeviceFleet.MESSAGE_CLOCK_STEP, advance(65000, NOW + 61000));
+        assertEquals(DeviceFleet.MESSAGE_NEWER, advance(66000, NOW + 62000));
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(65500, NOW + 62000));
+    }
+
+    @Test
+    public void doesNotTakeABurstOfOldMessagesForAClockStep() {
+        advance(NOW, NOW);
+        long old = NOW - 10 * MAX_REORDER_MS;
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(old, NOW + 10));
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(old + 10000, NOW + 20));
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(old + 20000, NOW + 30));
+        assertEquals(DeviceFleet.MESSAGE_SAME_TS, advance(NOW, NOW + 40));
+    }
+
+    @Test
+    public void keepsTheMessageOrderAcrossDeviceChannelReconnects() {
+        advance(NOW, NOW);
+        mFleet.clearRegistrations();
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(NOW - 1, NOW));
+        mFleet.clearRegistrations(mFleet.getShard(mDevice));
+        assertEquals(DeviceFleet.MESSAGE_STALE, advance(NOW - 1, NOW));
+
+        mFleet.clearMessageTs();
+        assertEquals(DeviceFleet.MESSAGE_NEWER, advance(NOW - 1, NOW));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventBusTest {
+    private static class Recorder implements EventBus.Subscriber<Object> {
+        private final String mName;
+        private final List<String> mLog;
+
+        Recorder(String name, List<String> log) {
+            mName = name;
+            mLog = log;
+        }
+
+        @Override
+        public void onEvent(Object event) {
+            mLog.add(mName + ":" + event);
+        }
+    }
+
+    private static class SpecialEvent extends ConnectionEvent {
+        SpecialEvent() {
+            super(Endpoint.LIVE, Kind.OPENED, null, null);
+        }
+    }
+
+    @Test
+    public void deliversInSubscriptionOrder() {
+        EventBus bus = new EventBus();
+        List<String> log = new ArrayList<>();
+        bus.subscribe(String.class, new Recorder("a", log));
+        bus.subscribe(String.class, new Recorder("b", log));
+        bus.post("x");
+        assertEquals("[a:x, b:x]", log.toString());
+    }
+
+    @Test
+    public void deliversOnlyToTheExactType() {
+        EventBus bus = new EventBus();
+        List<String> log = new ArrayList<>();
+        bus.subscribe(ConnectionEvent.class, new Recorder("connection", log));
+        bus.post(new SpecialEvent());
+        bus.post(42);
+        assertTrue(log.isEmpty());
+    }
+
+    @Test
+    public void unsubscribesOneSubscriber() {
+        EventBus bus = new EventBus();
+        List<String> log = new ArrayList<>();
+        Recorder a = new Recorder("a", log);
+        Recorder b = new Recorder("b", log);
+        Recorder c = new Recorder("c", log);
+        bus.subscribe(String.class, a);
+        bus.subscribe(String.class, b);
+        bus.subscribe(String.class, c);
+        bus.unsubscribe(String.class, b);
+        bus.unsubscribe(String.class, new Recorder("unknown", log));
+        bus.unsubscribe(Integer.class, a);
+        bus.post("x");
+        assertEquals("[a:x, c:x]", log.toString());
+    }
+
+    @Test
+    public void forgetsATypeWithoutSubscribers() {
+        EventBus bus = new EventBus();
+        Recorder a = new Recorder("a", new ArrayList<String>());
+        bus.subscribe(String.class, a);
+        assertTrue(bus.hasSubscribers(String.class));
+        bus.unsubscribe(String.class, a);
+        assertFalse(bus.hasSubscribers(String.class));
+        bus.post("x");
+    }
+
+    @Test
+    public void aPostInProgressIsNotChangedByAnUnsubscribe() {
+        final EventBus bus = new EventBus();
+        final List<String> log = new ArrayList<>();
+        final Recorder b = new Recorder("b", log);
+        bus.subscribe(String.class, new EventBus.Subscriber<String>() {
+            @Override
+            public void onEvent(String event) {
+                log.add("a:" + event);
+                bus.unsubscribe(String.class, b);
+            }
+        });
+        bus.subscribe(String.class, b);
+        bus.post("x");
+        bus.post("y");
+        assertEquals("[a:x, b:x, a:y]", log.toString());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedTimerWheelTest {
+    private static final long TICK_MS = 10;
+    // 8 buckets: one turn of the wheel is 80 ms
+    private static final int WHEEL_SIZE = 8;
+
+    private final ScheduledThreadPoolExecutor mScheduler = new ScheduledThreadPoolExecutor(1);
+    private final HashedTimerWheel mWheel = new HashedTimerWheel(mScheduler, TICK_MS, WHEEL_SIZE);
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    // Records when it ran, in ms since it was created
+    private static class Task implements Runnable {
+        private final long mCreatedAt = System.nanoTime();
+        private final CountDownLatch mRan = new CountDownLatch(1);
+        private volatile long mRanAfterMs = -1;
+        private final List<String> mOrder;
+        private final String mName;
+
+        Task(String name, List<String> order) {
+            mName = name;
+            mOrder = order;
+        }
+
+        @Override
+        public void run() {
+            mRanAfterMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mCreatedAt);
+            mOrder.add(mName);
+            mRan.countDown();
+        }
+
+        boolean await(long timeoutMs) throws InterruptedException {
+            return mRan.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void runsATaskOnceItsDelayElapsed() throws InterruptedException {
+        Task task = new Task("a", Collections.synchronizedList(new ArrayList<String>()));
+        HashedTimerWheel.Timeout timeout = mWheel.schedule(task, 50);
+        assertTrue(timeout.isPending());
+        assertEquals(1, mWheel.size());
+        assertTrue(task.await(1000));
+        assertTrue("ran after " + task.mRanAfterMs + " ms", task.mRanAfterMs >= 50 - TICK_MS);
+        assertFalse(timeout.isPending());
+        assertFalse(timeout.cancel());
+        assertEquals(0, mWheel.size());
+    }
+
+    @Test
+    public void neverRunsACancelledTask() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        HashedTimerWheel.Timeout cancelled = mWheel.schedule(new Task("cancelled", order), 20);
+        Task last = new Task("last", order);
+        mWheel.schedule(last, 60);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(last.await(1000));
+        assertEquals("[last]", order.toString());
+    }
+
+    @Test
+    public void runsDelaysLongerThanATurnInDeadlineOrder() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        // 250 ms shares its bucket with 10 ms and 90 ms, three turns earlier
+        Task longest = new Task("250", order);
+        mWheel.schedule(longest, 250);
+        mWheel.schedule(new Task("90", order), 90);
+        mWheel.schedule(new Task("10", order), 10);
+        mWheel.schedule(new Task("170", order), 170);
+        assertTrue(longest.await(2000));
+        assertTrue("ran after " + longest.mRanAfterMs + " ms", longest.mRanAfterMs >= 250 - TICK_MS);
+        assertEquals("[10, 90, 170, 250]", order.toString());
+    }
+
+    @Test
+    public void doesNotTickWhileNothingIsDue() throws InterruptedException {
+        Task task = new Task("a", Collections.synchronizedList(new ArrayList<String>()));
+        mWheel.schedule(task, 300);
+        assertTrue(task.await(2000));
+        // One wake-up at the deadline, not one per tick; allow an early one for the
+        // clock granularity
+        assertTrue("woke up " + mScheduler.getCompletedTaskCount() + " times",
+                mScheduler.getCompletedTaskCount() <= 2);
+        Thread.sleep(5 * TICK_MS);
+        assertEquals(0, mScheduler.getQueue().size());
+    }
+
+    @Test
+    public void keepsRunningTasksAfterOneThrows() throws InterruptedException {
+        mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected by the test");
+            }
+        }, 10);
+        Task next = new Task("next", Collections.synchronizedList(new ArrayList<String>()));
+        mWheel.schedule(next, 10);
+        Task later = new Task("later", Collections.synchronizedList(new ArrayList<String>()));
+        mWheel.schedule(later, 40);
+        assertTrue(next.await(1000));
+        assertTrue(later.await(1000));
+    }
+}
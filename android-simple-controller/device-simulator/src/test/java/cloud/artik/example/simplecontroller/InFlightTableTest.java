@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightTableTest {
+    // A table of 4 outstanding frames has 8 slots
+    private static final int MASK = 7;
+
+    private static ActionBatch batch(long cid, long sentAtNanos, int shard) {
+        ActionBatch batch = new ActionBatch("device" + cid);
+        batch.markSent(cid, sentAtNanos);
+        batch.setShard(shard);
+        return batch;
+    }
+
+    // Same hash as the table, to build collision chains on purpose
+    private static int homeSlot(long cid) {
+        long h = cid * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & MASK;
+    }
+
+    // The first count cids whose home is the given slot
+    private static List<Long> cidsWithHome(int slot, int count) {
+        List<Long> cids = new ArrayList<>();
+        for (long cid = 1; cids.size() < count; cid++) {
+            if (homeSlot(cid) == slot) {
+                cids.add(cid);
+            }
+        }
+        return cids;
+    }
+
+    @Test
+    public void removesWhatWasPut() {
+        InFlightTable table = new InFlightTable(4);
+        ActionBatch first = batch(1, 0, 0);
+        ActionBatch second = batch(2, 0, 0);
+        table.put(1, first);
+        table.put(2, second);
+        assertEquals(2, table.size());
+        assertSame(second, table.remove(2));
+        assertNull(table.remove(2));
+        assertSame(first, table.remove(1));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void ignoresUnknownAndInvalidCids() {
+        InFlightTable table = new InFlightTable(4);
+        table.put(1, batch(1, 0, 0));
+        assertNull(table.remove(3));
+        assertNull(table.remove(0));
+        assertNull(table.remove(-1));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void deletingTheHeadOfAChainKeepsTheRestReachable() {
+        InFlightTable table = new InFlightTable(4);
+        List<Long> chain = cidsWithHome(2, 4);
+        for (long cid : chain) {
+            table.put(cid, batch(cid, 0, 0));
+        }
+        assertEquals(chain.get(0).longValue(), table.remove(chain.get(0)).getCid());
+        for (int i = 1; i < chain.size(); i++) {
+            assertEquals(chain.get(i).longValue(), table.remove(chain.get(i)).getCid());
+        }
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void deletingInAChainThatWrapsAroundKeepsTheRestReachable() {
+        InFlightTable table = new InFlightTable(4);
+        // Probes from the last slot continue at slot 0 and 1
+        List<Long> chain = cidsWithHome(MASK, 3);
+        long atZero = cidsWithHome(0, 1).get(0);
+        for (long cid : chain) {
+            table.put(cid, batch(cid, 0, 0));
+        }
+        table.put(atZero, batch(atZero, 0, 0));
+        assertEquals(chain.get(1).longValue(), table.remove(chain.get(1)).getCid());
+        assertEquals(chain.get(0).longValue(), table.remove(chain.get(0)).getCid());
+        assertEquals(atZero, table.remove(atZero).getCid());
+        assertEquals(chain.get(2).longValue(), table.remove(chain.get(2)).getCid());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void matchesAMapUnderRandomPutsAndRemoves() {
+        InFlightTable table = new InFlightTable(4);
+        Map<Long, ActionBatch> expected = new HashMap<>();
+        Random random = new Random(42);
+        long nextCid = 1;
+        for (int i = 0; i < 100000; i++) {
+            if (expected.size() < 4 && (expected.isEmpty() || random.nextBoolean())) {
+                ActionBatch batch = batch(nextCid, 0, 0);
+                table.put(nextCid, batch);
+                expected.put(nextCid, batch);
+                nextCid += 1 + random.nextInt(3);
+            } else {
+                List<Long> cids = new ArrayList<>(expected.keySet());
+                long cid = cids.get(random.nextInt(cids.size()));
+                assertSame(expected.remove(cid), table.remove(cid));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+    }
+
+    @Test
+    public void expiresOnlyTheFramesSentBefore() {
+        InFlightTable table = new InFlightTable(8);
+        for (long cid = 1; cid <= 8; cid++) {
+            table.put(cid, batch(cid, cid * 100, 0));
+        }
+        List<ActionBatch> expired = new ArrayList<>();
+        table.expire(450, expired);
+        assertEquals(4, expired.size());
+        assertEquals(4, table.size());
+        for (long cid = 1; cid <= 4; cid++) {
+            assertNull(table.remove(cid));
+        }
+        for (long cid = 5; cid <= 8; cid++) {
+            assertEquals(cid, table.remove(cid).getCid());
+        }
+    }
+
+    @Test
+    public void clearsTheFramesOfOneShard() {
+        InFlightTable table = new InFlightTable(8);
+        for (long cid = 1; cid <= 8; cid++) {
+            table.put(cid, batch(cid, 0, (int) (cid % 2)));
+        }
+        assertEquals(4, table.sizeOfShard(1));
+        List<ActionBatch> removed = new ArrayList<>();
+        table.clearShard(1, removed);
+        assertEquals(4, removed.size());
+        assertEquals(0, table.sizeOfShard(1));
+        for (long cid = 2; cid <= 8; cid += 2) {
+            assertEquals(cid, table.remove(cid).getCid());
+        }
+    }
+
+    @Test
+    public void keepsTheFramesWhenTheLimitGrows() {
+        InFlightTable table = new InFlightTable(2);
+        table.put(1, batch(1, 0, 0));
+        table.put(2, batch(2, 0, 0));
+        table.setMaxOutstanding(64);
+        assertEquals(64, table.getMaxOutstanding());
+        assertEquals(1, table.remove(1).getCid());
+        assertEquals(2, table.remove(2).getCid());
+    }
+
+    @Test
+    public void reportsNoSlotWhileFull() throws InterruptedException {
+        InFlightTable table = new InFlightTable(1);
+        assertTrue(table.awaitSlot(0));
+        table.put(1, batch(1, 0, 0));
+        assertFalse(table.awaitSlot(1));
+        table.remove(1);
+        assertTrue(table.awaitSlot(0));
+    }
+
+    @Test
+    public void parsesOnlyCommandCids() {
+        assertEquals(0, InFlightTable.parseCid("0"));
+        assertEquals(1234567890123L, InFlightTable.parseCid("1234567890123"));
+        assertEquals(-1, InFlightTable.parseCid(null));
+        assertEquals(-1, InFlightTable.parseCid(""));
+        assertEquals(-1, InFlightTable.parseCid("reg-12"));
+        assertEquals(-1, InFlightTable.parseCid("-5"));
+        assertEquals(-1, InFlightTable.parseCid("1234567890123456789"));
+    }
+}
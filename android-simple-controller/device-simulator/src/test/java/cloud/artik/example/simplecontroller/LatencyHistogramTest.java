@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private static final int SUB_BUCKET_BITS = 8;
+
+    // The upper bound of the bucket a single value is recorded in
+    private static long bucketOf(long value) {
+        LatencyHistogram histogram = new LatencyHistogram(SUB_BUCKET_BITS);
+        histogram.recordValue(value);
+        StringBuilder out = new StringBuilder();
+        histogram.appendDistribution(out);
+        return Long.parseLong(out.substring(0, out.indexOf(",")));
+    }
+
+    private static void assertBucketHolds(long value) {
+        long upper = bucketOf(value);
+        assertTrue(value + " above its bucket " + upper, upper >= value);
+        assertTrue(value + " in a too wide bucket " + upper,
+                upper - value <= value >> (SUB_BUCKET_BITS - 1));
+        assertEquals("bucket of " + value, upper, bucketOf(upper));
+    }
+
+    @Test
+    public void keepsSmallValuesExact() {
+        for (long value = 0; value < 1 << SUB_BUCKET_BITS; value++) {
+            assertEquals(value, bucketOf(value));
+        }
+    }
+
+    @Test
+    public void boundsTheErrorAcrossPowersOfTwo() {
+        for (int bit = SUB_BUCKET_BITS; bit < 32; bit++) {
+            long power = 1L << bit;
+            assertBucketHolds(power - 1);
+            assertBucketHolds(power);
+            assertBucketHolds(power + 1);
+            assertTrue(bucketOf(power - 1) < power);
+        }
+        for (long value = 1; value < LatencyHistogram.MAX_VALUE_US; value = value * 3 + 1) {
+            assertBucketHolds(value);
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        long value = 0;
+        while (value < 10 * 1000 * 1000) {
+            long upper = bucketOf(value);
+            assertTrue("bucket after " + upper, bucketOf(upper + 1) > upper);
+            value = upper + 1;
+        }
+    }
+
+    @Test
+    public void clampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram(SUB_BUCKET_BITS);
+        histogram.recordValue(-5);
+        histogram.recordValue(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMin());
+        assertEquals(LatencyHistogram.MAX_VALUE_US, histogram.getMax());
+        assertEquals(LatencyHistogram.MAX_VALUE_US, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void reportsPercentilesWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram(SUB_BUCKET_BITS);
+        for (long value = 1; value <= 100000; value++) {
+            histogram.recordValue(value);
+        }
+        assertEquals(100000, histogram.getTotalCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(50000.5, histogram.getMean(), 1e-9);
+        assertEquals(50000, histogram.getValueAtPercentile(50), 50000 / 128.0);
+        assertEquals(99000, histogram.getValueAtPercentile(99), 99000 / 128.0);
+        assertEquals(100000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void isEmptyAfterReset() {
+        LatencyHistogram histogram = new LatencyHistogram(5);
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        histogram.recordValue(1234);
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        StringBuilder out = new StringBuilder();
+        histogram.appendDistribution(out);
+        assertEquals("", out.toString());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageFieldReaderTest {
+    private static final int STATE = 0;
+    private static final int LEVEL = 1;
+    private static final int NAME = 2;
+
+    private static final String MESSAGE = "{\"mid\":\"7f3a\",\"data\":{\"state\":true,\"level\":0.5,\"name\":\"hall\"},"
+            + "\"ts\":1451606965889,\"sdid\":\"fde87159\",\"uid\":\"u1\",\"mv\":1}";
+
+    private final MessageFieldReader mReader = new MessageFieldReader("state", "level", "name");
+
+    @Test
+    public void readsTheSelectedFields() {
+        assertTrue(mReader.read(MESSAGE));
+        assertEquals("fde87159", mReader.getSdid());
+        assertEquals(1451606965889L, mReader.getTs());
+        assertEquals(RecentMessageIds.hash("7f3a", 0, 4), mReader.getMidId());
+        assertEquals(Boolean.TRUE, mReader.getValue(STATE));
+        assertEquals(0.5, mReader.getValue(LEVEL));
+        assertEquals("hall", mReader.getValue(NAME));
+    }
+
+    @Test
+    public void toleratesWhitespaceAndNulls() {
+        assertTrue(mReader.read(" {\n \"sdid\" : \"d1\" ,\t\"ts\" : null , \"mid\": null,"
+                + " \"data\" : { \"state\" : null , \"level\" : 1 } } "));
+        assertEquals("d1", mReader.getSdid());
+        assertEquals(0, mReader.getTs());
+        assertEquals(RecentMessageIds.NO_ID, mReader.getMidId());
+        assertTrue(mReader.hasValue(STATE));
+        assertNull(mReader.getValue(STATE));
+        assertEquals(1.0, mReader.getValue(LEVEL));
+        assertFalse(mReader.hasValue(NAME));
+    }
+
+    @Test
+    public void forgetsTheValuesOfThePreviousFrame() {
+        assertTrue(mReader.read(MESSAGE));
+        assertTrue(mReader.read("{\"sdid\":\"d2\",\"data\":null}"));
+        assertEquals("d2", mReader.getSdid());
+        assertEquals(0, mReader.getTs());
+        assertEquals(RecentMessageIds.NO_ID, mReader.getMidId());
+        assertFalse(mReader.hasValue(STATE));
+        assertNull(mReader.getValue(NAME));
+    }
+
+    @Test
+    public void decodesEscapedStrings() {
+        assertTrue(mReader.read("{\"sdid\":\"d\\/1\",\"data\":{\"name\":\"a\\\"b\\\\c\\n\\u0041\\u00e9\"}}"));
+        assertEquals("d/1", mReader.getSdid());
+        assertEquals("a\"b\\c\nA\u00e9", mReader.getValue(NAME));
+    }
+
+    @Test
+    public void skipsNestedValuesWithTrickyStrings() {
+        assertTrue(mReader.read("{\"sdid\":\"d1\",\"meta\":{\"a\":[1,{\"b\":\"}]\\\"{\"}],\"c\":\"x\"},"
+                + "\"data\":{\"other\":[\"]\",{}],\"state\":false,\"more\":{\"state\":true}},\"flag\":true}"));
+        assertEquals(Boolean.FALSE, mReader.getValue(STATE));
+    }
+
+    @Test
+    public void leavesEscapedKeysAndMidsToTheFullDecode() {
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"data\":{\"st\\u0061te\":true}}"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"mid\":\"a\\\"b\",\"data\":{}}"));
+    }
+
+    @Test
+    public void leavesObjectAndArrayValuesToTheFullDecode() {
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"data\":{\"state\":{\"on\":true}}}"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"data\":{\"state\":[true]}}"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"ts\":1.5e12,\"data\":{}}"));
+    }
+
+    @Test
+    public void rejectsFramesThatAreNotDeviceMessages() {
+        assertFalse(mReader.read("{\"type\":\"ping\",\"ts\":1451606965889}"));
+        assertFalse(mReader.read("{\"error\":{\"code\":401,\"message\":\"Unauthorized\"}}"));
+        assertFalse(mReader.read("{\"data\":{\"state\":true}}"));
+        assertFalse(mReader.read("{}"));
+        assertFalse(mReader.read("[]"));
+        assertFalse(mReader.read(""));
+    }
+
+    @Test
+    public void rejectsEveryTruncationOfAMessage() {
+        for (int length = 0; length < MESSAGE.length(); length++) {
+            assertFalse(MESSAGE.substring(0, length), mReader.read(MESSAGE.substring(0, length)));
+        }
+        assertTrue(mReader.read(MESSAGE));
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"data\":{\"name\":\"\\x\"}}"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"data\":{\"name\":\"\\uZZZZ\"}}"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"data\":{\"name\":\"\\u12"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"data\":{\"state\":tru}}"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"data\":{\"level\":-}}"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\" \"ts\":1}"));
+        assertFalse(mReader.read("{\"sdid\":d1}"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"ts\":12345678901234567890}"));
+        assertFalse(mReader.read("{\"sdid\":\"d1\",\"data\":{\"state\":true}"));
+    }
+}
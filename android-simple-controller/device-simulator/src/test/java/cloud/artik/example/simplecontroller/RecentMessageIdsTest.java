@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecentMessageIdsTest {
+    private static long id(String mid) {
+        return RecentMessageIds.hash(mid, 0, mid.length());
+    }
+
+    @Test
+    public void hashesTheCharsBetweenTheBounds() {
+        String frame = "{\"mid\":\"7f3a\"}";
+        assertEquals(id("7f3a"), RecentMessageIds.hash(frame, 8, 12));
+        assertNotEquals(id("7f3a"), id("7f3b"));
+        assertNotEquals(RecentMessageIds.NO_ID, id(""));
+    }
+
+    @Test
+    public void answersTrueForARepeatedId() {
+        RecentMessageIds ids = new RecentMessageIds(64);
+        assertFalse(ids.add(id("a")));
+        assertTrue(ids.add(id("a")));
+        assertFalse(ids.add(id("b")));
+    }
+
+    @Test
+    public void remembersAnIdForAtLeastOneCapacity() {
+        RecentMessageIds ids = new RecentMessageIds(64);
+        ids.add(id("first"));
+        for (int i = 0; i < 64; i++) {
+            ids.add(id("mid" + i));
+        }
+        // The first filter was rotated to the previous one, and is still looked up
+        assertTrue(ids.add(id("first")));
+    }
+
+    @Test
+    public void forgetsAnIdAfterTwoCapacities() {
+        RecentMessageIds ids = new RecentMessageIds(64);
+        ids.add(id("first"));
+        for (int i = 0; i < 2 * 64; i++) {
+            ids.add(id("mid" + i));
+        }
+        assertFalse(ids.add(id("first")));
+    }
+
+    @Test
+    public void rarelyAnswersTrueForANewId() {
+        RecentMessageIds ids = new RecentMessageIds(1024);
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (ids.add(id("mid" + i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives + " false positives", falsePositives < 100000 / 200);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloud.artik.example.simplecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class StateHistoryTest {
+    // Records ON, OFF, ON... at ts 10, 20, 30...
+    private static void toggle(StateHistory history, int index, int changes) {
+        for (int i = 0; i < changes; i++) {
+            history.record(index, i % 2 == 0 ? StateHistory.ON : StateHistory.OFF, (i + 1) * 10);
+        }
+    }
+
+    @Test
+    public void mapsMessageStates() {
+        assertEquals(StateHistory.ON, StateHistory.toState(Boolean.TRUE));
+        assertEquals(StateHistory.OFF, StateHistory.toState(0.0));
+        assertEquals(StateHistory.ON, StateHistory.toState(1));
+        assertEquals(StateHistory.ON, StateHistory.toState("On"));
+        assertEquals(StateHistory.OFF, StateHistory.toState("false"));
+        assertEquals(StateHistory.UNKNOWN, StateHistory.toState("dim"));
+        assertEquals(StateHistory.UNKNOWN, StateHistory.toState(null));
+    }
+
+    @Test
+    public void recordsOnlyChangesInOrder() {
+        StateHistory history = new StateHistory(4);
+        history.record(0, StateHistory.ON, 10);
+        history.record(0, StateHistory.ON, 20);
+        history.record(0, StateHistory.OFF, 5);
+        history.record(0, "dim", 30);
+        assertEquals(StateHistory.ON, history.getLastState(0));
+        assertEquals(10, history.getLastChange(0));
+        assertEquals(0, history.getToggleCount(0, 0, 100));
+    }
+
+    @Test
+    public void countsChangesButNotTheInitialState() {
+        StateHistory history = new StateHistory(4);
+        toggle(history, 0, 3);
+        assertEquals(2, history.getToggleCount(0, 0, 100));
+        assertEquals(2, history.getToggleCount(0, 15, 100));
+        assertEquals(0, history.getToggleCount(0, 10, 20));
+        assertEquals(1, history.getToggleCount(0, 20, 30));
+        assertEquals(0, history.getToggleCount(0, 50, 40));
+    }
+
+    @Test
+    public void sumsTheOnDurationWithinTheWindow() {
+        StateHistory history = new StateHistory(4);
+        toggle(history, 0, 3);
+        assertEquals(5, history.getOnDuration(0, 25, 35));
+        assertEquals(10 + 70, history.getOnDuration(0, 0, 100));
+        assertEquals(0, history.getOnDuration(0, 20, 30));
+        assertEquals(0, history.getOnDuration(1, 0, 100));
+    }
+
+    @Test
+    public void keepsTheNewestChangesWhenTheRingWrapsAround() {
+        StateHistory history = new StateHistory(4);
+        toggle(history, 0, 10);
+        // 70 ON, 80 OFF, 90 ON, 100 OFF are left
+        assertEquals(StateHistory.OFF, history.getLastState(0));
+        assertEquals(100, history.getLastChange(0));
+        // The oldest entry left is a change too, its predecessor was evicted
+        assertEquals(4, history.getToggleCount(0, 0, 200));
+        assertEquals(2, history.getToggleCount(0, 75, 95));
+        assertEquals(20, history.getOnDuration(0, 0, 200));
+        assertEquals(10, history.getOnDuration(0, 75, 95));
+        history.record(0, StateHistory.OFF, 95);
+        assertEquals(100, history.getLastChange(0));
+    }
+
+    @Test
+    public void growsWithTheFleetWithoutLosingHistory() {
+        StateHistory history = new StateHistory(4);
+        toggle(history, 3, 6);
+        toggle(history, 100, 2);
+        assertEquals(StateHistory.OFF, history.getLastState(3));
+        assertEquals(60, history.getLastChange(3));
+        assertEquals(4, history.getToggleCount(3, 0, 100));
+        assertEquals(StateHistory.OFF, history.getLastState(100));
+        assertEquals(StateHistory.UNKNOWN, history.getLastState(50));
+        assertEquals(StateHistory.UNKNOWN, history.getLastState(1000));
+    }
+
+    @Test
+    public void restartsTheHistoryOfOneDeviceAfterAClockStep() {
+        StateHistory history = new StateHistory(4);
+        toggle(history, 0, 3);
+        toggle(history, 1, 3);
+        // Older than the history, ignored until the history restarts
+        history.record(0, StateHistory.OFF, 5);
+        assertEquals(StateHistory.ON, history.getLastState(0));
+        history.clear(0);
+        history.record(0, StateHistory.OFF, 5);
+        assertEquals(StateHistory.OFF, history.getLastState(0));
+        assertEquals(5, history.getLastChange(0));
+        assertEquals(0, history.getToggleCount(0, 0, 100));
+        assertEquals(30, history.getLastChange(1));
+        history.clear(1000);
+    }
+
+    @Test
+    public void forgetsEverythingOnClear() {
+        StateHistory history = new StateHistory(4);
+        toggle(history, 0, 10);
+        history.clear();
+        assertEquals(StateHistory.UNKNOWN, history.getLastState(0));
+        assertEquals(0, history.getLastChange(0));
+        history.record(0, StateHistory.ON, 5);
+        history.record(0, StateHistory.OFF, 6);
+        assertEquals(1, history.getToggleCount(0, 0, 10));
+    }
+}
@@ -79,19 +79,22 @@ function handleRcvMsg(msg){
     var msgObj = JSON.parse(msg);
     if (msgObj.type != "action") return; //Early return;
 
+    // The controller may batch several actions in one message; they are applied in order
     var actions = msgObj.data.actions;
-    var actionName = actions[0].name; //assume that there is only one action in actions
-    console.log("The received action is " + actionName);
-    var newState;
-    if (actionName.toLowerCase() == "seton") {
-        newState = 1;
-    }
-    else if (actionName.toLowerCase() == "setoff") {
-        newState = 0;
-    } else {
-        console.log('Do nothing since receiving unrecognized action ' + actionName);
-        return;
+    var newState = null;
+    for (var i = 0; i < actions.length; i++) {
+        var actionName = actions[i].name;
+        console.log("The received action is " + actionName);
+        if (actionName.toLowerCase() == "seton") {
+            newState = 1;
+        }
+        else if (actionName.toLowerCase() == "setoff") {
+            newState = 0;
+        } else {
+            console.log('Do nothing since receiving unrecognized action ' + actionName);
+        }
     }
+    if (newState === null) return;
     toggleLED(newState);
 }
 